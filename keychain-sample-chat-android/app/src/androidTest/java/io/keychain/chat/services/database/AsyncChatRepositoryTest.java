@@ -0,0 +1,236 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.RECEIVER;
+import static io.keychain.chat.services.database.TestDatabase.SENDER;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Looper;
+import android.os.StrictMode;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.ViewModel;
+import androidx.lifecycle.ViewModelProvider;
+import androidx.lifecycle.ViewModelStore;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import io.keychain.chat.KeychainApp;
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.viewmodel.TabbedViewModel;
+import io.keychain.chat.views.contacts.ChatUser;
+
+/**
+ * Checks that AsyncChatRepository, and the TabbedViewModel calls the UI makes through it, keep SQLite
+ * off the main thread, and that a superseded or closed-over query never reaches its callback.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AsyncChatRepositoryTest {
+    private static final String TEST_DB = "async_test_chats.db";
+
+    private Instrumentation instrumentation;
+    private Context context;
+    private SQLiteDBService service;
+    private AsyncChatRepository async;
+
+    @Before
+    public void setUp() {
+        instrumentation = InstrumentationRegistry.getInstrumentation();
+        context = instrumentation.getTargetContext();
+        service = TestDatabase.open(context, TEST_DB);
+        async = new AsyncChatRepository();
+    }
+
+    @After
+    public void tearDown() {
+        async.close();
+        TestDatabase.delete(context, service, TEST_DB);
+    }
+
+    @Test
+    public void queriesFromTheMainThreadDoNotTouchDiskOnIt() throws Exception {
+        Chat chat = TestDatabase.createChat(service);
+        assertTrue(service.saveMessage(null, SENDER, "hello", ChatDirection.send, chat).isPresent());
+
+        CountDownLatch delivered = new CountDownLatch(2);
+        AtomicBoolean onMainThread = new AtomicBoolean(true);
+        List<Integer> sizes = new CopyOnWriteArrayList<>();
+
+        instrumentation.runOnMainSync(() -> {
+            StrictMode.ThreadPolicy previous = setDiskPenaltyDeath();
+            try {
+                async.execute("summaries", () -> service.getChatSummaries(SENDER).orElse(Collections.emptyList()), summaries -> {
+                    onMainThread.compareAndSet(true, Looper.myLooper() == Looper.getMainLooper());
+                    sizes.add(summaries.size());
+                    delivered.countDown();
+                });
+                async.execute("messages", () -> service.getMessages(chat.id, null, 10).orElse(Collections.emptyList()), messages -> {
+                    onMainThread.compareAndSet(true, Looper.myLooper() == Looper.getMainLooper());
+                    sizes.add(messages.size());
+                    delivered.countDown();
+                });
+            } finally {
+                StrictMode.setThreadPolicy(previous);
+            }
+        });
+
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        assertTrue("callbacks run on the main thread", onMainThread.get());
+        assertEquals(2, sizes.size());
+        assertTrue(sizes.stream().allMatch(size -> size == 1));
+    }
+
+    @Test
+    public void supersededQueryIsNotDelivered() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch staleFinished = new CountDownLatch(1);
+        CountDownLatch newestDelivered = new CountDownLatch(1);
+        List<String> results = new CopyOnWriteArrayList<>();
+
+        async.execute("chat", () -> {
+            started.countDown();
+            try {
+                release.await();
+                return "stale";
+            } finally {
+                staleFinished.countDown();
+            }
+        }, results::add);
+        // supersede it while it is running, the case where cancelling alone would not help
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        async.execute("chat", () -> "newest", result -> {
+            results.add(result);
+            newestDelivered.countDown();
+        });
+
+        assertTrue(newestDelivered.await(10, TimeUnit.SECONDS));
+        release.countDown();
+        assertTrue(staleFinished.await(10, TimeUnit.SECONDS));
+        // let anything the stale query posted run before looking
+        instrumentation.waitForIdleSync();
+
+        assertEquals(Collections.singletonList("newest"), results);
+    }
+
+    @Test
+    public void closeCancelsQueriesWithoutAKey() throws Exception {
+        CountDownLatch busy = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean queuedRan = new AtomicBoolean();
+        List<Object> results = new CopyOnWriteArrayList<>();
+
+        // occupy both threads, so the next query waits in the queue
+        for (int i = 0; i < 2; i++) {
+            async.execute(null, () -> {
+                busy.countDown();
+                release.await();
+                return "running";
+            }, results::add);
+        }
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+        async.execute(null, () -> queuedRan.getAndSet(true), results::add);
+
+        async.close();
+        release.countDown();
+        Thread.sleep(100);
+        instrumentation.waitForIdleSync();
+
+        assertFalse("queued query ran after close", queuedRan.get());
+        assertEquals(Collections.emptyList(), results);
+    }
+
+    @Test
+    public void viewModelCallsDoNotTouchDiskOnTheMainThread() throws Exception {
+        Chat chat = TestDatabase.createChat(service);
+        // blank, so the view model shows it without asking the gateway to decrypt
+        assertTrue(service.saveMessage(null, SENDER, "", ChatDirection.send, chat).isPresent());
+
+        KeychainApp app = (KeychainApp) context.getApplicationContext();
+        ViewModelStore store = new ViewModelStore();
+        AtomicReference<TabbedViewModel> viewModel = new AtomicReference<>();
+        AtomicReference<StrictMode.ThreadPolicy> previous = new AtomicReference<>();
+        CountDownLatch opened = new CountDownLatch(1);
+        AtomicReference<Chat> openedChat = new AtomicReference<>();
+
+        // the view model opens its database off the main thread, but build it before the policy anyway
+        instrumentation.runOnMainSync(() -> viewModel.set(new ViewModelProvider(store, new ViewModelProvider.Factory() {
+            @NonNull
+            @Override
+            public <T extends ViewModel> T create(@NonNull Class<T> modelClass) {
+                return modelClass.cast(new TabbedViewModel(app, app.getMqttUseCase(), service));
+            }
+        }).get(TabbedViewModel.class)));
+        assertTrue(service.whenReady().join());
+
+        try {
+            // the policy stays set until every result has been delivered, so the callbacks are covered too
+            instrumentation.runOnMainSync(() -> {
+                previous.set(setDiskPenaltyDeath());
+                TabbedViewModel model = viewModel.get();
+                model.setChatPersona(SENDER);
+                model.refreshChats();
+                model.setChat(chat);
+                model.setChatByFacade(new ChatUser(RECEIVER, RECEIVER, RECEIVER, null, true, false, null, null, null), result -> {
+                    openedChat.set(result);
+                    opened.countDown();
+                });
+            });
+
+            assertTrue(opened.await(10, TimeUnit.SECONDS));
+            assertEquals(chat.id, openedChat.get().id);
+            TabbedViewModel model = viewModel.get();
+            assertTrue("chat list loaded", waitFor(() -> model.getChats().getValue() != null && model.getChats().getValue().size() == 1));
+            assertTrue("messages loaded", waitFor(() -> model.getAllMessages().getValue() != null && model.getAllMessages().getValue().size() == 1));
+            instrumentation.waitForIdleSync();
+        } finally {
+            instrumentation.runOnMainSync(() -> {
+                if (previous.get() != null) {
+                    StrictMode.setThreadPolicy(previous.get());
+                }
+                store.clear();
+            });
+        }
+    }
+
+    // Any disk access on the main thread while this policy is set kills the test process
+    private static StrictMode.ThreadPolicy setDiskPenaltyDeath() {
+        StrictMode.ThreadPolicy previous = StrictMode.getThreadPolicy();
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .penaltyDeath()
+                .build());
+        return previous;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks AttachmentStore against the device Keystore: content comes back as it was stored, across
+ * chunk boundaries; a file that was cut short, reordered or altered is refused; and the same content
+ * is kept once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AttachmentStoreTest {
+    private final Set<String> refs = new HashSet<>();
+    private AttachmentStore store;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        store = new AttachmentStore(context);
+    }
+
+    @After
+    public void tearDown() {
+        for (String ref : refs) {
+            store.delete(ref);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] content = content(1000, 1);
+        String ref = put(content);
+
+        assertTrue(store.contains(ref));
+        assertArrayEquals(content, read(ref));
+        // the reference is the hex SHA-256 of the plaintext
+        assertEquals(64, ref.length());
+    }
+
+    @Test
+    public void contentSpanningSeveralChunks() throws Exception {
+        byte[] partial = content(2 * AttachmentStore.CHUNK_SIZE + AttachmentStore.CHUNK_SIZE / 2, 2);
+        String partialRef = put(partial);
+        assertArrayEquals(partial, read(partialRef));
+        assertEquals(3, records(partialRef).size());
+
+        // a last chunk that is exactly full
+        byte[] exact = content(2 * AttachmentStore.CHUNK_SIZE, 3);
+        String exactRef = put(exact);
+        assertArrayEquals(exact, read(exactRef));
+        assertEquals(2, records(exactRef).size());
+
+        // ByteBuffer and InputStream store the same bytes under the same reference
+        assertEquals(partialRef, store.put(ByteBuffer.wrap(partial)));
+        assertEquals(partialRef, store.put(new ByteArrayInputStream(partial)));
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws Exception {
+        byte[] content = content(AttachmentStore.CHUNK_SIZE + 1, 4);
+        String ref = put(content);
+        File file = store.fileFor(ref);
+        long modified = file.lastModified();
+        int files = attachmentFiles(file.getParentFile());
+
+        assertEquals(ref, put(content.clone()));
+        assertEquals(files, attachmentFiles(file.getParentFile()));
+        assertEquals(modified, file.lastModified());
+        assertArrayEquals(content, read(ref));
+    }
+
+    @Test
+    public void truncatedFileIsRejected() throws Exception {
+        String ref = put(content(3 * AttachmentStore.CHUNK_SIZE, 5));
+        byte[] file = Files.readAllBytes(store.fileFor(ref).toPath());
+        List<Integer> records = records(ref);
+
+        // cut inside the last record
+        write(ref, copyOf(file, file.length - 10));
+        assertUnreadable(ref);
+
+        // the last record dropped entirely, so the file ends on a record boundary
+        write(ref, copyOf(file, records.get(records.size() - 1)));
+        assertUnreadable(ref);
+    }
+
+    @Test
+    public void reorderedChunksAreRejected() throws Exception {
+        String ref = put(content(3 * AttachmentStore.CHUNK_SIZE, 6));
+        byte[] file = Files.readAllBytes(store.fileFor(ref).toPath());
+        List<Integer> records = records(ref);
+
+        // the first two records are full chunks of the same length, so they can be swapped in place
+        int first = records.get(0);
+        int second = records.get(1);
+        int length = second - first;
+        byte[] swapped = file.clone();
+        System.arraycopy(file, second, swapped, first, length);
+        System.arraycopy(file, first, swapped, second, length);
+        write(ref, swapped);
+        assertUnreadable(ref);
+    }
+
+    @Test
+    public void tamperedFileIsRejected() throws Exception {
+        String ref = put(content(2 * AttachmentStore.CHUNK_SIZE, 7));
+        byte[] file = Files.readAllBytes(store.fileFor(ref).toPath());
+        List<Integer> records = records(ref);
+
+        // one bit of ciphertext
+        byte[] flipped = file.clone();
+        flipped[records.get(1) + 5 + 100] ^= 1;
+        write(ref, flipped);
+        assertUnreadable(ref);
+
+        // the first chunk claiming to be the last
+        byte[] early = file.clone();
+        early[records.get(0)] = 1;
+        write(ref, early);
+        assertUnreadable(ref);
+    }
+
+    @Test
+    public void deleteEvictsOnlyThatAttachmentsThumbnails() throws Exception {
+        String kept = putJpeg(Color.RED);
+        String deleted = putJpeg(Color.BLUE);
+
+        Bitmap keptThumbnail = store.getThumbnail(kept, 8, 8);
+        Bitmap deletedThumbnail = store.getThumbnail(deleted, 8, 8);
+        assertNotNull(keptThumbnail);
+        assertNotNull(deletedThumbnail);
+
+        assertTrue(store.delete(deleted));
+        assertFalse(store.contains(deleted));
+        assertSame(keptThumbnail, store.getThumbnail(kept, 8, 8));
+
+        // stored again, it is decoded again rather than served from the cache
+        assertEquals(deleted, putJpeg(Color.BLUE));
+        assertNotSame(deletedThumbnail, store.getThumbnail(deleted, 8, 8));
+    }
+
+    private String put(byte[] content) throws Exception {
+        String ref = store.put(new ByteArrayInputStream(content));
+        refs.add(ref);
+        return ref;
+    }
+
+    private String putJpeg(int color) throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        String ref = store.put(out -> bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out));
+        refs.add(ref);
+        return ref;
+    }
+
+    private byte[] read(String ref) throws Exception {
+        try (InputStream in = store.open(ref)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private void assertUnreadable(String ref) throws Exception {
+        try {
+            read(ref);
+            fail("Read a damaged attachment");
+        } catch (IOException expected) {
+        }
+    }
+
+    // Offsets of the records of the file, following the layout in AttachmentStore's class comment
+    private List<Integer> records(String ref) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(store.fileFor(ref).toPath()));
+        file.position(4);
+        file.position(file.position() + (file.get() & 0xff));
+        file.position(file.position() + (file.getShort() & 0xffff));
+        file.getInt();
+
+        List<Integer> offsets = new ArrayList<>();
+        while (file.hasRemaining()) {
+            offsets.add(file.position());
+            file.get();
+            file.position(file.position() + file.getInt());
+        }
+        return offsets;
+    }
+
+    private void write(String ref, byte[] file) throws IOException {
+        Files.write(store.fileFor(ref).toPath(), file);
+    }
+
+    private static byte[] copyOf(byte[] file, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(file, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static int attachmentFiles(File directory) {
+        File[] files = directory.listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
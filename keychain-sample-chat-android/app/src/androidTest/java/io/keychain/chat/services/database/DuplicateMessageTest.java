@@ -0,0 +1,94 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.RECEIVER;
+import static io.keychain.chat.services.database.TestDatabase.SENDER;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Checks that a message the broker redelivers, i.e. the same sender and remote id, is stored only
+ * once: in the same session, and after a restart, when the seen filter is rebuilt from seen_messages.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DuplicateMessageTest {
+    private static final String TEST_DB = "duplicate_test_chats.db";
+    private static final String REMOTE_ID = "6F1C2E0A-0000-4000-8000-000000000001";
+
+    private Context context;
+    private SQLiteDBService service;
+    private Chat chat;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = TestDatabase.open(context, TEST_DB);
+        chat = TestDatabase.createChat(service);
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabase.delete(context, service, TEST_DB);
+    }
+
+    @Test
+    public void redeliveryInTheSameSessionIsDropped() {
+        assertFalse(service.isDuplicateMessage(RECEIVER, REMOTE_ID));
+        assertTrue(service.appendMessage(received(REMOTE_ID)).isPresent());
+
+        assertTrue(service.isDuplicateMessage(RECEIVER, REMOTE_ID));
+        assertFalse(service.appendMessage(received(REMOTE_ID)).isPresent());
+        // the same id from someone else is another message
+        assertFalse(service.isDuplicateMessage(SENDER, REMOTE_ID));
+
+        // a copy queued before the first one committed lands in the same group
+        List<ChatMessage> stored = service.appendMessages(Arrays.asList(received("other"), received("other")))
+                .orElseThrow(AssertionError::new);
+        assertEquals(1, stored.size());
+        assertEquals(2, messageCount());
+    }
+
+    @Test
+    public void redeliveryAfterRestartIsDropped() {
+        assertTrue(service.appendMessage(received(REMOTE_ID)).isPresent());
+
+        service.closeDatabase();
+        service = new SQLiteDBService(context, TEST_DB);
+        assertTrue(service.whenReady().join());
+
+        assertTrue(service.isDuplicateMessage(RECEIVER, REMOTE_ID));
+        assertFalse(service.isDuplicateMessage(RECEIVER, "never-sent"));
+        assertFalse(service.appendMessage(received(REMOTE_ID)).isPresent());
+        assertEquals(1, messageCount());
+    }
+
+    // A message RECEIVER sent us, carrying its own id
+    private ChatMessage received(String remoteId) {
+        ChatMessage message = TestDatabase.message(chat, RECEIVER, SENDER, "ciphertext " + remoteId);
+        message.sendOrRcvd = ChatDirection.receive;
+        message.remoteId = remoteId;
+        return message;
+    }
+
+    private int messageCount() {
+        return service.getAllMessages(chat).map(List::size).orElse(0);
+    }
+}
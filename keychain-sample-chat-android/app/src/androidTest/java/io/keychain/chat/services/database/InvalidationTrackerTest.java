@@ -0,0 +1,126 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.RECEIVER;
+import static io.keychain.chat.services.database.TestDatabase.SENDER;
+import static io.keychain.chat.services.database.TestDatabase.message;
+import static io.keychain.common.Constants.CHATS;
+import static io.keychain.common.Constants.CHAT_SUMMARIES;
+import static io.keychain.common.Constants.MESSAGES;
+import static io.keychain.common.Constants.USERS;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.PairStatus;
+import io.keychain.chat.models.chat.User;
+import io.keychain.chat.models.chat.UserSource;
+
+/**
+ * Checks that SQLiteDBService reports the rows each committed write changed, once per transaction.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InvalidationTrackerTest {
+    private static final String TEST_DB = "invalidation_test_chats.db";
+
+    private Context context;
+    private SQLiteDBService service;
+    private final List<InvalidationTracker.Changes> received = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = TestDatabase.open(context, TEST_DB);
+        service.addObserver(received::add, USERS, CHATS, CHAT_SUMMARIES, MESSAGES);
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabase.delete(context, service, TEST_DB);
+    }
+
+    @Test
+    public void appendReportsTheMessagesAndTheirChatsOnce() {
+        Chat chat = createChat();
+        received.clear();
+
+        List<ChatMessage> stored = service.appendMessages(Arrays.asList(message(chat, "one"), message(chat, "two")))
+                .orElseThrow(AssertionError::new);
+        assertEquals(2, stored.size());
+
+        // one Changes per table for the whole batch
+        assertEquals(3, received.size());
+        InvalidationTracker.Changes messages = changesOf(MESSAGES);
+        assertEquals(new HashSet<>(Arrays.asList(stored.get(0).id, stored.get(1).id)), messages.inserted);
+        assertTrue(messages.updated.isEmpty());
+        assertEquals(Collections.singleton(chat.id), changesOf(CHATS).updated);
+        assertEquals(Collections.singleton(chat.id), changesOf(CHAT_SUMMARIES).updated);
+    }
+
+    @Test
+    public void unchangedUsersAreNotReported() {
+        User sender = new User(null, "Sender", "S", PairStatus.PAIRED.getCode(), UserSource.GATEWAY.getCode(), null, SENDER);
+        service.upsertUsers(Collections.singletonList(sender));
+        assertEquals(Collections.singleton(SENDER), changesOf(USERS).inserted);
+
+        received.clear();
+        service.upsertUsers(Collections.singletonList(sender));
+        assertTrue(received.isEmpty());
+
+        User renamed = new User(null, "Renamed", "S", PairStatus.PAIRED.getCode(), UserSource.GATEWAY.getCode(), null, SENDER);
+        service.upsertUsers(Collections.singletonList(renamed));
+        assertEquals(Collections.singleton(SENDER), changesOf(USERS).updated);
+    }
+
+    @Test
+    public void markingAReadChatReadReportsNothing() {
+        Chat chat = createChat();
+        ChatMessage incoming = message(chat, "hello");
+        incoming.sendOrRcvd = ChatDirection.receive;
+        incoming.senderId = RECEIVER;
+        incoming.receiverId = SENDER;
+        service.appendMessage(incoming).orElseThrow(AssertionError::new);
+        received.clear();
+
+        assertTrue(service.markChatRead(chat.id, SENDER));
+        assertEquals(Collections.singleton(chat.id), changesOf(CHAT_SUMMARIES).updated);
+
+        received.clear();
+        service.markChatRead(chat.id, SENDER);
+        assertTrue(received.isEmpty());
+    }
+
+    private Chat createChat() {
+        Chat chat = TestDatabase.createChat(service);
+        assertEquals(Collections.singleton(chat.id), changesOf(CHATS).inserted);
+        return chat;
+    }
+
+    // The last changes reported for 'table'
+    private InvalidationTracker.Changes changesOf(String table) {
+        for (int i = received.size() - 1; i >= 0; i--) {
+            if (received.get(i).table.equals(table)) {
+                return received.get(i);
+            }
+        }
+        throw new AssertionError("No changes reported for " + table);
+    }
+}
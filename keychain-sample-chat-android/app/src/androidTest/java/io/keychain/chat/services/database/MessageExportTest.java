@@ -0,0 +1,115 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.RECEIVER;
+import static io.keychain.chat.services.database.TestDatabase.SENDER;
+import static io.keychain.chat.services.database.TestDatabase.createChat;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Checks that exportMessages and importMessages round-trip a history larger than one page or batch,
+ * and that a row without a known direction is exported but not imported.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageExportTest {
+    private static final String SOURCE_DB = "export_source_chats.db";
+    private static final String TARGET_DB = "export_target_chats.db";
+    private static final String OTHER = "other-uri";
+    // more than EXPORT_PAGE_SIZE and IMPORT_BATCH_SIZE
+    private static final int MESSAGES = 1200;
+
+    private Context context;
+    private SQLiteDBService source;
+    private SQLiteDBService target;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        source = TestDatabase.open(context, SOURCE_DB);
+        target = TestDatabase.open(context, TARGET_DB);
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabase.delete(context, source, SOURCE_DB);
+        TestDatabase.delete(context, target, TARGET_DB);
+    }
+
+    @Test
+    public void exportedHistoryImportsWithTimestamps() {
+        Chat chat = createChat(source, SENDER, RECEIVER);
+        Chat unrelated = createChat(source, RECEIVER, OTHER);
+
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean sent = i % 2 == 0;
+            messages.add(message(sent ? chat : unrelated, sent ? SENDER : RECEIVER, sent ? RECEIVER : OTHER, "line\n" + i, 1000L + i));
+        }
+        assertEquals(MESSAGES, source.appendMessages(messages).orElseThrow(AssertionError::new).size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(Long.valueOf(MESSAGES / 2), source.exportMessages(SENDER, out).orElseThrow(AssertionError::new));
+        String ndjson = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertEquals(MESSAGES / 2, ndjson.split("\n").length);
+
+        assertEquals(Long.valueOf(MESSAGES / 2), target.importMessages(new ByteArrayInputStream(out.toByteArray()))
+                .orElseThrow(AssertionError::new));
+
+        Chat imported = target.getChat(SENDER, RECEIVER).orElseThrow(AssertionError::new);
+        List<ChatMessage> stored = target.getMessages(imported.id, null, MESSAGES).orElseThrow(AssertionError::new);
+        assertEquals(MESSAGES / 2, stored.size());
+        // newest first, with the timestamps they were exported with
+        assertEquals("line\n" + (MESSAGES - 2), stored.get(0).msg);
+        assertEquals(Long.valueOf(1000L + MESSAGES - 2), stored.get(0).timestamp);
+        assertTrue(stored.stream().allMatch(m -> m.sendOrRcvd == ChatDirection.send));
+    }
+
+    @Test
+    public void messageWithoutDirectionIsExportedButNotImported() {
+        Chat chat = createChat(source, SENDER, RECEIVER);
+        assertTrue(source.appendMessage(message(chat, SENDER, RECEIVER, "known", 1000L)).isPresent());
+        assertTrue(source.appendMessage(message(chat, SENDER, RECEIVER, "unknown", 1001L)).isPresent());
+        // a code ChatDirection does not know reads back as a null direction
+        source.db.execSQL("UPDATE messages SET sendOrRcvd = 7 WHERE timestamp = 1001");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(Long.valueOf(2), source.exportMessages(SENDER, out).orElseThrow(AssertionError::new));
+        String ndjson = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertFalse("local row ids are not exported", ndjson.contains("\"id\""));
+
+        assertEquals(Long.valueOf(1), target.importMessages(new ByteArrayInputStream(out.toByteArray()))
+                .orElseThrow(AssertionError::new));
+        Chat imported = target.getChat(SENDER, RECEIVER).orElseThrow(AssertionError::new);
+        List<ChatMessage> stored = target.getMessages(imported.id, null, 10).orElseThrow(AssertionError::new);
+        assertEquals(1, stored.size());
+        assertEquals("known", stored.get(0).msg);
+    }
+
+    private static ChatMessage message(Chat chat, String sender, String receiver, String text, long timestamp) {
+        ChatMessage message = TestDatabase.message(chat, sender, receiver, text);
+        message.timestamp = timestamp;
+        return message;
+    }
+}
@@ -0,0 +1,176 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.util.Base64;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Measures how many bytes of database file each message costs in the version 3 layout (TEXT ids,
+ * timestamps and ciphertext) and after SQLiteDBService has upgraded the same data to version 4.
+ *
+ * The result is logged and reported to the instrumentation as "bytesPerMessageBefore" and
+ * "bytesPerMessageAfter".
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageStorageBenchmarkTest {
+    private static final String TAG = "MessageStorageBenchmark";
+    private static final String TEST_DB = "storage_benchmark_chats.db";
+    private static final String SENDER = "sender-uri";
+    private static final String RECEIVER = "receiver-uri";
+    private static final int MESSAGES = 5000;
+    // Size of the encrypted payload before it is base64'd into the XML envelope
+    private static final int PAYLOAD_BYTES = 512;
+
+    // Version 3 schema, as created by chats.sql and chats_upgrade_2/3.sql before the upgrade to 4
+    private static final String[] V3_SCHEMA = {
+            "CREATE TABLE users (id TEXT PRIMARY KEY, firstName TEXT NOT NULL, lastName TEXT NOT NULL, " +
+                    "status INTEGER NOT NULL DEFAULT 0, source INTEGER NOT NULL DEFAULT 0, photo TEXT, uri TEXT UNIQUE)",
+            "CREATE TABLE chats (id TEXT PRIMARY KEY, participantIds TEXT, lastMsg TEXT, timestamp TEXT NOT NULL)",
+            "CREATE TABLE messages (id TEXT PRIMARY KEY, chatId TEXT, sendOrRcvd TEXT NOT NULL, senderId TEXT, " +
+                    "receiverId TEXT, imageUrl TEXT, msg TEXT, timestamp TEXT NOT NULL)",
+            "CREATE TABLE chat_participants (chatId TEXT NOT NULL, uri TEXT NOT NULL, PRIMARY KEY (chatId, uri)) WITHOUT ROWID",
+            "CREATE INDEX idx_chat_participants_uri ON chat_participants (uri, chatId)",
+            "CREATE INDEX idx_messages_chat_timestamp ON messages (chatId, timestamp, id)"
+    };
+
+    private Context context;
+    private SQLiteDBService service;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(TEST_DB);
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.closeDatabase();
+        }
+        context.deleteDatabase(TEST_DB);
+    }
+
+    @Test
+    public void reportBytesPerMessage() {
+        String chatId = UUID.randomUUID().toString().toUpperCase();
+        String lastCiphertext = createVersion3Database(chatId);
+
+        SQLiteDatabase legacy = context.openOrCreateDatabase(TEST_DB, Context.MODE_PRIVATE, null);
+        double before = bytesPerMessage(legacy);
+        legacy.close();
+
+        // Opening through the service runs the upgrade to the current version
+        service = new SQLiteDBService(context, TEST_DB);
+        assertTrue(service.whenReady().join());
+        assertEquals(SQLiteDBService.DB_VERSION, service.db.getVersion());
+        double after = bytesPerMessage(service.db);
+
+        String report = String.format(Locale.ROOT,
+                "%d messages: %.1f bytes/message before, %.1f after (%.0f%% smaller)",
+                MESSAGES, before, after, 100 * (1 - after / before));
+        Log.i(TAG, report);
+
+        Bundle results = new Bundle();
+        results.putDouble("bytesPerMessageBefore", before);
+        results.putDouble("bytesPerMessageAfter", after);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+
+        // The migrated data must still read back the same
+        Chat chat = service.getChat(SENDER, RECEIVER).orElseThrow(AssertionError::new);
+        assertEquals(lastCiphertext, chat.lastMsg);
+        List<ChatMessage> newest = service.getMessages(chat.id, null, 1).orElseThrow(AssertionError::new);
+        assertEquals(lastCiphertext, newest.get(0).msg);
+        assertEquals(ChatDirection.send, newest.get(0).sendOrRcvd);
+        assertEquals(MESSAGES, service.getAllMessages(chat).map(List::size).orElse(0).intValue());
+
+        assertTrue(report, after < before);
+    }
+
+    // Builds a version 3 database holding one chat with MESSAGES messages. Returns the last ciphertext.
+    private String createVersion3Database(String chatId) {
+        SQLiteDatabase db = context.openOrCreateDatabase(TEST_DB, Context.MODE_PRIVATE, null);
+        Random random = new Random(42);
+        long timestamp = System.currentTimeMillis() - MESSAGES * 1000L;
+        String ciphertext = null;
+
+        db.beginTransaction();
+        try {
+            for (String sql : V3_SCHEMA) {
+                db.execSQL(sql);
+            }
+            db.execSQL("INSERT INTO users (id, firstName, lastName, status, source, uri) VALUES (?, 'Sender', 'S', 3, 0, ?)",
+                    new Object[] {UUID.randomUUID().toString(), SENDER});
+            db.execSQL("INSERT INTO users (id, firstName, lastName, status, source, uri) VALUES (?, 'Receiver', 'R', 3, 0, ?)",
+                    new Object[] {UUID.randomUUID().toString(), RECEIVER});
+            db.execSQL("INSERT INTO chat_participants (chatId, uri) VALUES (?, ?), (?, ?)",
+                    new Object[] {chatId, SENDER, chatId, RECEIVER});
+
+            for (int i = 0; i < MESSAGES; i++) {
+                ciphertext = fakeCiphertext(random);
+                db.execSQL("INSERT INTO messages (id, chatId, sendOrRcvd, senderId, receiverId, msg, timestamp) " +
+                                "VALUES (?, ?, ?, ?, ?, ?, ?)",
+                        new Object[] {UUID.randomUUID().toString().toUpperCase(), chatId, ChatDirection.send.getDirection(),
+                                SENDER, RECEIVER, ciphertext, String.valueOf(timestamp + i * 1000L)});
+            }
+
+            db.execSQL("INSERT INTO chats (id, participantIds, lastMsg, timestamp) VALUES (?, ?, ?, ?)",
+                    new Object[] {chatId, SENDER + "|" + RECEIVER, ciphertext, "2023-05-01T12:34:56.789"});
+            db.setVersion(3);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+
+        return ciphertext;
+    }
+
+    // Roughly the shape of a signed and encrypted message: an XML envelope around a base64 payload
+    private static String fakeCiphertext(Random random) {
+        byte[] payload = new byte[PAYLOAD_BYTES];
+        random.nextBytes(payload);
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><EncryptedMessage version=\"1\">" +
+                "<Recipients><Recipient uri=\"" + RECEIVER + "\"/></Recipients>" +
+                "<Data>" + Base64.encodeToString(payload, Base64.NO_WRAP) + "</Data></EncryptedMessage>";
+    }
+
+    // Database size after packing it, divided by the number of messages
+    private static double bytesPerMessage(SQLiteDatabase db) {
+        db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null).close();
+        db.execSQL("VACUUM");
+
+        long pageCount = longPragma(db, "page_count");
+        long pageSize = longPragma(db, "page_size");
+        return (double) (pageCount * pageSize) / MESSAGES;
+    }
+
+    private static long longPragma(SQLiteDatabase db, String pragma) {
+        try (Cursor cursor = db.rawQuery("PRAGMA " + pragma, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.message;
+import static io.keychain.common.Constants.CHAT_SUMMARIES;
+import static io.keychain.common.Constants.MESSAGES;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.ChatSummary;
+
+/**
+ * Checks that the retention deletes stay within their batch, report what they deleted, keep the chat
+ * list's last message current, and that the freed pages can be reclaimed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RetentionTest {
+    private static final String TEST_DB = "retention_test_chats.db";
+
+    private Context context;
+    private SQLiteDBService service;
+    private final Set<String> deleted = new CopyOnWriteArraySet<>();
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = TestDatabase.open(context, TEST_DB);
+        service.addObserver(changes -> deleted.addAll(changes.deleted), MESSAGES);
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabase.delete(context, service, TEST_DB);
+    }
+
+    @Test
+    public void deletesOldMessagesInBatches() {
+        Chat chat = TestDatabase.createChat(service);
+        // timestamps 1000..1499
+        append(chat, 500, 1000);
+
+        assertEquals(200, service.deleteMessagesOlderThan(1300, 200));
+        assertEquals(100, service.deleteMessagesOlderThan(1300, 200));
+        assertEquals(0, service.deleteMessagesOlderThan(1300, 200));
+
+        assertEquals(300, deleted.size());
+        List<ChatMessage> left = service.getAllMessages(chat).orElseThrow(AssertionError::new);
+        assertEquals(200, left.size());
+        assertTrue(left.stream().allMatch(m -> m.timestamp >= 1300));
+    }
+
+    @Test
+    public void keepsTheNewestMessagesOfLongChats() {
+        Chat chat = TestDatabase.createChat(service);
+        append(chat, 50, 1000);
+
+        assertEquals(Collections.singletonList(chat.id), service.getChatsWithMoreMessagesThan(10).orElseThrow(AssertionError::new));
+        assertEquals(40, service.deleteMessagesBeyond(chat.id, 10, 200));
+
+        List<ChatMessage> left = service.getMessages(chat.id, null, 100).orElseThrow(AssertionError::new);
+        assertEquals(10, left.size());
+        assertEquals(Long.valueOf(1049), left.get(0).timestamp);
+        assertEquals(Long.valueOf(1040), left.get(9).timestamp);
+        assertTrue(service.getChatsWithMoreMessagesThan(10).orElseThrow(AssertionError::new).isEmpty());
+    }
+
+    @Test
+    public void sizeCapCountsOnlyTheMessages() {
+        Chat chat = TestDatabase.createChat(service);
+        append(chat, 10, 1000);
+
+        // far less than the database file, but more than the messages
+        assertEquals(0, service.deleteOldestMessagesOver(16 * 1024, 200));
+        assertEquals(10, service.getAllMessages(chat).orElseThrow(AssertionError::new).size());
+
+        // one byte over: only the oldest message goes
+        assertEquals(1, service.deleteOldestMessagesOver(service.messageBytes() - 1, 200));
+        List<ChatMessage> left = service.getAllMessages(chat).orElseThrow(AssertionError::new);
+        assertEquals(9, left.size());
+        assertTrue(left.stream().allMatch(m -> m.timestamp > 1000));
+    }
+
+    @Test
+    public void freedPagesAreReclaimed() {
+        Chat chat = TestDatabase.createChat(service);
+        append(chat, 2000, 1000);
+        while (service.deleteMessagesOlderThan(Long.MAX_VALUE, 500) > 0) {
+            // delete everything
+        }
+
+        while (service.reclaimSpace(64) > 0) {
+            // reclaim everything
+        }
+        assertEquals(2, DatabaseUtils.longForQuery(service.db, "PRAGMA auto_vacuum", null));
+        assertEquals(0, DatabaseUtils.longForQuery(service.db, "PRAGMA freelist_count", null));
+    }
+
+    @Test
+    public void deletingTheLastMessageResetsTheChatPreview() {
+        Chat chat = TestDatabase.createChat(service);
+        Set<String> summaries = new CopyOnWriteArraySet<>();
+        service.addObserver(changes -> summaries.addAll(changes.updated), CHAT_SUMMARIES);
+
+        // arrival order is the reverse of timestamp order, so the first message stored is the chat's last
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            ChatMessage message = message(chat, "message " + i);
+            message.timestamp = 1010L - i;
+            messages.add(message);
+        }
+        assertEquals(3, service.appendMessages(messages).orElseThrow(AssertionError::new).size());
+        assertEquals("message 0", lastMessage(chat));
+
+        // deletes by arrival order, so the last message goes first and the next newest takes its place
+        summaries.clear();
+        assertEquals(1, service.deleteOldestMessagesOver(1, 1));
+        assertEquals("message 1", lastMessage(chat));
+        assertEquals(Collections.singleton(chat.id), summaries);
+
+        // an older message going leaves the last message alone
+        summaries.clear();
+        assertEquals(1, service.deleteMessagesOlderThan(1009, 200));
+        assertEquals("message 1", lastMessage(chat));
+        assertTrue(summaries.isEmpty());
+
+        // nothing left to show
+        assertEquals(1, service.deleteMessagesOlderThan(Long.MAX_VALUE, 200));
+        assertNull(lastMessage(chat));
+        assertEquals(Collections.singleton(chat.id), summaries);
+    }
+
+    @Test
+    public void openSwitchesAnOldDatabaseToIncrementalVacuum() {
+        // as created before incremental auto-vacuum was turned on
+        service.db.execSQL("PRAGMA auto_vacuum = NONE");
+        service.db.execSQL("VACUUM");
+        assertEquals(0, DatabaseUtils.longForQuery(service.db, "PRAGMA auto_vacuum", null));
+        assertEquals(0, service.reclaimSpace(64));
+
+        service.closeDatabase();
+        service = new SQLiteDBService(context, TEST_DB);
+        assertTrue(service.whenReady().join());
+        assertEquals(2, DatabaseUtils.longForQuery(service.db, "PRAGMA auto_vacuum", null));
+    }
+
+    private String lastMessage(Chat chat) {
+        List<ChatSummary> summaries = service.getChatSummaries(chat.participantIds.get(0)).orElseThrow(AssertionError::new);
+        return summaries.stream()
+                .filter(summary -> summary.chatId.equals(chat.id))
+                .findFirst()
+                .orElseThrow(AssertionError::new)
+                .lastMsg;
+    }
+
+    private void append(Chat chat, int count, long firstTimestamp) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ChatMessage message = message(chat, "message " + i);
+            message.timestamp = firstTimestamp + i;
+            messages.add(message);
+        }
+        assertEquals(count, service.appendMessages(messages).orElseThrow(AssertionError::new).size());
+    }
+}
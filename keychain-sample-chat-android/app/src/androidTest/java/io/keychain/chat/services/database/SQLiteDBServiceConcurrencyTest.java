@@ -0,0 +1,133 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import static io.keychain.chat.services.database.TestDatabase.RECEIVER;
+import static io.keychain.chat.services.database.TestDatabase.SENDER;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.PairStatus;
+import io.keychain.chat.models.chat.UserSource;
+
+/**
+ * Hammers SQLiteDBService with one writer and several readers at the same time, the way the MQTT
+ * ingest thread, the UI thread and the directory import share it in the app.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SQLiteDBServiceConcurrencyTest {
+    private static final String TEST_DB = "concurrency_test_chats.db";
+    private static final int WRITES = 2000;
+    private static final int READERS = 4;
+
+    private Context context;
+    private SQLiteDBService service;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        service = TestDatabase.open(context, TEST_DB);
+    }
+
+    @After
+    public void tearDown() {
+        TestDatabase.delete(context, service, TEST_DB);
+    }
+
+    @Test
+    public void writeAheadLoggingIsEnabled() {
+        assertTrue(service.whenReady().join());
+        assertTrue(service.db.isWriteAheadLoggingEnabled());
+    }
+
+    @Test
+    public void callsMadeWhileOpeningWaitForTheDatabase() throws Exception {
+        service.closeDatabase();
+        context.deleteDatabase(TEST_DB);
+
+        // no waiting for whenReady: the first call has to wait for the background open by itself
+        service = new SQLiteDBService(context, TEST_DB);
+        assertTrue(service.saveUserProfile("Sender", "S", PairStatus.PAIRED.getCode(), UserSource.MQTT.getCode(), SENDER, null).isPresent());
+        assertTrue(service.whenReady().get(1, TimeUnit.SECONDS));
+
+        service.warmUp(SENDER).get(10, TimeUnit.SECONDS);
+        assertEquals(SENDER, service.getPlatformUserByUri(SENDER).orElseThrow(AssertionError::new).uri);
+    }
+
+    @Test
+    public void readsRunConcurrentlyWithWrites() throws Exception {
+        Chat chat = TestDatabase.createChat(service);
+
+        ExecutorService pool = Executors.newFixedThreadPool(READERS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+
+        Future<Integer> writer = pool.submit(() -> {
+            start.await();
+            int saved = 0;
+            try {
+                for (int i = 0; i < WRITES; i++) {
+                    if (service.saveMessage(null, SENDER, "message " + i, ChatDirection.send, chat).isPresent()) {
+                        saved++;
+                    }
+                    service.updateChat(chat.id, "message " + i);
+                }
+            } finally {
+                writing.set(false);
+            }
+            return saved;
+        });
+
+        List<Future<int[]>> readers = new ArrayList<>(READERS);
+        for (int r = 0; r < READERS; r++) {
+            readers.add(pool.submit(() -> {
+                start.await();
+                int reads = 0;
+                int failures = 0;
+                while (writing.get()) {
+                    if (!service.getAllChats(SENDER, Collections.emptySet()).isPresent()) failures++;
+                    if (!service.getChat(SENDER, RECEIVER).isPresent()) failures++;
+                    if (!service.getPlatformUserByUri(RECEIVER).isPresent()) failures++;
+                    service.getMessages(chat.id, null, 50);
+                    reads++;
+                }
+                return new int[] {reads, failures};
+            }));
+        }
+
+        start.countDown();
+
+        assertEquals(WRITES, (int) writer.get(2, TimeUnit.MINUTES));
+        int totalReads = 0;
+        for (Future<int[]> reader : readers) {
+            int[] result = reader.get(1, TimeUnit.MINUTES);
+            totalReads += result[0];
+            assertEquals("reads failed while a write was in progress", 0, result[1]);
+        }
+        pool.shutdown();
+
+        assertTrue("readers never ran alongside the writer", totalReads > 0);
+        assertEquals(WRITES, service.getAllMessages(chat).map(List::size).orElse(0).intValue());
+    }
+}
@@ -0,0 +1,63 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.PairStatus;
+import io.keychain.chat.models.chat.UserSource;
+
+/**
+ * Fixture shared by the database tests: a SQLiteDBService on a fresh file, and the chat between two
+ * paired users most tests write to.
+ */
+final class TestDatabase {
+    static final String SENDER = "sender-uri";
+    static final String RECEIVER = "receiver-uri";
+
+    private TestDatabase() {}
+
+    // Deletes whatever an earlier run left under 'name' and opens a new database there
+    static SQLiteDBService open(Context context, String name) {
+        context.deleteDatabase(name);
+        return new SQLiteDBService(context, name);
+    }
+
+    static void delete(Context context, SQLiteDBService service, String name) {
+        if (service != null) {
+            service.closeDatabase();
+        }
+        context.deleteDatabase(name);
+    }
+
+    static Chat createChat(SQLiteDBService service) {
+        return createChat(service, SENDER, RECEIVER);
+    }
+
+    // Saves both users as paired, named after their uri, and a chat between them
+    static Chat createChat(SQLiteDBService service, String sender, String receiver) {
+        service.saveUserProfile(sender, "S", PairStatus.PAIRED.getCode(), UserSource.MQTT.getCode(), sender, null);
+        service.saveUserProfile(receiver, "R", PairStatus.PAIRED.getCode(), UserSource.MQTT.getCode(), receiver, null);
+        Chat chat = new Chat(sender, receiver, null);
+        assertTrue(service.saveChat(chat).isPresent());
+        return chat;
+    }
+
+    // A message of the chat from SENDER to RECEIVER, ready for appendMessage
+    static ChatMessage message(Chat chat, String text) {
+        return message(chat, SENDER, RECEIVER, text);
+    }
+
+    static ChatMessage message(Chat chat, String sender, String receiver, String text) {
+        ChatMessage message = new ChatMessage();
+        message.chatId = chat.id;
+        message.sendOrRcvd = ChatDirection.send;
+        message.senderId = sender;
+        message.receiverId = receiver;
+        message.msg = text;
+        return message;
+    }
+}
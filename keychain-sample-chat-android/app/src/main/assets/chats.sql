@@ -9,21 +9,21 @@ CREATE TABLE users (
 );
 
 CREATE TABLE chats (
-    id TEXT PRIMARY KEY,
+    id INTEGER PRIMARY KEY,
     participantIds TEXT,
-    lastMsg TEXT,
-    timestamp TEXT NOT NULL
+    lastMsg BLOB,
+    timestamp INTEGER NOT NULL
 );
 
 CREATE TABLE messages (
-    id TEXT PRIMARY KEY,
-    chatId TEXT,
-    sendOrRcvd TEXT NOT NULL,
+    id INTEGER PRIMARY KEY,
+    chatId INTEGER,
+    sendOrRcvd INTEGER NOT NULL,
     senderId TEXT,
     receiverId TEXT,
     imageUrl TEXT,
-    msg TEXT,
-    timestamp TEXT NOT NULL,
+    msg BLOB,
+    timestamp INTEGER NOT NULL,
     FOREIGN KEY (senderId)
       REFERENCES users (id)
          ON DELETE CASCADE
@@ -33,3 +33,45 @@ CREATE TABLE messages (
          ON DELETE CASCADE
          ON UPDATE NO ACTION
 );
+
+CREATE TABLE chat_participants (
+    chatId INTEGER NOT NULL,
+    uri TEXT NOT NULL,
+    PRIMARY KEY (chatId, uri),
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+) WITHOUT ROWID;
+
+CREATE INDEX idx_chat_participants_uri ON chat_participants (uri, chatId);
+
+CREATE INDEX idx_messages_chat_timestamp ON messages (chatId, timestamp);
+
+CREATE INDEX idx_messages_image ON messages (imageUrl) WHERE imageUrl IS NOT NULL;
+
+CREATE TABLE seen_messages (
+    senderId TEXT NOT NULL,
+    msgId TEXT NOT NULL,
+    timestamp INTEGER NOT NULL,
+    PRIMARY KEY (senderId, msgId)
+) WITHOUT ROWID;
+
+CREATE TABLE chat_summaries (
+    owner TEXT NOT NULL,
+    chatId INTEGER NOT NULL,
+    peer TEXT NOT NULL,
+    peerName TEXT,
+    lastTimestamp INTEGER NOT NULL,
+    unreadCount INTEGER NOT NULL DEFAULT 0,
+    sortKey INTEGER NOT NULL,
+    PRIMARY KEY (owner, chatId),
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+) WITHOUT ROWID;
+
+CREATE INDEX idx_chat_summaries_owner_sort ON chat_summaries (owner, sortKey DESC);
+
+CREATE INDEX idx_chat_summaries_peer ON chat_summaries (peer);
@@ -0,0 +1,22 @@
+CREATE TABLE chat_participants (
+    chatId TEXT NOT NULL,
+    uri TEXT NOT NULL,
+    PRIMARY KEY (chatId, uri),
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+) WITHOUT ROWID;
+
+CREATE INDEX idx_chat_participants_uri ON chat_participants (uri, chatId);
+
+INSERT OR IGNORE INTO chat_participants (chatId, uri)
+    SELECT id, substr(participantIds, 1, instr(participantIds, '|') - 1)
+    FROM chats
+    WHERE instr(participantIds, '|') > 1;
+
+INSERT OR IGNORE INTO chat_participants (chatId, uri)
+    SELECT id, substr(participantIds, instr(participantIds, '|') + 1)
+    FROM chats
+    WHERE instr(participantIds, '|') > 0
+      AND length(participantIds) > instr(participantIds, '|');
@@ -0,0 +1 @@
+CREATE INDEX idx_messages_chat_timestamp ON messages (chatId, timestamp, id);
@@ -0,0 +1,71 @@
+DROP INDEX IF EXISTS idx_messages_chat_timestamp;
+
+DROP INDEX IF EXISTS idx_chat_participants_uri;
+
+ALTER TABLE messages RENAME TO messages_v3;
+
+ALTER TABLE chat_participants RENAME TO chat_participants_v3;
+
+ALTER TABLE chats RENAME TO chats_v3;
+
+CREATE TABLE chats (
+    id INTEGER PRIMARY KEY,
+    participantIds TEXT,
+    lastMsg BLOB,
+    timestamp INTEGER NOT NULL
+);
+
+CREATE TABLE messages (
+    id INTEGER PRIMARY KEY,
+    chatId INTEGER,
+    sendOrRcvd INTEGER NOT NULL,
+    senderId TEXT,
+    receiverId TEXT,
+    imageUrl TEXT,
+    msg BLOB,
+    timestamp INTEGER NOT NULL,
+    FOREIGN KEY (senderId)
+      REFERENCES users (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION,
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+);
+
+CREATE TABLE chat_participants (
+    chatId INTEGER NOT NULL,
+    uri TEXT NOT NULL,
+    PRIMARY KEY (chatId, uri),
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+) WITHOUT ROWID;
+
+INSERT INTO chats (id, participantIds, lastMsg, timestamp)
+    SELECT rowid, participantIds, CAST(lastMsg AS BLOB),
+           COALESCE(CAST(round((julianday(timestamp, 'utc') - 2440587.5) * 86400000) AS INTEGER), 0)
+    FROM chats_v3;
+
+INSERT INTO messages (id, chatId, sendOrRcvd, senderId, receiverId, imageUrl, msg, timestamp)
+    SELECT m.rowid, c.rowid, CASE m.sendOrRcvd WHEN 'send' THEN 0 ELSE 1 END,
+           m.senderId, m.receiverId, m.imageUrl, CAST(m.msg AS BLOB), CAST(m.timestamp AS INTEGER)
+    FROM messages_v3 m
+    LEFT JOIN chats_v3 c ON c.id = m.chatId;
+
+INSERT INTO chat_participants (chatId, uri)
+    SELECT c.rowid, p.uri
+    FROM chat_participants_v3 p
+    INNER JOIN chats_v3 c ON c.id = p.chatId;
+
+DROP TABLE messages_v3;
+
+DROP TABLE chat_participants_v3;
+
+DROP TABLE chats_v3;
+
+CREATE INDEX idx_chat_participants_uri ON chat_participants (uri, chatId);
+
+CREATE INDEX idx_messages_chat_timestamp ON messages (chatId, timestamp);
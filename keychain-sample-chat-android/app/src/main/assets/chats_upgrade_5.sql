@@ -0,0 +1,6 @@
+CREATE TABLE seen_messages (
+    senderId TEXT NOT NULL,
+    msgId TEXT NOT NULL,
+    timestamp INTEGER NOT NULL,
+    PRIMARY KEY (senderId, msgId)
+) WITHOUT ROWID;
@@ -0,0 +1,28 @@
+CREATE TABLE chat_summaries (
+    owner TEXT NOT NULL,
+    chatId INTEGER NOT NULL,
+    peer TEXT NOT NULL,
+    peerName TEXT,
+    lastTimestamp INTEGER NOT NULL,
+    unreadCount INTEGER NOT NULL DEFAULT 0,
+    sortKey INTEGER NOT NULL,
+    PRIMARY KEY (owner, chatId),
+    FOREIGN KEY (chatId)
+      REFERENCES chats (id)
+         ON DELETE CASCADE
+         ON UPDATE NO ACTION
+) WITHOUT ROWID;
+
+CREATE INDEX idx_chat_summaries_owner_sort ON chat_summaries (owner, sortKey DESC);
+
+CREATE INDEX idx_chat_summaries_peer ON chat_summaries (peer);
+
+INSERT OR IGNORE INTO chat_summaries (owner, chatId, peer, peerName, lastTimestamp, unreadCount, sortKey)
+    SELECT o.uri, c.id, p.uri,
+           CASE WHEN u.uri IS NULL THEN NULL ELSE COALESCE(u.firstName, '') || ' ' || COALESCE(u.lastName, '') END,
+           c.timestamp, 0,
+           CASE WHEN o.uri = 'ALL' OR p.uri = 'ALL' THEN 9223372036854775807 ELSE c.timestamp END
+    FROM chats c
+    INNER JOIN chat_participants o ON o.chatId = c.id
+    INNER JOIN chat_participants p ON p.chatId = c.id AND p.uri <> o.uri
+    LEFT JOIN users u ON u.uri = p.uri;
@@ -0,0 +1 @@
+CREATE INDEX idx_messages_image ON messages (imageUrl) WHERE imageUrl IS NOT NULL;
@@ -1,9 +1,21 @@
 package io.keychain.chat;
 
+import android.os.StrictMode;
+import android.provider.Settings;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import io.keychain.chat.services.database.QueryProfiler;
 import io.keychain.mobile.KeychainApplication;
+import io.keychain.mobile.threading.TaskRunner;
+import io.keychain.chat.services.MqttClientPool;
 import io.keychain.chat.services.MqttService;
+import io.keychain.chat.services.QosPolicy;
+import io.keychain.mobile.util.Utils;
 
 public class KeychainApp extends KeychainApplication {
     private static final String TAG = "KeychainApp";
@@ -11,28 +23,83 @@ public class KeychainApp extends KeychainApplication {
     // Properties
     public static final String PROPERTY_MQTT_HOST = "mqtt.host";
     public static final String PROPERTY_MQTT_PORT = "mqtt.port";
+    public static final String PROPERTY_MQTT_MAX_IN_FLIGHT = "mqtt.max_inflight";
+    public static final String PROPERTY_MQTT_MAX_PERSONAS = "mqtt.max_personas";
+    public static final String PROPERTY_MQTT_BATCH_WINDOW_MS = "mqtt.batch_window_ms";
     public static final String PROPERTY_MQTT_CHANNEL_PAIRING = "mqtt.channel.pairing";
     public static final String PROPERTY_MQTT_CHANNEL_CHATS = "mqtt.channel.chat";
     public static final String PROPERTY_TRUSTED_DIRECTORY_PREFIX = "trusted.directory.domain.prefix";
     public static final String PROPERTY_TRUSTED_DIRECTORY_HOST = "trusted.directory.host";
     public static final String PROPERTY_TRUSTED_DIRECTORY_PORT = "trusted.directory.port";
+    public static final String PROPERTY_DATABASE_WARM_UP = "database.warm_up";
+    public static final String PROPERTY_CHAT_BINARY_FORMAT = "chat.binary_format";
+    public static final String PROPERTY_DATABASE_PROFILE = "database.profile";
 
     public static final int DENOMINATION = 1;
-    private MqttService mqttService;
+    // Written on every move to the background while the profiler is installed; pull with
+    // adb pull /sdcard/Android/data/<applicationId>/files/query_profile.txt
+    public static final String QUERY_PROFILE_FILE = "query_profile.txt";
+    // Application scoped, so personas stay connected while activities come and go
+    private MqttClientPool mqttClientPool;
+    private MqttUseCase mqttUseCase;
+    // Writes the query profile, off the main thread and one dump at a time
+    private final TaskRunner profileRunner = new TaskRunner();
 
     @Override
     public void onCreate() {
         Log.d(TAG, "onCreate()");
         super.onCreate();
 
-        mqttService = new MqttService(
+        // Before anything opens the chat database, so every query is measured. Debug builds only,
+        // unless database.profile asks for it: timing costs every query a little.
+        if (BuildConfig.DEBUG || "true".equalsIgnoreCase(getApplicationProperty(PROPERTY_DATABASE_PROFILE))) {
+            QueryProfiler.setDefault(new QueryProfiler(QueryProfiler.DEFAULT_SLOW_QUERY_MS, Utils::IsUiThread));
+        }
+
+        if (BuildConfig.DEBUG) {
+            // Database and file access belong on worker threads (see AsyncChatRepository); log any on the main thread
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyLog()
+                    .build());
+        }
+
+        mqttClientPool = new MqttClientPool(
                 getApplicationContext().getDir("mqtt", MODE_PRIVATE).getAbsolutePath(),
+                Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID),
                 getApplicationProperty(KeychainApp.PROPERTY_MQTT_HOST),
-                Integer.parseInt(getApplicationProperty(KeychainApp.PROPERTY_MQTT_PORT))
+                Integer.parseInt(getApplicationProperty(KeychainApp.PROPERTY_MQTT_PORT)),
+                getPositiveInt(KeychainApp.PROPERTY_MQTT_MAX_IN_FLIGHT, MqttService.DEFAULT_MAX_IN_FLIGHT),
+                QosPolicy.fromProperties(this::getApplicationProperty),
+                getPositiveInt(KeychainApp.PROPERTY_MQTT_MAX_PERSONAS, MqttClientPool.DEFAULT_MAX_CLIENTS)
         );
+        mqttUseCase = new MqttUseCase(
+                mqttClientPool,
+                "keychain-chat",
+                getApplicationProperty(KeychainApp.PROPERTY_MQTT_CHANNEL_PAIRING),
+                getApplicationProperty(KeychainApp.PROPERTY_MQTT_CHANNEL_CHATS)
+        );
+    }
+
+    public MqttUseCase getMqttUseCase() { return mqttUseCase; }
+
+    private int getPositiveInt(String property, int defaultValue) {
+        String value = getApplicationProperty(property);
+        try {
+            return value == null ? defaultValue : Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + property + ": " + value);
+            return defaultValue;
+        }
     }
 
-    public MqttService getMqttRepository() { return mqttService; }
+    @Override
+    public void onTerminate() {
+        // Only ever called on emulators; on a device the clients live until the process is killed
+        mqttUseCase.close();
+        super.onTerminate();
+    }
 
     @Override
     protected void onForeground() {
@@ -42,6 +109,27 @@ public class KeychainApp extends KeychainApplication {
     @Override
     protected void onBackground() {
         super.onBackground();
+        QueryProfiler profiler = QueryProfiler.getDefault();
+        if (profiler != null) {
+            profileRunner.executeAsync(() -> dumpQueryProfile(profiler), null);
+        }
+    }
+
+    // Runs on profileRunner's thread
+    private Void dumpQueryProfile(QueryProfiler profiler) {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            return null;
+        }
+
+        File file = new File(directory, QUERY_PROFILE_FILE);
+        try (Writer writer = new FileWriter(file)) {
+            profiler.dump(writer);
+            Log.d(TAG, "Query profile written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            Log.e(TAG, "IOException writing query profile: " + e.getMessage());
+        }
+        return null;
     }
 }
 
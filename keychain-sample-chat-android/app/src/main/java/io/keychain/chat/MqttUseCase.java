@@ -4,66 +4,145 @@ import static io.keychain.common.Constants.ALL;
 
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
-import io.keychain.chat.services.MqttService;
+import io.keychain.chat.services.MqttClientPool;
 import io.keychain.chat.services.channel.Channel;
 import io.keychain.chat.services.channel.ChannelStatus;
+import io.keychain.chat.services.channel.MessageEnvelope;
 import io.keychain.chat.services.channel.MqttChannel;
 
+/**
+ * MqttUseCase keeps an MQTT channel open for every persona used recently, each on its own client
+ * from the MqttClientPool, so switching personas does not reconnect and a persona that is not active
+ * keeps receiving.  Beyond the pool's size, the least recently active persona's channel is closed.
+ *
+ * It lives as long as the application process, and so do its clients: Android kills the process
+ * without telling the application, so #close is for tests and emulators.  Chat messages go to the
+ * chat callback whichever persona they arrive for; pairing messages only for the active one.  Messages with nowhere to go (no callback set,
+ * or pairing for another persona) are held in memory, unacknowledged, until they have.
+ */
 public class MqttUseCase {
     private static final String TAG = "PairUseCase";
+    // Messages sent but not yet acknowledged by the broker, kept across restarts; one per persona
+    public static final String OUTBOUND_JOURNAL = "mqtt_outbound.journal";
+    private static final String OUTBOUND_JOURNAL_PREFIX = "mqtt_outbound_";
+    private static final String OUTBOUND_JOURNAL_SUFFIX = ".journal";
+    // Beyond this many held messages, new ones are left unacknowledged for the broker to redeliver
+    private static final int MAX_HELD_MESSAGES = 1000;
+    public static final String NO_CHANNEL = "No open channel to send to ";
 
-    private final MqttService service;
-    private Channel mqttChannel;
+    // Receives chat messages for any persona in the pool
+    public interface ChatCallback {
+        // 'ack' acknowledges the message to the broker; it must be run exactly once
+        void onChatMessage(String persona, byte[] message, Runnable ack);
+    }
+
+    // A message waiting for a callback, with the ack that releases it at the broker
+    private static class HeldMessage {
+        final String persona;
+        final boolean pairing;
+        final byte[] message;
+        final Runnable ack;
+        HeldMessage(String persona, boolean pairing, byte[] message, Runnable ack) {
+            this.persona = persona;
+            this.pairing = pairing;
+            this.message = message;
+            this.ack = ack;
+        }
+    }
+
+    private final MqttClientPool pool;
+    // Persona uri -> its channel, least recently active first. Guarded by itself.
+    private final LinkedHashMap<String, Channel> mqttChannels = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, ChannelStatus> statuses = new HashMap<>();
+    private volatile String activePersona;
+    // Chat messages to the same recipient within this many ms go out as one envelope; 0 sends each on its own
+    private final long batchWindowMs;
     private final String pairingChannel;
     private final String chatChannel;
-    private boolean mqttConnected;
-    private Consumer<byte[]> pairCallback;
-    private Consumer<byte[]> chatCallback;
+    private volatile Consumer<byte[]> pairCallback;
+    private volatile ChatCallback chatCallback;
+    // Guarded by itself
+    private final List<HeldMessage> heldMessages = new ArrayList<>();
     private final String pairingDomain;
 
-    public MqttUseCase(MqttService service, String domain, String pairingChannel, String chatChannel) {
-        this.service = service;
+    public MqttUseCase(MqttClientPool pool, String domain, String pairingChannel, String chatChannel) {
+        this.pool = pool;
         this.pairingChannel = pairingChannel;
         this.chatChannel = chatChannel;
         this.pairingDomain = KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_TRUSTED_DIRECTORY_PREFIX) + domain;
+        this.batchWindowMs = getBatchWindowMs();
+    }
+
+    private static long getBatchWindowMs() {
+        String value = KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_MQTT_BATCH_WINDOW_MS);
+        try {
+            return value == null ? 0 : Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + KeychainApp.PROPERTY_MQTT_BATCH_WINDOW_MS + ": " + value);
+            return 0;
+        }
     }
 
     public String getPairingDomain() {
         return pairingDomain;
     }
 
+    // Receives pairing messages for the active persona
     public void setPairCallback(Consumer<byte[]> callback) {
         pairCallback = callback;
+        deliverHeldMessages();
     }
-    public void setChatCallback(Consumer<byte[]> callback) {
+
+    public void setChatCallback(ChatCallback callback) {
         chatCallback = callback;
+        deliverHeldMessages();
     }
 
-    public void closeMqttChannel() {
-        if (mqttChannel != null) {
-            try {
-                mqttChannel.close();
-            } catch (IOException e) {
-                Log.w(TAG, "Exception closing MQTT channel: " + e.getMessage());
-            }
-        }
-        mqttChannel = null;
+    /**
+     * The callbacks' owner is going away.  Channels stay open, so every persona keeps receiving; what
+     * arrives is held until callbacks are set again.
+     */
+    public void detach() {
+        chatCallback = null;
+        pairCallback = null;
     }
 
-    public void sendToMqttPairing(String uri, byte[] message) {
-        sendToMqtt(pairingChannel + uri, message);
+    // These complete when the broker has the message, and exceptionally if it was not accepted for sending
+    // (see Channel#send). They send as the active persona.
+    public CompletableFuture<Void> sendToMqttPairing(String uri, byte[] message) {
+        return sendToMqtt(pairingChannel + uri, message);
     }
-    public void sendToMqttChat(String uri, byte[] message) {
-        sendToMqtt(chatChannel + uri, message);
+    // Batched with other chat messages by the channel, if there is a batch window
+    public CompletableFuture<Void> sendToMqttChat(String uri, byte[] message) {
+        return sendToMqtt(chatChannel + uri, message);
     }
 
-    private void sendToMqtt(String topic, byte[] message) {
-        if (mqttChannel != null) {
-            mqttChannel.send(topic, message);
+    private CompletableFuture<Void> sendToMqtt(String topic, byte[] message) {
+        Channel channel;
+        synchronized (mqttChannels) {
+            channel = activePersona != null ? mqttChannels.get(activePersona) : null;
         }
+        return channel != null ? channel.send(topic, message) : notAccepted(topic);
+    }
+
+    private static CompletableFuture<Void> notAccepted(String topic) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException(NO_CHANNEL + topic));
+        return future;
     }
 
     protected void close(Channel channel) {
@@ -76,36 +155,206 @@ public class MqttUseCase {
         }
     }
 
-    protected void updateMqttStatus(ChannelStatus status) {
-        mqttConnected = status == ChannelStatus.CONNECTED;
+    protected void updateMqttStatus(String persona, ChannelStatus status) {
+        synchronized (mqttChannels) {
+            statuses.put(persona, status);
+        }
     }
 
     protected boolean isMqttConnected() {
-        return mqttChannel != null && mqttConnected;
+        synchronized (mqttChannels) {
+            String persona = activePersona;
+            return persona != null && mqttChannels.containsKey(persona) && statuses.get(persona) == ChannelStatus.CONNECTED;
+        }
     }
 
+    /**
+     * Makes the persona the active one, opening its channel unless it is open already.  Other personas'
+     * channels stay open, up to the size of the pool.  If its channel cannot be opened, the active
+     * persona stays as it was.
+     */
     public void openMqttChannel(String activePersonaUri) {
-        if (mqttChannel != null || activePersonaUri == null) return;
+        if (activePersonaUri == null) return;
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (mqttChannels) {
+            // a get moves the persona to the most recently active end
+            if (mqttChannels.get(activePersonaUri) == null) {
+                String[] topics = new String[] {
+                        pairingChannel + activePersonaUri,
+                        chatChannel + activePersonaUri,
+                        chatChannel + ALL
+                };
 
-        String[] topics = new String[] {
-                pairingChannel + activePersonaUri,
-                chatChannel + activePersonaUri,
-                chatChannel + ALL
+                try {
+                    mqttChannels.put(activePersonaUri, createMqttChannel(activePersonaUri, journalFile(activePersonaUri), topics));
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception opening outbound journal: " + e.getMessage());
+                    pool.release(activePersonaUri);
+                    return;
+                }
+            }
+            activePersona = activePersonaUri;
+
+            Iterator<String> personas = mqttChannels.keySet().iterator();
+            while (mqttChannels.size() - evicted.size() > pool.getMaxClients() && personas.hasNext()) {
+                String persona = personas.next();
+                if (!persona.equals(activePersonaUri)) {
+                    evicted.add(persona);
+                }
+            }
+        }
+
+        for (String persona : evicted) {
+            Log.i(TAG, "Closing MQTT channel of least recently used persona " + persona);
+            closeMqttChannel(persona);
+        }
+        deliverHeldMessages();
+    }
+
+    // Closes the persona's channel and frees its client; what it had not sent stays in its journal
+    public void closeMqttChannel(String persona) {
+        Channel channel;
+        synchronized (mqttChannels) {
+            channel = mqttChannels.remove(persona);
+            statuses.remove(persona);
+        }
+        if (channel != null) {
+            close(channel);
+            pool.release(persona);
+        }
+    }
+
+    // Closes every channel and the pool; what was not sent stays in the journals
+    public void close() {
+        List<String> personas;
+        synchronized (mqttChannels) {
+            personas = new ArrayList<>(mqttChannels.keySet());
+            activePersona = null;
+        }
+        for (String persona : personas) {
+            closeMqttChannel(persona);
+        }
+        pool.close();
+    }
+
+    // Each persona has its own journal; the first persona opened takes over the single journal from before
+    private File journalFile(String persona) {
+        File directory = KeychainApp.GetInstance().getContext().getFilesDir();
+        String name = UUID.nameUUIDFromBytes(persona.getBytes(StandardCharsets.UTF_8)).toString();
+        File journal = new File(directory, OUTBOUND_JOURNAL_PREFIX + name + OUTBOUND_JOURNAL_SUFFIX);
+        File legacy = new File(directory, OUTBOUND_JOURNAL);
+        if (!journal.exists() && legacy.exists() && !legacy.renameTo(journal)) {
+            Log.w(TAG, "Unable to take over " + legacy);
+        }
+        return journal;
+    }
+
+    // Hands each message of the envelope on; the envelope is acknowledged once all of them are
+    private void receiveEnvelope(String persona, byte[] envelope, Runnable complete) {
+        List<byte[]> messages;
+        try {
+            messages = MessageEnvelope.unwrap(envelope);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e.getMessage());
+            complete.run();
+            return;
+        }
+        if (messages.isEmpty()) {
+            complete.run();
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger(messages.size());
+        Runnable ack = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                complete.run();
+            }
         };
+        for (byte[] message : messages) {
+            receive(new HeldMessage(persona, false, message, ack));
+        }
+    }
+
+    private void receive(HeldMessage message) {
+        if (!deliver(message)) {
+            hold(message);
+        }
+    }
+
+    // Hands the message to its callback; false if there is none for it right now
+    private boolean deliver(HeldMessage message) {
+        if (message.pairing) {
+            Consumer<byte[]> callback = pairCallback;
+            if (callback == null || !message.persona.equals(activePersona)) {
+                return false;
+            }
+            try {
+                callback.accept(message.message);
+            } finally {
+                message.ack.run();
+            }
+            return true;
+        }
+
+        ChatCallback callback = chatCallback;
+        if (callback == null) {
+            return false;
+        }
+        callback.onChatMessage(message.persona, message.message, message.ack);
+        return true;
+    }
+
+    private void hold(HeldMessage message) {
+        synchronized (heldMessages) {
+            if (heldMessages.size() < MAX_HELD_MESSAGES) {
+                heldMessages.add(message);
+                return;
+            }
+        }
+        Log.w(TAG, "Too many messages waiting for a callback; leaving one on " + message.persona + " for the broker to redeliver");
+    }
+
+    private void deliverHeldMessages() {
+        List<HeldMessage> waiting;
+        synchronized (heldMessages) {
+            waiting = new ArrayList<>(heldMessages);
+            heldMessages.clear();
+        }
+        for (HeldMessage message : waiting) {
+            receive(message);
+        }
+    }
+
+    private Channel createMqttChannel(String persona, File journal, String[] topics) throws IOException {
+        return new MqttChannel(pool.get(persona), journal, batchWindowMs, topics) {
+            @Override
+            protected boolean canBatch(String destination) {
+                // only chat topics unwrap envelopes
+                return destination.startsWith(chatChannel);
+            }
 
-        mqttChannel = new MqttChannel(service, topics) {
             @Override
             public void onReceive(String source, byte[] message) {
+                // every message is handled with its ack below
+            }
+
+            @Override
+            public void onReceive(String source, byte[] message, Runnable complete) {
                 if (source.startsWith(pairingChannel)) {
-                    pairCallback.accept(message);
+                    receive(new HeldMessage(persona, true, message, complete));
+                } else if (source.startsWith(chatChannel) && MessageEnvelope.isEnvelope(message)) {
+                    receiveEnvelope(persona, message, complete);
                 } else if (source.startsWith(chatChannel)) {
-                    chatCallback.accept(message);
+                    receive(new HeldMessage(persona, false, message, complete));
+                } else {
+                    super.onReceive(source, message, complete);
                 }
             }
 
             @Override
             public void onStatusChange(ChannelStatus status) {
-                updateMqttStatus(status);
+                updateMqttStatus(persona, status);
             }
         };
     }
@@ -1,20 +1,42 @@
 package io.keychain.chat.interfaces;
 
 import android.graphics.Bitmap;
-import android.media.Image;
 
+import androidx.annotation.WorkerThread;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import io.keychain.chat.models.chat.Chat;
 import io.keychain.chat.models.chat.ChatDirection;
 import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.ChatSummary;
 import io.keychain.chat.models.chat.User;
+import io.keychain.chat.services.database.InvalidationTracker;
 
+// Every call may hit the database; use AsyncChatRepository from the main thread
+@WorkerThread
 public interface ChatRepository {
 
+    // 'observer' is told which rows of these tables each committed write inserted, updated or deleted
+    void addObserver(InvalidationTracker.Observer observer, String... tables);
+
+    void removeObserver(InvalidationTracker.Observer observer);
+
+    // Completes with true once the database is open and upgraded, false if it could not be opened.
+    // The database opens in the background; every other call waits for it.
+    CompletableFuture<Boolean> whenReady();
+
+    // Reads the owner's chat list and the first page of its top chats in the background, so the
+    // first screens after login are served from memory. Completes when done.
+    CompletableFuture<Void> warmUp(String owner);
+
     Optional<Map<String, User>> getPlatformUsers(Set<String> filterBy);
 
     Optional<User> getPlatformUser(String recordId);
@@ -28,14 +50,63 @@ public interface ChatRepository {
 
     boolean updateUserProfile(String firstName, String lastName, int status, String uri);
 
+    // Inserts users that are not stored yet and updates the name and status of those that are, in one transaction.
+    // Users are matched by uri; their id is ignored. Returns the rows that were inserted or changed.
+    Optional<List<User>> upsertUsers(Collection<User> users);
+
     Optional<List<Chat>> getAllChats(String senderId, Set<String> personaIds);
 
     Optional<Chat> getChat(String senderId, String receiverId);
 
+    // The chat list of this persona, most recent first with the ALL chat on top. One indexed query,
+    // no per-row lookups.
+    Optional<List<ChatSummary>> getChatSummaries(String owner);
+
+    // The owner's summaries of just these chats, e.g. the ones an InvalidationTracker reported as changed.
+    // A chat missing from the result has no summary for this owner (any more).
+    Optional<List<ChatSummary>> getChatSummaries(String owner, Collection<String> chatIds);
+
+    // Clears the owner's unread count for this chat. Returns true if there was anything to clear.
+    boolean markChatRead(String chatId, String owner);
+
     Optional<List<ChatMessage>> getAllMessages(Chat chat);
 
+    // Returns up to 'limit' messages of the chat that are older than 'before', newest first.
+    // Pass null for 'before' to get the most recent page.
+    Optional<List<ChatMessage>> getMessages(String chatId, ChatMessage before, int limit);
+
+    // Loads every message into memory; use exportMessages for backups
     Optional<List<ChatMessage>> getAllMessages(String uri);
 
+    // Writes every message 'uri' sent or received to 'out' as NDJSON, oldest first, without loading them all.
+    // 'out' is flushed, not closed. Returns the number of messages written.
+    Optional<Long> exportMessages(String uri, OutputStream out);
+
+    // Stores the messages of an exportMessages stream in batches, creating chats as needed. 'in' is not closed.
+    // Returns the number of messages stored.
+    Optional<Long> importMessages(InputStream in);
+
+    // Retention. Each delete removes at most 'limit' rows in one short transaction, so callers can loop
+    // without holding up other writers, and returns how many rows it removed.
+
+    // Deletes the oldest messages sent before 'timestamp' (epoch millis)
+    int deleteMessagesOlderThan(long timestamp, int limit);
+
+    // Deletes messages of the chat other than its newest 'keep'
+    int deleteMessagesBeyond(String chatId, int keep, int limit);
+
+    // Deletes the oldest messages while the messages take up more than 'maxBytes'
+    int deleteOldestMessagesOver(long maxBytes, int limit);
+
+    // Ids of the chats holding more than 'count' messages
+    Optional<List<String>> getChatsWithMoreMessagesThan(int count);
+
+    // Forgets ids of inbound messages seen before 'timestamp' (epoch millis)
+    int deleteSeenMessagesOlderThan(long timestamp, int limit);
+
+    // Frees up to 'maxPages' unused database pages. Returns how many are still unused.
+    long reclaimSpace(int maxPages);
+
     // Returns the record id
     Optional<String> saveChat(Chat chat);
 
@@ -46,6 +117,17 @@ public interface ChatRepository {
     // Returns the record id
     Optional<String> saveMessage(String chatId, String senderId, String msg, ChatDirection direction, Chat chat);
 
-    // Returns the record id
-    Optional<String> savePhotoMessage(String senderUri, Image image, Chat chat);
+    // Stores the message and makes it the last message of its chat in a single transaction.
+    // chatId, senderId, receiverId, msg and sendOrRcvd must be set; id and timestamp are filled in.
+    // A message whose remoteId was already seen from the same sender is not stored again.
+    // Returns the stored message.
+    Optional<ChatMessage> appendMessage(ChatMessage message);
+
+    // Same as appendMessage for a group of messages, committed together in one transaction.
+    // Returns the messages that were stored; invalid or conflicting ones are left out.
+    Optional<List<ChatMessage>> appendMessages(List<ChatMessage> messages);
+
+    // True if a message with this id from this sender has already been appended (see ChatMessage.remoteId).
+    // Most calls are answered from memory without touching the database.
+    boolean isDuplicateMessage(String senderId, String remoteId);
 }
@@ -22,6 +22,14 @@ public class Chat {
         this.timestamp = LocalDateTime.now();
     }
 
+    // For chats that already have an id, e.g. read back from the database; no new id is generated
+    public Chat(String id, List<String> participantIds, String lastMsg, LocalDateTime timestamp) {
+        this.id = id;
+        this.participantIds = participantIds;
+        this.lastMsg = lastMsg;
+        this.timestamp = timestamp;
+    }
+
     public String id;
 
     public List<String> participantIds;
@@ -1,17 +1,29 @@
 package io.keychain.chat.models.chat;
 
+import java.util.Arrays;
+
 public enum ChatDirection {
     // Keep as lower case. iPhone chat app will fail to decode the message if uppercase.
-    send("send"),
-    receive("receive");
+    send("send", 0),
+    receive("receive", 1);
 
     private String direction;
 
-    ChatDirection(String direction) {
+    // Stored in messages.sendOrRcvd
+    private final int code;
+
+    ChatDirection(String direction, int code) {
         this.direction = direction;
+        this.code = code;
     }
 
     public String getDirection() {
         return direction;
     }
+
+    public int getCode() { return code; }
+
+    public static ChatDirection fromInt(int code) {
+        return Arrays.stream(values()).filter(d -> d.code == code).findFirst().orElse(null);
+    }
 }
@@ -16,4 +16,7 @@ public class ChatMessage {
     public String msg;
 
     public Long timestamp;
+
+    // Id the sender gave this message on the wire. Only used to drop redeliveries, never sent.
+    public transient String remoteId;
 }
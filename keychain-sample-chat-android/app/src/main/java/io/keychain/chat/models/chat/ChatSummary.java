@@ -0,0 +1,33 @@
+package io.keychain.chat.models.chat;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+/**
+ * One row of a persona's chat list, kept up to date by the repository whenever a message is stored.
+ */
+public class ChatSummary {
+    public String chatId;
+
+    // Persona this row belongs to
+    public String owner;
+
+    // Other participant
+    public String peer;
+
+    public String peerName;
+
+    public LocalDateTime lastTimestamp;
+
+    public int unreadCount;
+
+    // Chat lists are ordered by this, descending
+    public long sortKey;
+
+    // Ciphertext of the last message, for when the preview is not cached yet
+    public String lastMsg;
+
+    public Chat toChat() {
+        return new Chat(chatId, Arrays.asList(owner, peer), lastMsg, lastTimestamp);
+    }
+}
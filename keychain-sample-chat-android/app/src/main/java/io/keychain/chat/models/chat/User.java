@@ -2,20 +2,21 @@ package io.keychain.chat.models.chat;
 
 import com.stfalcon.chatkit.commons.models.IUser;
 
+// Immutable: the repository caches and shares instances, so a changed user is a new User
 public class User implements IUser {
-    public String id;
+    public final String id;
 
-    public String firstName;
+    public final String firstName;
 
-    public String lastName;
+    public final String lastName;
 
-    public int status;
+    public final int status;
 
-    public int source;    // For later, maybe
+    public final int source;    // For later, maybe
 
-    public String photo;
+    public final String photo;
 
-    public String uri;
+    public final String uri;
 
     public User(String id, String firstName, String lastName, int status, int source, String photo, String uri) {
         this.id = id;
@@ -0,0 +1,108 @@
+package io.keychain.chat.services;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MqttClientPool keeps one MqttService, and so one broker connection, per persona, so every persona
+ * in the pool stays subscribed while another one is in use.
+ *
+ * The clients share one thread pool for their network I/O and keepalive pings, and one persistence
+ * directory (paho keeps each client's in-flight messages in its own folder under it).  A connected
+ * client keeps a receiver, a sender and a callback task running on the pool, so it is sized for
+ * 'maxClients' at once; callers must not hold more than that.
+ *
+ * Each client connects with an id derived from the device and its persona, the same every time, so
+ * the broker resumes its session (subscriptions and messages queued while it was away).
+ *
+ * Who uses a client decides when it is no longer needed: close whatever uses it (e.g. its
+ * MqttChannel) and then #release it, which closes the client.  #close closes every client left.
+ */
+public class MqttClientPool implements Closeable {
+    private static final String TAG = "MqttClientPool";
+    public static final int DEFAULT_MAX_CLIENTS = 4;
+    // receiver, sender and callback, plus a share of the pings and reconnect timers
+    private static final int THREADS_PER_CLIENT = 4;
+
+    private final String persistencePath;
+    // Null if the device has none, in which case every connection gets a new client id
+    private final String deviceId;
+    private final String host;
+    private final int port;
+    private final int maxInFlight;
+    private final QosPolicy qosPolicy;
+    private final int maxClients;
+    private final ScheduledExecutorService ioExecutor;
+    // Persona uri -> its client
+    private final Map<String, MqttService> clients = new HashMap<>();
+
+    public MqttClientPool(String persistencePath, String deviceId, String host, int port, int maxInFlight, QosPolicy qosPolicy,
+                          int maxClients) {
+        this.persistencePath = persistencePath;
+        this.deviceId = deviceId;
+        this.host = host;
+        this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.qosPolicy = qosPolicy;
+        this.maxClients = maxClients;
+        this.ioExecutor = Executors.newScheduledThreadPool(maxClients * THREADS_PER_CLIENT, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getMaxClients() {
+        return maxClients;
+    }
+
+    // The persona's client, created (not connected) if it has none yet
+    public synchronized MqttService get(String persona) {
+        MqttService client = clients.get(persona);
+        if (client == null) {
+            client = new MqttService(persistencePath, host, port, maxInFlight, qosPolicy, ioExecutor);
+            if (deviceId != null) {
+                client.setClientId(clientId(persona));
+            }
+            clients.put(persona, client);
+        }
+        return client;
+    }
+
+    private String clientId(String persona) {
+        return UUID.nameUUIDFromBytes((deviceId + "/" + persona).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    // Closes the persona's client and forgets it
+    public synchronized void release(String persona) {
+        MqttService client = clients.remove(persona);
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    public synchronized int size() {
+        return clients.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (MqttService client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+        ioExecutor.shutdown();
+    }
+}
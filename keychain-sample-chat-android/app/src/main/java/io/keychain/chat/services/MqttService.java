@@ -15,6 +15,7 @@ import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.ScheduledExecutorPingSender;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import java.util.HashMap;
@@ -22,13 +23,16 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import io.keychain.mobile.threading.TaskRunner;
 
 /**
  * This is a wrapper for MqttAsyncClient using a single connection.
- * For merchant, this is fine, because there's only 1 activity using MQTT.
- * For other apps, maybe extend it to use multiple MqttAndroidClients and pass in handles to some of the methods below.
+ * To stay connected as several personas at once, MqttClientPool keeps one of these per persona.
  *
  * MQTT is very stateful and very asynchronous.  Users must know exactly what state they are in before taking any actions.
  * For this reason, the repository is set up to assist in 2 ways:
@@ -42,10 +46,13 @@ public class MqttService {
     private MqttAsyncClient mqttClient;
 
     MqttConnectOptions options = new MqttConnectOptions();
-    private static final int mqttQos = 2;
     private static final long quiesceTimeout = 250;
+    // How long #close waits for the broker to take a DISCONNECT
+    private static final long disconnectTimeout = 1000;
     private static final int mqttConnectTimeout = 30;
     private static final int mqttKeepAliveSecs = 10;
+    // Messages published and not yet acknowledged by the broker, unless configured otherwise
+    public static final int DEFAULT_MAX_IN_FLIGHT = 10;
 
     // with just 1 client, you can only have 1 subscriber to a topic on the MqttAsyncClient level
     // we could have a layer above (this repository) which subscribes and manages a 1-N publish to others,
@@ -57,21 +64,38 @@ public class MqttService {
     private final Set<ConnectionListener> listeners;
     private ConnectionStatus status;
     private final TaskRunner taskRunner;
+    private final ExecutorService taskExecutor;
     private String clientId;
     private final String persistencePath;
     private final String host;
     private final int port;
+    private final int maxInFlight;
+    // Every publish goes through it, so at most maxInFlight are unacknowledged at a time
+    private final PublishPipeline publishPipeline;
+    // QoS of each topic, for publishing and subscribing
+    private final QosPolicy qosPolicy;
+    // Runs the client's network I/O and keepalive pings, shared with other clients; null for the client's own threads
+    private final ScheduledExecutorService ioExecutor;
 
     public MqttService(String persistencePath, String host, int port) {
+        this(persistencePath, host, port, DEFAULT_MAX_IN_FLIGHT, QosPolicy.uniform(), null);
+    }
+
+    public MqttService(String persistencePath, String host, int port, int maxInFlight, QosPolicy qosPolicy, ScheduledExecutorService ioExecutor) {
         topicCallbacks = new HashMap<>();
         status = ConnectionStatus.CLOSED;
         listeners = new HashSet<>();
         this.persistencePath = persistencePath;
         this.host = host;
         this.port = port;
+        this.maxInFlight = maxInFlight;
+        this.qosPolicy = qosPolicy;
+        this.ioExecutor = ioExecutor;
+        this.publishPipeline = new PublishPipeline(this::publishDirect, maxInFlight);
 
         // 1 worker thread, so all callbacks are sequential
-        taskRunner = new TaskRunner();
+        taskExecutor = Executors.newSingleThreadExecutor();
+        taskRunner = new TaskRunner(taskExecutor);
     }
 
     // Status listeners are NOT necessarily subscribers.  You can care about the status without subscribing, say if you only publish
@@ -117,7 +141,13 @@ public class MqttService {
         }
 
         try {
-            mqttClient = new MqttAsyncClient("tcp://" + host + ":" + port, clientId, persistence);
+            String serverUri = "tcp://" + host + ":" + port;
+            mqttClient = ioExecutor != null
+                    ? new MqttAsyncClient(serverUri, clientId, persistence, new ScheduledExecutorPingSender(ioExecutor), ioExecutor)
+                    : new MqttAsyncClient(serverUri, clientId, persistence);
+            // Messages are acknowledged through #completeMessage once the subscriber says so, which lets
+            // subscribers hold the ack until the message is durable. Unacked messages are redelivered.
+            mqttClient.setManualAcks(true);
         } catch (MqttException e) {
             Log.e(TAG, "Exception creating async client: " + e.getMessage());
             return;
@@ -145,6 +175,8 @@ public class MqttService {
                 @Override
                 public void messageArrived(String topic, MqttMessage msg) {
                     Log.i(TAG, "Message arrived on topic " + topic);
+                    // nobody is subscribed to this one, so nobody else will ack it
+                    completeMessage(topic, msg);
                 }
 
                 @Override
@@ -209,7 +241,7 @@ public class MqttService {
         }
 
         try {
-            return mqttClient.subscribe(topic, 2, null,
+            return mqttClient.subscribe(topic, qosPolicy.qosFor(topic), null,
                                         new IMqttActionListener() {
                                             @Override
                                             public void onSuccess(IMqttToken asyncActionToken) {
@@ -226,10 +258,10 @@ public class MqttService {
                                             @Override
                                             public void messageArrived(String topic, MqttMessage message) {
                                                 Log.i(TAG, "Message arrived on topic " + topic + " from #subscribe()");
-                                                completeMessage(topic, message);
                                                 // run async so we get out of here quickly
+                                                // the callback decides when the message is acked
                                                 taskRunner.executeAsync((Callable<Void>) () -> {
-                                                    cbp.callback.handleComms(message);
+                                                    cbp.callback.handleComms(message, () -> completeMessage(topic, message));
                                                     return null;
                                                 }, null);
                                             }
@@ -287,6 +319,8 @@ public class MqttService {
             options.setConnectionTimeout(mqttConnectTimeout);
             options.setKeepAliveInterval(mqttKeepAliveSecs);
             options.setCleanSession(false);
+            // the pipeline never has more in flight, so the client never refuses a publish for this
+            options.setMaxInflight(maxInFlight);
 
             return mqttClient.connect(options, this, new IMqttActionListener() {
                 @Override
@@ -328,25 +362,32 @@ public class MqttService {
     }
 
     public IMqttToken disconnectAndClose() {
-        if (mqttClient != null && mqttClient.isConnected()) {
+        MqttAsyncClient client = mqttClient;
+        if (client != null && client.isConnected()) {
             Log.i(TAG, "Disconnecting and closing mqttClient");
             status = ConnectionStatus.DISCONNECTING;
             publishStatusUpdate();
 
             try {
-                return mqttClient.disconnect(quiesceTimeout, null, new IMqttActionListener() {
+                return client.disconnect(quiesceTimeout, null, new IMqttActionListener() {
                     @Override
                     public void onSuccess(IMqttToken asyncActionToken) {
                         Log.i(TAG, "Disconnected mqttClient gracefully");
+                        if (mqttClient != client) {
+                            // #close took over
+                            return;
+                        }
                         status = ConnectionStatus.DISCONNECTED;
                         publishStatusUpdate();
 
                         try {
-                            mqttClient.close();
+                            client.close();
                         } catch (MqttException e) {
                             Log.e(TAG, "Exception closing client: " + e.getMessage());
                         } finally {
                             mqttClient = null;
+                            // the closed client will never acknowledge what is still in flight
+                            publishPipeline.failAll(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
                             status = ConnectionStatus.CLOSED;
                             publishStatusUpdate();
                         }
@@ -368,19 +409,76 @@ public class MqttService {
         return null;
     }
 
-    public IMqttDeliveryToken publishMessage(String topic, byte[] message) {
+    /**
+     * Closes the client whatever state it is in, fails what is still in flight, and stops the threads
+     * this service owns.  Returns without waiting for the broker.  The service cannot be used again.
+     */
+    public void close() {
+        // nobody is told about the disconnect, so nobody reconnects
+        synchronized (listeners) {
+            listeners.clear();
+        }
+        MqttAsyncClient client = mqttClient;
+        mqttClient = null;
+        status = ConnectionStatus.CLOSED;
+        publishPipeline.close();
+
+        if (client != null) {
+            // the last task before the executor stops: a forced disconnect waits on the network
+            taskRunner.executeAsync((Callable<Void>) () -> {
+                closeClient(client);
+                return null;
+            }, null);
+        }
+        taskExecutor.shutdown();
+    }
+
+    private static void closeClient(MqttAsyncClient client) {
         try {
-            return mqttClient.publish(topic, message, mqttQos, false);
+            // also stops a connect in progress, which would keep close from closing
+            client.disconnectForcibly(quiesceTimeout, disconnectTimeout);
         } catch (MqttException e) {
-            Log.e(TAG, "Exception publishing message: " + e.getMessage());
+            // e.g. it was not connected
+            Log.d(TAG, "Forced disconnect: " + e.getMessage());
+        }
+        try {
+            client.close(true);
+        } catch (MqttException e) {
+            Log.e(TAG, "Exception closing client: " + e.getMessage());
         }
-        return null;
+    }
+
+    /**
+     * Publishes through the pipeline: blocks while the in-flight window is full, retries failed attempts,
+     * and returns a future that completes when the broker has acknowledged the message, or exceptionally
+     * with the last error if it could not be delivered.
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] message) throws InterruptedException {
+        return publishPipeline.publish(topic, message);
+    }
+
+    // Messages published and not yet acknowledged or failed
+    public int getInFlightCount() {
+        return publishPipeline.inFlight();
+    }
+
+    private IMqttDeliveryToken publishDirect(String topic, byte[] message, IMqttActionListener callback) throws MqttException {
+        MqttAsyncClient client = mqttClient;
+        if (client == null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED);
+        }
+        return client.publish(topic, message, qosPolicy.qosFor(topic), false, null, callback);
     }
 
     private void completeMessage(String topic, MqttMessage msg) {
         Log.i(TAG, "Topic: " + topic + ", received: " + msg);
+        if (mqttClient == null) {
+            Log.w(TAG, "Client closed before message " + msg.getId() + " was completed; broker will redeliver it");
+            return;
+        }
         try {
-            mqttClient.messageArrivedComplete(msg.getId(), mqttQos);
+            // the QoS the broker delivered it with, which decides whether a PUBACK or a PUBCOMP is due
+            mqttClient.messageArrivedComplete(msg.getId(), msg.getQos());
         } catch (MqttException e) {
             Log.e(TAG, "Exception marking message arrived complete: " + e.getMessage());
         }
@@ -394,6 +492,18 @@ public class MqttService {
         public MqttAndroidClientCallback(String topic) { this.topic = topic; }
         public String getTopic() { return this.topic; }
         abstract public void handleComms(MqttMessage message);
+
+        /**
+         * Override to control when the message is acknowledged to the broker, e.g. only once it has been persisted.
+         * 'complete' must be run exactly once.  By default the message is acknowledged as soon as #handleComms returns.
+         */
+        public void handleComms(MqttMessage message, Runnable complete) {
+            try {
+                handleComms(message);
+            } finally {
+                complete.run();
+            }
+        }
     }
 
     private static class MqttAndroidClientCallbackPair {
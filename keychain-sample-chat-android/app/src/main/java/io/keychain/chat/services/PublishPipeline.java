@@ -0,0 +1,162 @@
+package io.keychain.chat.services;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PublishPipeline puts MqttService's publishes through a window of at most 'maxInFlight' messages the
+ * broker has not acknowledged yet, and tells the caller how each one ended through a future.
+ *
+ * #publish blocks while the window is full, so callers go as fast as the broker acknowledges and no
+ * faster.  A publish that fails, or that the client refuses, is tried again after a backoff, keeping
+ * its place in the window, up to 'maxAttempts' times; only then does its future fail.  A retried
+ * message can end up behind ones published after it.
+ */
+public class PublishPipeline implements Closeable {
+    private static final String TAG = "PublishPipeline";
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 10000;
+
+    // Hands one message to the client, e.g. MqttAsyncClient#publish
+    public interface Publisher {
+        IMqttDeliveryToken publish(String topic, byte[] message, IMqttActionListener callback) throws MqttException;
+    }
+
+    private class Pending implements IMqttActionListener {
+        final String topic;
+        final byte[] message;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        int attempts;
+
+        Pending(String topic, byte[] message) { this.topic = topic; this.message = message; }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            finish(this, null);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            retryOrFail(this, exception);
+        }
+    }
+
+    private final Publisher publisher;
+    private final int maxAttempts;
+    private final long retryDelayMs;
+    private final Semaphore window;
+    // Published and not finished yet; #failAll finishes them
+    private final Set<Pending> outstanding = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    public PublishPipeline(Publisher publisher, int maxInFlight) {
+        this(publisher, maxInFlight, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY_MS);
+    }
+
+    public PublishPipeline(Publisher publisher, int maxInFlight, int maxAttempts, long retryDelayMs) {
+        this.publisher = publisher;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMs = retryDelayMs;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Publishes the message once there is room in the window, waiting for it if needed.  The future
+     * completes when the broker has acknowledged the message, or exceptionally with the last error once
+     * every attempt failed or the pipeline was closed.
+     */
+    public CompletableFuture<Void> publish(String topic, byte[] message) throws InterruptedException {
+        window.acquire();
+        Pending pending = new Pending(topic, message);
+        outstanding.add(pending);
+        if (closed) {
+            finish(pending, new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        } else {
+            attempt(pending);
+        }
+        return pending.future;
+    }
+
+    private void attempt(Pending pending) {
+        if (pending.done.get()) {
+            return;
+        }
+        pending.attempts++;
+        try {
+            publisher.publish(pending.topic, pending.message, pending);
+        } catch (Exception e) {
+            retryOrFail(pending, e);
+        }
+    }
+
+    private void retryOrFail(Pending pending, Throwable error) {
+        if (closed || pending.attempts >= maxAttempts) {
+            finish(pending, error);
+            return;
+        }
+
+        // 1, 2, 4, 8... times the retry delay, capped
+        long delay = Math.min(MAX_RETRY_DELAY_MS, retryDelayMs << Math.min(pending.attempts - 1, 16));
+        try {
+            retryExecutor.schedule(() -> attempt(pending), delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // shut down by close
+            finish(pending, error);
+        }
+    }
+
+    // Completes the message's future and frees its place in the window, once
+    private void finish(Pending pending, Throwable error) {
+        if (!pending.done.compareAndSet(false, true)) {
+            return;
+        }
+        outstanding.remove(pending);
+        window.release();
+        if (error == null) {
+            pending.future.complete(null);
+        } else {
+            pending.future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Fails every message that has not finished yet, e.g. because the client they were published on was
+     * closed and will never acknowledge them.
+     */
+    public void failAll(Throwable cause) {
+        for (Pending pending : outstanding) {
+            finish(pending, cause);
+        }
+    }
+
+    // Messages published and not finished yet
+    public int inFlight() {
+        return outstanding.size();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        retryExecutor.shutdownNow();
+        failAll(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+    }
+}
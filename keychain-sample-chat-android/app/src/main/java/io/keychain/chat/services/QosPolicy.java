@@ -0,0 +1,91 @@
+package io.keychain.chat.services;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Which MQTT QoS MqttService publishes and subscribes with, by topic prefix.  The longest matching
+ * prefix wins; topics no prefix matches use the default.
+ *
+ * QoS 2's four-packet handshake only pays off for traffic that cannot tolerate a duplicate.  Chat
+ * messages carry ids the receiver dedupes on, so QoS 1 is enough for them; presence-style traffic
+ * that is stale by the time it would be resent can go at QoS 0.
+ *
+ * Read from application.properties with #fromProperties: each message class ('pairing', 'chat',
+ * 'presence') whose topic prefix is set in mqtt.channel.<class> gets the QoS in mqtt.qos.<class>.
+ */
+public class QosPolicy {
+    private static final String TAG = "QosPolicy";
+    public static final String PROPERTY_DEFAULT_QOS = "mqtt.qos.default";
+    public static final String CHANNEL_PROPERTY_PREFIX = "mqtt.channel.";
+    public static final String QOS_PROPERTY_PREFIX = "mqtt.qos.";
+    public static final String[] MESSAGE_CLASSES = { "pairing", "chat", "presence" };
+    public static final String INVALID_QOS_PROPERTY = "Invalid QoS property, ignoring it: ";
+    // What every topic used before there was a policy
+    public static final int DEFAULT_QOS = 2;
+
+    private final int defaultQos;
+    private final Map<String, Integer> qosByPrefix;
+
+    public QosPolicy(int defaultQos, Map<String, Integer> qosByPrefix) {
+        this.defaultQos = defaultQos;
+        this.qosByPrefix = Collections.unmodifiableMap(new HashMap<>(qosByPrefix));
+    }
+
+    // Every topic at DEFAULT_QOS
+    public static QosPolicy uniform() {
+        return new QosPolicy(DEFAULT_QOS, Collections.emptyMap());
+    }
+
+    // 'property' returns the value of a property, or null if it is not set
+    public static QosPolicy fromProperties(Function<String, String> property) {
+        Map<String, Integer> qosByPrefix = new HashMap<>();
+        for (String messageClass : MESSAGE_CLASSES) {
+            String prefix = property.apply(CHANNEL_PROPERTY_PREFIX + messageClass);
+            int qos = parse(property, QOS_PROPERTY_PREFIX + messageClass, -1);
+            if (prefix != null && !prefix.trim().isEmpty() && qos >= 0) {
+                qosByPrefix.put(prefix.trim(), qos);
+            }
+        }
+        return new QosPolicy(parse(property, PROPERTY_DEFAULT_QOS, DEFAULT_QOS), qosByPrefix);
+    }
+
+    public int qosFor(String topic) {
+        int qos = defaultQos;
+        int matched = -1;
+        for (Map.Entry<String, Integer> entry : qosByPrefix.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matched && topic.startsWith(prefix)) {
+                qos = entry.getValue();
+                matched = prefix.length();
+            }
+        }
+        return qos;
+    }
+
+    private static int parse(Function<String, String> property, String name, int defaultValue) {
+        String value = property.apply(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int qos = Integer.parseInt(value.trim());
+            if (qos >= 0 && qos <= 2) {
+                return qos;
+            }
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        Log.w(TAG, INVALID_QOS_PROPERTY + name + " = " + value);
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return "QosPolicy{defaultQos=" + defaultQos + ", qosByPrefix=" + qosByPrefix + "}";
+    }
+}
@@ -3,6 +3,7 @@ package io.keychain.chat.services.channel;
 import androidx.annotation.AnyThread;
 
 import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Channel is a simple interface intended to be used by Keychain communications layers.
@@ -21,7 +22,9 @@ import java.io.Closeable;
  * it in a threadsafe manner.  This has a performance cost and delay to updates.
  */
 public interface Channel extends Closeable {
-    void send(String destination, byte[] message);
+    // Completes when the transport has delivered the message, or exceptionally, right away, if it could not be
+    // accepted for sending, e.g. because too many are still undelivered
+    CompletableFuture<Void> send(String destination, byte[] message);
 
     @AnyThread
     void onReceive(String source, byte[] message);
@@ -0,0 +1,195 @@
+package io.keychain.chat.services.channel;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * ChatMessageCodec turns a ChatMessage into the payload sent to a peer and back.
+ *
+ * Two formats are read:
+ *   JSON, as sent by every client: the ChatMessage fields, with 'msg' Base64 encoded
+ *   binary v1: magic (3 bytes, "KCM"), version (byte), then id, senderId, receiverId, imageUrl as
+ *           length (int, -1 for null) and UTF-8 bytes, timestamp (long, Long.MIN_VALUE for null),
+ *           and msg as length (int) and its UTF-8 bytes, without Base64
+ * JSON starts with '{', so the first byte tells them apart.
+ *
+ * JSON is sent until a peer shows it reads binary: when binary is enabled, JSON messages carry a
+ * 'wireVersion' field, and a peer that sends one (or sends a binary message) gets binary from then
+ * on.  Peers that ignore the field, e.g. older clients on other platforms, keep getting JSON.  What
+ * was learned is kept in memory only.
+ *
+ * Thread safe.
+ */
+public class ChatMessageCodec {
+    public static final String NOT_A_CHAT_MESSAGE = "Payload is not a chat message";
+    public static final int BINARY_VERSION = 1;
+    // Tells the receiver of a JSON message which binary version the sender reads
+    public static final String WIRE_VERSION = "wireVersion";
+
+    public enum Format { JSON, BINARY }
+
+    private static final byte[] MAGIC = { 'K', 'C', 'M' };
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int NULL_LENGTH = -1;
+
+    // A JSON message as read, with the version its sender announced
+    private static class JsonMessage extends ChatMessage {
+        Integer wireVersion;
+    }
+
+    private final Gson gson = new Gson();
+    private final boolean binaryEnabled;
+    // Peers known to read binary messages
+    private final Set<String> binaryPeers = ConcurrentHashMap.newKeySet();
+
+    // With 'binaryEnabled' false every message is sent as JSON, but binary ones are still read
+    public ChatMessageCodec(boolean binaryEnabled) {
+        this.binaryEnabled = binaryEnabled;
+    }
+
+    public Format formatFor(String peerUri) {
+        return binaryEnabled && peerUri != null && binaryPeers.contains(peerUri) ? Format.BINARY : Format.JSON;
+    }
+
+    // Encodes the message in the format its receiver reads
+    public byte[] encode(ChatMessage message) {
+        return encode(message, formatFor(message.receiverId));
+    }
+
+    public byte[] encode(ChatMessage message, Format format) {
+        return format == Format.BINARY ? encodeBinary(message) : encodeJson(message);
+    }
+
+    /**
+     * Decodes a message in either format, and remembers whether its sender reads binary.
+     * Throws IllegalArgumentException if the payload is neither.
+     */
+    public ChatMessage decode(byte[] payload) {
+        ChatMessage message;
+        boolean readsBinary;
+        if (isBinary(payload)) {
+            message = decodeBinary(payload);
+            readsBinary = true;
+        } else {
+            JsonMessage json = decodeJson(payload);
+            readsBinary = json.wireVersion != null && json.wireVersion >= BINARY_VERSION;
+            message = json;
+        }
+
+        if (binaryEnabled && readsBinary && message.senderId != null) {
+            binaryPeers.add(message.senderId);
+        }
+        return message;
+    }
+
+    private byte[] encodeJson(ChatMessage message) {
+        JsonObject json = gson.toJsonTree(message).getAsJsonObject();
+        if (message.msg != null) {
+            json.addProperty("msg", Base64.getEncoder().encodeToString(message.msg.getBytes(StandardCharsets.UTF_8)));
+        }
+        if (binaryEnabled) {
+            json.addProperty(WIRE_VERSION, BINARY_VERSION);
+        }
+        return gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private JsonMessage decodeJson(byte[] payload) {
+        try {
+            JsonMessage message = gson.fromJson(new String(payload, StandardCharsets.UTF_8), JsonMessage.class);
+            if (message == null) {
+                throw new IllegalArgumentException(NOT_A_CHAT_MESSAGE);
+            }
+            if (message.msg != null) {
+                // the MIME decoder skips line breaks some encoders add
+                message.msg = new String(Base64.getMimeDecoder().decode(message.msg), StandardCharsets.UTF_8);
+            }
+            return message;
+        } catch (JsonParseException | IllegalArgumentException e) {
+            throw new IllegalArgumentException(NOT_A_CHAT_MESSAGE, e);
+        }
+    }
+
+    private static boolean isBinary(byte[] payload) {
+        return payload.length >= HEADER_SIZE && payload[0] == MAGIC[0] && payload[1] == MAGIC[1] && payload[2] == MAGIC[2];
+    }
+
+    private static byte[] encodeBinary(ChatMessage message) {
+        byte[] id = bytes(message.id);
+        byte[] senderId = bytes(message.senderId);
+        byte[] receiverId = bytes(message.receiverId);
+        byte[] imageUrl = bytes(message.imageUrl);
+        byte[] msg = bytes(message.msg);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size(id) + size(senderId) + size(receiverId)
+                + size(imageUrl) + 8 + size(msg));
+        buffer.put(MAGIC).put((byte) BINARY_VERSION);
+        put(buffer, id);
+        put(buffer, senderId);
+        put(buffer, receiverId);
+        put(buffer, imageUrl);
+        buffer.putLong(message.timestamp != null ? message.timestamp : Long.MIN_VALUE);
+        put(buffer, msg);
+        return buffer.array();
+    }
+
+    private static ChatMessage decodeBinary(byte[] payload) {
+        if (payload[MAGIC.length] != BINARY_VERSION) {
+            throw new IllegalArgumentException(NOT_A_CHAT_MESSAGE);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        buffer.position(HEADER_SIZE);
+        try {
+            ChatMessage message = new ChatMessage();
+            message.id = getString(buffer);
+            message.senderId = getString(buffer);
+            message.receiverId = getString(buffer);
+            message.imageUrl = getString(buffer);
+            long timestamp = buffer.getLong();
+            message.timestamp = timestamp != Long.MIN_VALUE ? timestamp : null;
+            message.msg = getString(buffer);
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException(NOT_A_CHAT_MESSAGE, e);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int size(byte[] value) {
+        return 4 + (value != null ? value.length : 0);
+    }
+
+    private static void put(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(NULL_LENGTH);
+        } else {
+            buffer.putInt(value.length).put(value);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException(NOT_A_CHAT_MESSAGE);
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,76 @@
+package io.keychain.chat.services.channel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageEnvelope carries several messages for the same destination in one payload, so they cost one
+ * publish instead of one each.
+ *
+ * The frame is:
+ *   magic (3 bytes, "KCE"), version (byte), message count (int), then per message: length (int), bytes
+ * Chat messages are either JSON, starting with '{', or binary, starting with "KCM" (see
+ * ChatMessageCodec), so a payload is either an envelope or a single message, never both.  Receivers
+ * must understand envelopes before senders start batching.
+ */
+public final class MessageEnvelope {
+    public static final String NOT_AN_ENVELOPE = "Payload is not a valid message envelope";
+
+    private static final byte[] MAGIC = { 'K', 'C', 'E' };
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    private MessageEnvelope() {}
+
+    public static byte[] wrap(List<byte[]> messages) {
+        int size = HEADER_SIZE;
+        for (byte[] message : messages) {
+            size += 4 + message.length;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(MAGIC).put(VERSION).putInt(messages.size());
+        for (byte[] message : messages) {
+            frame.putInt(message.length).put(message);
+        }
+        return frame.array();
+    }
+
+    // Whether the payload is an envelope this version can read
+    public static boolean isEnvelope(byte[] payload) {
+        return payload.length >= HEADER_SIZE
+                && payload[0] == MAGIC[0] && payload[1] == MAGIC[1] && payload[2] == MAGIC[2]
+                && payload[3] == VERSION;
+    }
+
+    /**
+     * The messages in the envelope, in the order they were wrapped.
+     * Throws IllegalArgumentException if the payload is not a complete envelope.
+     */
+    public static List<byte[]> unwrap(byte[] payload) {
+        if (!isEnvelope(payload)) {
+            throw new IllegalArgumentException(NOT_AN_ENVELOPE);
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(payload);
+        frame.position(MAGIC.length + 1);
+        int count = frame.getInt();
+        // every message takes at least its length
+        if (count < 0 || count > frame.remaining() / 4) {
+            throw new IllegalArgumentException(NOT_AN_ENVELOPE);
+        }
+
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = frame.remaining() >= 4 ? frame.getInt() : -1;
+            if (length < 0 || length > frame.remaining()) {
+                throw new IllegalArgumentException(NOT_AN_ENVELOPE);
+            }
+            byte[] message = new byte[length];
+            frame.get(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
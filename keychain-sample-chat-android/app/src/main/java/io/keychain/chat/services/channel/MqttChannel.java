@@ -3,13 +3,21 @@ package io.keychain.chat.services.channel;
 import android.os.ConditionVariable;
 import android.util.Log;
 
+import androidx.annotation.AnyThread;
+
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import io.keychain.chat.services.MqttService;
 
@@ -18,6 +26,18 @@ import io.keychain.chat.services.MqttService;
  * MqttService, which in turn uses MqttAsyncClient.
  *
  * Users of MqttChannel must implement #onReceive and #onStatusChange to handle business logic.
+ *
+ * Outgoing messages go through an OutboundJournal file first, and leave it only once the broker has
+ * acknowledged them, so messages sent while offline or not yet delivered when the process dies are
+ * sent, in order, the next time a channel is opened on the same file.  A message can therefore reach
+ * the broker twice (e.g. if the process died just before its acknowledgement); receivers dedupe.
+ * Within one channel, a failed publish is resent once everything published before and after it has
+ * settled, together with whatever after it failed too; what the broker acknowledged is not sent again.
+ *
+ * With a batch window, consecutive journal entries for a destination #canBatch accepts are published
+ * as one MessageEnvelope.  The publish thread waits out the window before draining the journal, so a
+ * burst sent within it goes out together.  Batches are built from the journal, so batched messages
+ * survive the process like any other, and a failed batch is resent like a single message.
  */
 public abstract class MqttChannel implements Channel {
     private static final String TAG = "MqttChannel";
@@ -26,17 +46,32 @@ public abstract class MqttChannel implements Channel {
     private int retryTimeout = 0;
     private static final int MAX_RETRY_TIMEOUT = 20000;
 
-    // Message buffer
-    private final Deque<MqttChannelMessage> messageQueue;
-    private static final int MAX_QUEUE_SIZE = 20;
+    // Messages not acknowledged by the broker yet
+    private final OutboundJournal journal;
+    // How long #send waits for space in a full journal before giving up on the message
+    private static final long SEND_TIMEOUT = 5000;
+    // Limits of one envelope
+    public static final int MAX_BATCH_MESSAGES = 50;
+    public static final int MAX_BATCH_BYTES = 256 * 1024;
+    // How long the publish thread lets messages gather before draining the journal; 0 publishes each on its own
+    private final long batchWindowMs;
+    public static final String NOT_ACCEPTED = "Message not accepted for sending to ";
+    // Futures #send returned, by journal sequence number, until the broker acknowledges the entry.
+    // Entries left in the journal by an earlier channel, numbered below firstSequence, have none.
+    private final Map<Long, CompletableFuture<Void>> deliveries = new ConcurrentHashMap<>();
+    private final long firstSequence;
+    // Publishes that have not completed yet, and the oldest entry in them that failed.  Guarded by settleLock.
+    private final Object settleLock = new Object();
+    private int inFlight;
+    private OutboundJournal.Entry firstFailed;
 
     /*
-        publishThread sleeps (waits) on 2 conditions - queueCondition and connectionCondition
-        When the queue has something in it, queueCondition is opened.
-        When the connection status is CONNECTED, connectedCondition is opened, and now it can drain the queue, then close queueCondition.
+        publishThread sleeps (waits) on 2 conditions - the journal having entries, and connectedCondition.
+        When the connection status is CONNECTED, connectedCondition is opened, and it publishes journal entries in order.
+        MqttService#publish holds it up while the in-flight window is full; each entry is acked in the journal
+        when its delivery future completes.
      */
     private final Thread publishThread;
-    private final ConditionVariable queueCondition = new ConditionVariable(false);
     private final ConditionVariable connectedCondition = new ConditionVariable(false);
     private volatile boolean shouldStop;
     private static final int CONDITION_TIMEOUT = 5000; // have a timeout for conditions so we don't leave the thread running forever
@@ -44,16 +79,17 @@ public abstract class MqttChannel implements Channel {
     // It just toggles the condition variable based on connected status
     private final MqttService.ConnectionListener statusListener;
 
-    class MqttChannelMessage {
-        final String destination;
-        final byte [] message;
-        MqttChannelMessage(String d, byte [] m) { this.destination = d; this.message = m; }
+    // 'journalFile' is created if needed; anything left in it from before is sent first
+    public MqttChannel(MqttService mqttService, File journalFile, String ...subscriptions) throws IOException {
+        this(mqttService, journalFile, 0, subscriptions);
     }
 
-    public MqttChannel(MqttService mqttService, String ...subscriptions) {
+    public MqttChannel(MqttService mqttService, File journalFile, long batchWindowMs, String ...subscriptions) throws IOException {
         mqtt = mqttService;
+        this.batchWindowMs = batchWindowMs;
         topics = new HashSet<>(subscriptions.length);
-        messageQueue = new ArrayDeque<>(MAX_QUEUE_SIZE);
+        journal = new OutboundJournal(journalFile);
+        firstSequence = journal.nextSequence();
 
         for (String subscription : subscriptions) {
             topics.add(subscription);
@@ -62,6 +98,11 @@ public abstract class MqttChannel implements Channel {
                 public void handleComms(MqttMessage message) {
                     onReceive(subscription, message.getPayload());
                 }
+
+                @Override
+                public void handleComms(MqttMessage message, Runnable complete) {
+                    onReceive(subscription, message.getPayload(), complete);
+                }
             });
         }
 
@@ -110,43 +151,149 @@ public abstract class MqttChannel implements Channel {
         statusListener.onConnectionStatusChange(mqtt.addStatusListener(statusListener));
 
         publishThread = new Thread(() -> {
-            while (!shouldStop) {
-                if (queueCondition.block(CONDITION_TIMEOUT)) {
-                    if (connectedCondition.block(CONDITION_TIMEOUT)) {
-                        synchronized (messageQueue) {
-                            // drain the queue
-                            while (!messageQueue.isEmpty()) {
-                                MqttChannelMessage msg = messageQueue.remove();
-                                mqtt.publishMessage(msg.destination, msg.message); // Note: we assume publish goes through
+            try {
+                while (!shouldStop) {
+                    if (journal.awaitEntries(CONDITION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        if (connectedCondition.block(CONDITION_TIMEOUT)) {
+                            if (batchWindowMs > 0) {
+                                // let a burst gather in the journal
+                                Thread.sleep(batchWindowMs);
                             }
-                            queueCondition.close();
+                            publishPending();
                         }
                     }
                 }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Publish thread interrupted");
             }
-        });
+        }, TAG);
 
         // always start the thread
         publishThread.start();
     }
 
+    /**
+     * Same as #onReceive(String, byte[]), but the implementation decides when the message is acknowledged
+     * to the broker by running 'complete' (exactly once), e.g. after it has been persisted.
+     * Until then the broker considers the message undelivered and will resend it after a reconnect.
+     * The default acknowledges right after #onReceive(String, byte[]) returns.
+     */
+    @AnyThread
+    public void onReceive(String source, byte[] message, Runnable complete) {
+        try {
+            onReceive(source, message);
+        } finally {
+            complete.run();
+        }
+    }
+
+    /**
+     * Whether messages to 'destination' may be published together in a MessageEnvelope, when there is a
+     * batch window.  Only return true for destinations whose receivers unwrap envelopes.
+     */
+    protected boolean canBatch(String destination) {
+        return false;
+    }
+
+    // Publishes journal entries in order until there are none left
+    private void publishPending() throws InterruptedException {
+        List<OutboundJournal.Entry> batch;
+        while (!shouldStop && !(batch = nextToPublish()).isEmpty()) {
+            List<OutboundJournal.Entry> published = batch;
+            OutboundJournal.Entry first = batch.get(0);
+            mqtt.publish(first.destination, payload(batch)).whenComplete((result, error) -> settled(published, error));
+        }
+    }
+
+    private static byte[] payload(List<OutboundJournal.Entry> batch) {
+        if (batch.size() == 1) {
+            return batch.get(0).message;
+        }
+        List<byte[]> messages = new ArrayList<>(batch.size());
+        for (OutboundJournal.Entry entry : batch) {
+            messages.add(entry.message);
+        }
+        return MessageEnvelope.wrap(messages);
+    }
+
+    // The next journal entries to publish together, or none.  After a failure, takes nothing new
+    // until #settled has rewound the journal, so no entry is handed out twice.
+    private List<OutboundJournal.Entry> nextToPublish() throws InterruptedException {
+        synchronized (settleLock) {
+            while (firstFailed != null) {
+                if (shouldStop) {
+                    return new ArrayList<>();
+                }
+                settleLock.wait(CONDITION_TIMEOUT);
+            }
+            List<OutboundJournal.Entry> batch = journal.pollBatch(this::canBatch, batchWindowMs > 0 ? MAX_BATCH_MESSAGES : 1, MAX_BATCH_BYTES);
+            if (!batch.isEmpty()) {
+                inFlight++;
+            }
+            return batch;
+        }
+    }
+
+    private void settled(List<OutboundJournal.Entry> batch, Throwable error) {
+        OutboundJournal.Entry first = batch.get(0);
+        if (error == null) {
+            for (OutboundJournal.Entry entry : batch) {
+                if (journal.ack(entry) && entry.sequence >= firstSequence) {
+                    // the broker can be faster than #send registering the future
+                    deliveries.computeIfAbsent(entry.sequence, sequence -> new CompletableFuture<>()).complete(null);
+                }
+            }
+        } else {
+            // MqttService already retried it
+            Log.w(TAG, "Publish of " + batch.size() + " to " + first.destination + " failed, will resend: " + error);
+        }
+
+        synchronized (settleLock) {
+            inFlight--;
+            if (error != null && (firstFailed == null || first.sequence < firstFailed.sequence)) {
+                firstFailed = first;
+            }
+            // Rewinding while later entries are still in flight would send them again, out of order.
+            // Once all have settled, resend from the oldest failure; the journal skips what was acknowledged.
+            if (inFlight == 0 && firstFailed != null) {
+                journal.rewind(firstFailed);
+                firstFailed = null;
+                settleLock.notifyAll();
+            }
+        }
+    }
+
     private void incrementRetryTimeout() {
         // 0, 2, 4, 8, 16, 20s
         if (retryTimeout == 0) retryTimeout = 2000;
         else retryTimeout = Math.min(MAX_RETRY_TIMEOUT, retryTimeout * 2);
     }
 
+    /**
+     * Writes the message to the journal; it is published from there once connected.  If the journal is
+     * full, waits up to SEND_TIMEOUT for deliveries to free space, then gives up on the message.
+     * The future completes when the broker has acknowledged the message, and exceptionally if the
+     * channel closes first; the message then stays in the journal for the next channel.
+     */
     @Override
-    public void send(String destination, byte[] message) {
-        MqttChannelMessage msg = new MqttChannelMessage(destination, message);
-        synchronized(messageQueue) {
-            if (!messageQueue.offer(msg)) {
-                Log.d(TAG, "Queue full; removing oldest element to push new one");
-                messageQueue.remove();
-                messageQueue.offer(msg);
+    public CompletableFuture<Void> send(String destination, byte[] message) {
+        try {
+            long sequence = journal.offer(destination, message, SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (sequence >= 0) {
+                CompletableFuture<Void> delivery = deliveries.computeIfAbsent(sequence, key -> new CompletableFuture<>());
+                delivery.whenComplete((result, error) -> deliveries.remove(sequence));
+                // a dependent stage, so callers cannot complete ours
+                return delivery.thenApply(Function.identity());
             }
-            queueCondition.open();
+            Log.w(TAG, "Outbound journal full; not sending to " + destination);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
         }
+        CompletableFuture<Void> rejected = new CompletableFuture<>();
+        rejected.completeExceptionally(new IOException(NOT_ACCEPTED + destination));
+        return rejected;
     }
 
     @Override
@@ -158,6 +305,12 @@ public abstract class MqttChannel implements Channel {
         }
         // stop the publish thread
         shouldStop = true;
+        publishThread.interrupt();
         mqtt.disconnectAndClose();
+        // what was not acknowledged stays in the file for the next channel
+        journal.close();
+        for (CompletableFuture<Void> delivery : deliveries.values()) {
+            delivery.cancel(false);
+        }
     }
 }
@@ -0,0 +1,425 @@
+package io.keychain.chat.services.channel;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * OutboundJournal holds the messages a channel has accepted but the broker has not acknowledged yet,
+ * in a memory-mapped file, so they survive the process being killed.
+ *
+ * The file is a ring of records after a small header:
+ *   header: magic, version, capacity, head, tail (ints), next sequence number (long)
+ *   record: state (byte), sequence number (long), destination length (short), message length (int),
+ *           destination, message
+ * Records are appended at tail.  #poll hands them out in order; #ack marks one acknowledged, and head
+ * moves past every acknowledged record at the front, which frees their space.  A record that does not
+ * fit before the end of the file starts over after the header, leaving a WRAP marker behind.  The
+ * sequence number tells a late duplicate ack apart from one for a newer record in the same place.
+ *
+ * head and tail are only written after the records they point past, so a process that dies part way
+ * through an append or ack leaves the journal as it was before it.  Nothing is forced to storage on
+ * each write: the kernel keeps the mapped pages of a killed process, and #close forces them.
+ *
+ * Thread safe.  Appends block while the journal is full, which is the backpressure for senders.
+ */
+public class OutboundJournal implements Closeable {
+    private static final String TAG = "OutboundJournal";
+    public static final String RESETTING_JOURNAL = "Journal file is not valid, starting a new one: ";
+    public static final String MESSAGE_TOO_LARGE = "Message does not fit in the journal: ";
+    // 1,000 chat messages of a few KB each
+    public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+    private static final int MAGIC = 0x4b434a31; // "KCJ1"
+    private static final int VERSION = 1;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 12;
+    private static final int TAIL_OFFSET = 16;
+    private static final int SEQUENCE_OFFSET = 20;
+    private static final int HEADER_SIZE = 28;
+    // state, sequence, destination length, message length
+    private static final int RECORD_SEQUENCE = 1;
+    private static final int RECORD_DESTINATION_LENGTH = RECORD_SEQUENCE + 8;
+    private static final int RECORD_MESSAGE_LENGTH = RECORD_DESTINATION_LENGTH + 2;
+    private static final int RECORD_HEADER_SIZE = RECORD_MESSAGE_LENGTH + 4;
+
+    private static final byte PENDING = 1;
+    private static final byte ACKED = 2;
+    // The rest of the file up to its end is unused; the next record is right after the header
+    private static final byte WRAP = 3;
+
+    public static class Entry {
+        // Where the entry is, for #ack
+        final int offset;
+        // Which one it is: numbered from 0 in the order appended, never reused
+        final long sequence;
+        public final String destination;
+        public final byte[] message;
+        Entry(int offset, long sequence, String destination, byte[] message) {
+            this.offset = offset;
+            this.sequence = sequence;
+            this.destination = destination;
+            this.message = message;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // Oldest record not acknowledged yet; equal to tail when empty
+    private int head;
+    // Where the next record is written
+    private int tail;
+    // Next record #poll hands out. Only in memory: after a restart everything not acked is handed out again.
+    private int next;
+    // Records between head and tail, acked or not
+    private int count;
+    private long sequence;
+    private boolean closed;
+
+    public OutboundJournal(File path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    // 'capacity' is only used for a new file; an existing one keeps its own
+    public OutboundJournal(File path, int capacity) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        try {
+            int existing = file.length() >= HEADER_SIZE ? readCapacity(file) : 0;
+            if (existing >= HEADER_SIZE + RECORD_HEADER_SIZE) {
+                capacity = existing;
+            } else if (file.length() > 0) {
+                Log.w(TAG, RESETTING_JOURNAL + path);
+            }
+
+            this.capacity = capacity;
+            file.setLength(capacity);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+
+            if (existing != capacity) {
+                buffer.putInt(MAGIC_OFFSET, MAGIC);
+                buffer.putInt(VERSION_OFFSET, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(HEAD_OFFSET, HEADER_SIZE);
+                buffer.putInt(TAIL_OFFSET, HEADER_SIZE);
+                buffer.putLong(SEQUENCE_OFFSET, 0);
+            }
+            head = buffer.getInt(HEAD_OFFSET);
+            tail = buffer.getInt(TAIL_OFFSET);
+            sequence = buffer.getLong(SEQUENCE_OFFSET);
+            next = head;
+            count = countRecords();
+
+            // an ack may have been written without moving head yet
+            advanceHead();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static int readCapacity(RandomAccessFile file) throws IOException {
+        file.seek(MAGIC_OFFSET);
+        if (file.readInt() != MAGIC) {
+            return 0;
+        }
+        file.seek(VERSION_OFFSET);
+        if (file.readInt() != VERSION) {
+            return 0;
+        }
+        file.seek(CAPACITY_OFFSET);
+        int capacity = file.readInt();
+        return capacity == file.length() ? capacity : 0;
+    }
+
+    /**
+     * Appends a message, waiting up to 'timeout' for space if the journal is full.
+     * Returns false if there was no space in time or the journal is closed.
+     */
+    public boolean append(String destination, byte[] message, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(destination, message, timeout, unit) >= 0;
+    }
+
+    /**
+     * Same as #append, but returns the sequence number of the new entry (see Entry#sequence), or -1 if
+     * there was no space in time or the journal is closed.
+     */
+    public synchronized long offer(String destination, byte[] message, long timeout, TimeUnit unit) throws InterruptedException {
+        byte[] destinationBytes = destination.getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_HEADER_SIZE + destinationBytes.length + message.length;
+        if (destinationBytes.length > Short.MAX_VALUE || size > capacity - HEADER_SIZE - 1) {
+            throw new IllegalArgumentException(MESSAGE_TOO_LARGE + size + " bytes");
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int offset = -1;
+        while (!closed && (offset = reserve(size)) < 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (closed) {
+            return -1;
+        }
+
+        put(offset + RECORD_HEADER_SIZE, destinationBytes);
+        put(offset + RECORD_HEADER_SIZE + destinationBytes.length, message);
+        buffer.putLong(offset + RECORD_SEQUENCE, sequence);
+        buffer.putShort(offset + RECORD_DESTINATION_LENGTH, (short) destinationBytes.length);
+        buffer.putInt(offset + RECORD_MESSAGE_LENGTH, message.length);
+        buffer.put(offset, PENDING);
+        if (offset < tail && tail < capacity) {
+            buffer.put(tail, WRAP);
+        }
+
+        long appended = sequence;
+        tail = offset + size;
+        buffer.putLong(SEQUENCE_OFFSET, ++sequence);
+        buffer.putInt(TAIL_OFFSET, tail);
+        count++;
+        notifyAll();
+        return appended;
+    }
+
+    // The sequence number the next appended entry gets
+    public synchronized long nextSequence() {
+        return sequence;
+    }
+
+    // Offset a record of 'size' bytes can be written at, or -1 if there is no space for it now.
+    // Never lets tail catch up with head, which would look like an empty journal.
+    private int reserve(int size) {
+        if (count == 0) {
+            // empty: start at the front, so the record never has to wrap
+            head = tail = next = HEADER_SIZE;
+            buffer.putInt(HEAD_OFFSET, head);
+            buffer.putInt(TAIL_OFFSET, tail);
+        }
+        if (tail >= head) {
+            if (tail + size <= capacity) {
+                return tail;
+            }
+            return HEADER_SIZE + size < head ? HEADER_SIZE : -1;
+        }
+        return tail + size < head ? tail : -1;
+    }
+
+    /**
+     * The next entry that has not been handed out since the journal was opened or last rewound, or
+     * null if there is none.  Entries come out in the order they were appended.
+     */
+    public synchronized Entry poll() {
+        while (next != tail) {
+            next = unwrap(next);
+            if (next == tail) {
+                break;
+            }
+
+            int offset = next;
+            next += recordSize(offset);
+            if (buffer.get(offset) == PENDING) {
+                return read(offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like #poll, but if 'batchable' accepts the entry's destination, also hands out the entries right
+     * after it for the same destination, up to 'maxEntries' in all and 'maxBytes' of messages (the first
+     * entry is handed out whatever its size).  Empty if there is no entry.
+     */
+    public synchronized List<Entry> pollBatch(Predicate<String> batchable, int maxEntries, int maxBytes) {
+        List<Entry> batch = new ArrayList<>();
+        Entry first = poll();
+        if (first == null) {
+            return batch;
+        }
+        batch.add(first);
+        if (!batchable.test(first.destination)) {
+            return batch;
+        }
+
+        int bytes = first.message.length;
+        while (batch.size() < maxEntries) {
+            int position = next;
+            Entry entry = poll();
+            if (entry == null) {
+                break;
+            }
+            if (!entry.destination.equals(first.destination) || bytes + entry.message.length > maxBytes) {
+                // hand it out next time
+                next = position;
+                break;
+            }
+            batch.add(entry);
+            bytes += entry.message.length;
+        }
+        return batch;
+    }
+
+    // Blocks until there may be an entry to poll, or the timeout passes
+    public synchronized boolean awaitEntries(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!closed && !hasEntries()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return hasEntries();
+    }
+
+    private boolean hasEntries() {
+        return next != tail && unwrap(next) != tail;
+    }
+
+    /**
+     * Makes #poll hand out every entry that is not acknowledged yet again, from the oldest, e.g. after
+     * the connection they were sent on was lost.
+     */
+    public synchronized void rewind() {
+        next = head;
+        notifyAll();
+    }
+
+    /**
+     * Makes #poll hand out entries again from 'from' on, e.g. after it failed to send.  Entries after it
+     * that were acknowledged in the meantime are skipped.  Does nothing if 'from' is acknowledged already.
+     */
+    public synchronized void rewind(Entry from) {
+        if (!isPending(from)) {
+            return;
+        }
+        next = from.offset;
+        notifyAll();
+    }
+
+    /**
+     * Marks the entry acknowledged.  Its space is freed once every entry before it has been acknowledged
+     * too.  Returns false if it was acknowledged already, in which case nothing changes.
+     */
+    public synchronized boolean ack(Entry entry) {
+        if (!isPending(entry)) {
+            return false;
+        }
+        buffer.put(entry.offset, ACKED);
+        advanceHead();
+        notifyAll();
+        return true;
+    }
+
+    // False once the entry is acknowledged, even if a newer record took its place
+    private boolean isPending(Entry entry) {
+        int offset = entry.offset;
+        return !closed && buffer.get(offset) == PENDING && buffer.getLong(offset + RECORD_SEQUENCE) == entry.sequence;
+    }
+
+    // Entries not acknowledged yet
+    public synchronized int size() {
+        int pending = 0;
+        for (int offset = head; offset != tail; ) {
+            offset = unwrap(offset);
+            if (offset == tail) {
+                break;
+            }
+            if (buffer.get(offset) == PENDING) {
+                pending++;
+            }
+            offset += recordSize(offset);
+        }
+        return pending;
+    }
+
+    private void advanceHead() {
+        while (head != tail) {
+            int offset = unwrap(head);
+            if (offset != tail && buffer.get(offset) != ACKED) {
+                break;
+            }
+
+            int passed = head;
+            if (offset == tail) {
+                head = tail;
+            } else {
+                head = offset + recordSize(offset);
+                count--;
+            }
+            // after a rewind, next can be behind head; never leave it in space that is free now
+            if (next == passed || next == offset) {
+                next = head;
+            }
+        }
+        buffer.putInt(HEAD_OFFSET, head);
+    }
+
+    private int countRecords() {
+        int records = 0;
+        for (int offset = head; offset != tail; ) {
+            offset = unwrap(offset);
+            if (offset == tail) {
+                break;
+            }
+            records++;
+            offset += recordSize(offset);
+        }
+        return records;
+    }
+
+    // The offset a read at 'offset' really starts at: after the header if the file wraps there
+    private int unwrap(int offset) {
+        return offset == capacity || (offset != tail && buffer.get(offset) == WRAP) ? HEADER_SIZE : offset;
+    }
+
+    private int recordSize(int offset) {
+        return RECORD_HEADER_SIZE + buffer.getShort(offset + RECORD_DESTINATION_LENGTH) + buffer.getInt(offset + RECORD_MESSAGE_LENGTH);
+    }
+
+    private Entry read(int offset) {
+        byte[] destination = get(offset + RECORD_HEADER_SIZE, buffer.getShort(offset + RECORD_DESTINATION_LENGTH));
+        byte[] message = get(offset + RECORD_HEADER_SIZE + destination.length, buffer.getInt(offset + RECORD_MESSAGE_LENGTH));
+        return new Entry(offset, buffer.getLong(offset + RECORD_SEQUENCE), new String(destination, StandardCharsets.UTF_8), message);
+    }
+
+    // Absolute bulk get and put are not available before Java 13; go through a view of the mapping
+    private void put(int offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private byte[] get(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        buffer.force();
+        file.close();
+    }
+}
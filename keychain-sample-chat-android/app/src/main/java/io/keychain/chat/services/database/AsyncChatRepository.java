@@ -0,0 +1,152 @@
+package io.keychain.chat.services.database;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.keychain.mobile.threading.TaskRunner;
+
+/**
+ * AsyncChatRepository runs ChatRepository work off the main thread.
+ *
+ * Queries run on a small bounded pool and their Callback runs on the main thread, the same
+ * contract as TaskRunner: if the query throws, the exception is logged and the callback gets null.
+ *
+ * A query may be given a key.  Submitting a new query with the same key supersedes the previous
+ * one: if it has not started it never runs, and if it is already running its result is dropped.
+ * Use this for queries where only the newest answer matters, e.g. the messages of the chat the
+ * user just opened, so switching chats quickly does not queue up (or deliver) every chat in between.
+ */
+public class AsyncChatRepository implements Closeable {
+    private static final String TAG = "AsyncChatRepository";
+    // SQLite serializes writers anyway; two threads let a read proceed next to a write
+    private static final int THREADS = 2;
+    private static final int MAX_QUEUE_SIZE = 64;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // key -> the only query allowed to deliver a result for that key
+    private final Map<String, Query<?>> current = new ConcurrentHashMap<>();
+    // Every query submitted and not yet done, with or without a key, so close can cancel them all
+    private final Set<Query<?>> pending = ConcurrentHashMap.newKeySet();
+
+    public AsyncChatRepository() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUE_SIZE),
+                r -> new Thread(r, TAG + "-" + threadCount.incrementAndGet()));
+    }
+
+    /**
+     * Run 'query' on a worker thread and pass its result to 'callback' on the main thread.
+     * A non-null 'key' supersedes any earlier query submitted with the same key.
+     */
+    public <R> Future<R> execute(@Nullable String key, Callable<R> query, @Nullable TaskRunner.Callback<R> callback) {
+        Query<R> task = new Query<>(key, query, callback);
+        if (key != null) {
+            Query<?> previous = current.put(key, task);
+            if (previous != null) {
+                previous.cancel(false);
+                executor.remove(previous);
+            }
+        }
+
+        pending.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Query rejected, " + executor.getQueue().size() + " queued: " + e.getMessage());
+            task.cancel(false);
+            if (key != null) {
+                current.remove(key, task);
+            }
+            if (callback != null) {
+                handler.post(() -> callback.onComplete(null));
+            }
+        }
+        return task;
+    }
+
+    // Supersede whatever query is pending for 'key' without starting a new one
+    public void cancel(String key) {
+        Query<?> previous = current.remove(key);
+        if (previous != null) {
+            previous.cancel(false);
+            executor.remove(previous);
+        }
+    }
+
+    /**
+     * Stop accepting queries.  Queued queries never start, and callbacks of queries still pending,
+     * keyed or not, are not run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (Query<?> query : pending) {
+            query.cancel(false);
+        }
+        executor.getQueue().clear();
+        pending.clear();
+        current.clear();
+    }
+
+    private class Query<R> extends FutureTask<R> {
+        private final String key;
+        private final TaskRunner.Callback<R> callback;
+
+        Query(String key, Callable<R> callable, TaskRunner.Callback<R> callback) {
+            super(callable);
+            this.key = key;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            pending.remove(this);
+            if (isCancelled()) {
+                return;
+            }
+
+            R result = null;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Exception thrown from query: " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final R r = result;
+
+            handler.post(() -> {
+                // closed after the query finished but before its result got here
+                if (executor.isShutdown()) {
+                    return;
+                }
+                // a newer query with the same key may have been submitted while this one ran
+                if (key != null && !current.remove(key, this)) {
+                    return;
+                }
+                if (callback != null) {
+                    callback.onComplete(r);
+                }
+            });
+        }
+    }
+}
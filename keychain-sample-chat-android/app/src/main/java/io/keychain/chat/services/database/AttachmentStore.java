@@ -0,0 +1,460 @@
+package io.keychain.chat.services.database;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted, content-addressed storage for photos and other attachments.
+ *
+ * Attachments are referenced by the hex SHA-256 of their plaintext, so storing the same content twice
+ * keeps a single file.  Content is streamed through in CHUNK_SIZE pieces both ways: neither writing
+ * nor reading ever holds the whole attachment on the heap.
+ *
+ * File layout:
+ *   "KCA1" | ivLength (1) | iv | wrappedKeyLength (2) | wrappedKey | chunkSize (4) | records...
+ *   record: last (1) | ciphertextLength (4) | AES-GCM ciphertext + tag
+ *
+ * Every file has its own random AES-256 data key, wrapped by a key that never leaves the Android
+ * Keystore.  Chunks are encrypted with the data key in software (one Keystore call per file, not per
+ * chunk); each chunk's nonce is its index, and the index and 'last' flag are authenticated so chunks
+ * cannot be reordered, dropped or truncated without the read failing.
+ *
+ * Decoded thumbnails are kept in an LRU bounded by bitmap bytes.
+ */
+public class AttachmentStore {
+    private static final String TAG = "AttachmentStore";
+    private static final String DIRECTORY = "attachments";
+    private static final String FILE_SUFFIX = ".kca";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "keychain_chat_attachments";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] MAGIC = {'K', 'C', 'A', '1'};
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_BYTES = TAG_BITS / 8;
+    private static final int NONCE_BYTES = 12;
+    private static final int DATA_KEY_BYTES = 32;
+    // Thumbnails may use up to 1/16 of the heap
+    private static final int THUMBNAIL_CACHE_BYTES = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+
+    private final File directory;
+    private final SecureRandom random = new SecureRandom();
+    private final LruCache<String, Bitmap> thumbnails = new LruCache<String, Bitmap>(THUMBNAIL_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+
+    /**
+     * Receives the stream an attachment is written to, e.g. to compress a Bitmap straight into the store.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public AttachmentStore(Context context) {
+        this.directory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Store everything read from 'in' (which is not closed).  Returns the reference to store in
+     * ChatMessage.imageUrl or User.photo.
+     */
+    @WorkerThread
+    public String put(InputStream in) throws IOException, GeneralSecurityException {
+        return put(out -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        });
+    }
+
+    /**
+     * Store the remaining bytes of 'buffer', e.g. the JPEG plane of a camera Image, without copying it
+     * into one array first.
+     */
+    @WorkerThread
+    public String put(ByteBuffer buffer) throws IOException, GeneralSecurityException {
+        return put(out -> {
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        });
+    }
+
+    @WorkerThread
+    public String put(Content content) throws IOException, GeneralSecurityException {
+        File temp = new File(directory, UUID.randomUUID().toString() + ".tmp");
+        String ref;
+
+        try {
+            try (EncryptingOutputStream out = new EncryptingOutputStream(new FileOutputStream(temp))) {
+                content.writeTo(out);
+                out.close();
+                ref = out.getContentHash();
+            }
+
+            File target = fileFor(ref);
+            if (target.exists()) {
+                // Same content is already stored
+                Log.d(TAG, "Attachment already stored: " + ref);
+            } else if (!temp.renameTo(target)) {
+                throw new IOException("Unable to move attachment into place: " + ref);
+            }
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Unable to delete temporary attachment: " + temp.getName());
+            }
+        }
+
+        return ref;
+    }
+
+    public boolean contains(String ref) {
+        return isRef(ref) && fileFor(ref).exists();
+    }
+
+    /**
+     * Plaintext of the attachment.  The file is memory-mapped and decrypted one chunk at a time as
+     * the stream is read.
+     */
+    @WorkerThread
+    public InputStream open(String ref) throws IOException, GeneralSecurityException {
+        if (!isRef(ref)) {
+            throw new FileNotFoundException("Not an attachment reference: " + ref);
+        }
+
+        MappedByteBuffer mapped;
+        try (FileChannel channel = new FileInputStream(fileFor(ref)).getChannel()) {
+            // The mapping stays valid after the channel is closed
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return new DecryptingInputStream(mapped);
+    }
+
+    /**
+     * The attachment decoded as a bitmap no larger than needed for maxWidth x maxHeight, from the
+     * LRU when it was decoded at this size before.  Decoding is subsampled, so a 20 MB photo is never
+     * inflated at full resolution.
+     */
+    @WorkerThread
+    public Bitmap getThumbnail(String ref, int maxWidth, int maxHeight) throws IOException, GeneralSecurityException {
+        String key = ref + "@" + maxWidth + "x" + maxHeight;
+        Bitmap cached = thumbnails.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = open(ref)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, maxWidth, maxHeight);
+        options.inJustDecodeBounds = false;
+
+        Bitmap bitmap;
+        try (InputStream in = open(ref)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+
+        if (bitmap != null) {
+            thumbnails.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    public boolean delete(String ref) {
+        if (!isRef(ref)) {
+            return false;
+        }
+        // the thumbnails of this attachment, at every size; other attachments' stay cached
+        String prefix = ref + "@";
+        for (String key : thumbnails.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                thumbnails.remove(key);
+            }
+        }
+        return fileFor(ref).delete();
+    }
+
+    // Largest power of two that keeps the decoded image at least maxWidth x maxHeight
+    private static int sampleSize(int width, int height, int maxWidth, int maxHeight) {
+        int sampleSize = 1;
+        if (width <= 0 || height <= 0 || maxWidth <= 0 || maxHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= maxWidth && height / (sampleSize * 2) >= maxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @VisibleForTesting
+    File fileFor(String ref) {
+        return new File(directory, ref + FILE_SUFFIX);
+    }
+
+    // References are produced by this class; anything else must not be turned into a path
+    private static boolean isRef(String ref) {
+        return ref != null && ref.matches("[0-9a-f]{64}");
+    }
+
+    private static byte[] nonce(long index) {
+        return ByteBuffer.allocate(NONCE_BYTES).putLong(NONCE_BYTES - 8, index).array();
+    }
+
+    private static byte[] associatedData(long index, boolean last) {
+        return ByteBuffer.allocate(9).putLong(index).put((byte) (last ? 1 : 0)).array();
+    }
+
+    private static SecretKey getWrappingKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return ((KeyStore.SecretKeyEntry) keyStore.getEntry(KEY_ALIAS, null)).getSecretKey();
+        }
+
+        KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(256)
+                .build());
+        return generator.generateKey();
+    }
+
+    /**
+     * Encrypts into the file as it is written, computing the plaintext hash on the way.
+     * Holds at most one chunk of plaintext and one of ciphertext.
+     */
+    private class EncryptingOutputStream extends OutputStream {
+        private final OutputStream file;
+        private final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        private final SecretKeySpec dataKey;
+        private final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private int chunkLength;
+        private long chunkIndex;
+        private String contentHash;
+
+        EncryptingOutputStream(OutputStream file) throws IOException, GeneralSecurityException {
+            this.file = file;
+
+            byte[] keyBytes = new byte[DATA_KEY_BYTES];
+            random.nextBytes(keyBytes);
+            dataKey = new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+
+            Cipher wrap = Cipher.getInstance(TRANSFORMATION);
+            wrap.init(Cipher.ENCRYPT_MODE, getWrappingKey());
+            byte[] iv = wrap.getIV();
+            byte[] wrappedKey = wrap.doFinal(keyBytes);
+            Arrays.fill(keyBytes, (byte) 0);
+
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1 + iv.length + 2 + wrappedKey.length + 4);
+            header.put(MAGIC).put((byte) iv.length).put(iv).putShort((short) wrappedKey.length).put(wrappedKey).putInt(CHUNK_SIZE);
+            file.write(header.array());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (contentHash != null) {
+                throw new IOException("Stream closed");
+            }
+
+            digest.update(b, off, len);
+            while (len > 0) {
+                // A full chunk is only flushed once more data arrives, so the final chunk is always known
+                if (chunkLength == CHUNK_SIZE) {
+                    writeChunk(false);
+                }
+                int copy = Math.min(len, CHUNK_SIZE - chunkLength);
+                System.arraycopy(b, off, chunk, chunkLength, copy);
+                chunkLength += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(TAG_BITS, nonce(chunkIndex)));
+                cipher.updateAAD(associatedData(chunkIndex, last));
+                byte[] ciphertext = cipher.doFinal(chunk, 0, chunkLength);
+
+                file.write(last ? 1 : 0);
+                file.write(ByteBuffer.allocate(4).putInt(ciphertext.length).array());
+                file.write(ciphertext);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to encrypt attachment", e);
+            }
+            chunkIndex++;
+            chunkLength = 0;
+        }
+
+        String getContentHash() {
+            return contentHash;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (contentHash != null) {
+                return;
+            }
+            try {
+                writeChunk(true);
+                StringBuilder hex = new StringBuilder(64);
+                for (byte b : digest.digest()) {
+                    hex.append(String.format(Locale.ROOT, "%02x", b));
+                }
+                contentHash = hex.toString();
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Reads records straight out of the mapped file and decrypts them one at a time.
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private final MappedByteBuffer file;
+        private final SecretKeySpec dataKey;
+        private final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        private final ByteBuffer plaintext;
+        private long chunkIndex;
+        private boolean lastRead;
+
+        DecryptingInputStream(MappedByteBuffer file) throws IOException, GeneralSecurityException {
+            this.file = file;
+
+            byte[] magic = new byte[MAGIC.length];
+            file.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an attachment file");
+            }
+
+            byte[] iv = new byte[file.get() & 0xff];
+            file.get(iv);
+            byte[] wrappedKey = new byte[file.getShort() & 0xffff];
+            file.get(wrappedKey);
+            int chunkSize = file.getInt();
+
+            Cipher unwrap = Cipher.getInstance(TRANSFORMATION);
+            unwrap.init(Cipher.DECRYPT_MODE, getWrappingKey(), new GCMParameterSpec(TAG_BITS, iv));
+            byte[] keyBytes = unwrap.doFinal(wrappedKey);
+            dataKey = new SecretKeySpec(keyBytes, KeyProperties.KEY_ALGORITHM_AES);
+            Arrays.fill(keyBytes, (byte) 0);
+
+            plaintext = ByteBuffer.allocate(chunkSize);
+            plaintext.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!plaintext.hasRemaining() && !nextChunk()) {
+                return -1;
+            }
+            int length = Math.min(len, plaintext.remaining());
+            plaintext.get(b, off, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return plaintext.remaining();
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (lastRead) {
+                return false;
+            }
+            if (file.remaining() < 5) {
+                throw new IOException("Attachment is truncated");
+            }
+
+            boolean last = file.get() == 1;
+            int length = file.getInt();
+            if (length < TAG_BYTES || length > file.remaining() || length - TAG_BYTES > plaintext.capacity()) {
+                throw new IOException("Attachment is corrupt");
+            }
+
+            ByteBuffer ciphertext = file.slice();
+            ciphertext.limit(length);
+            file.position(file.position() + length);
+
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(TAG_BITS, nonce(chunkIndex)));
+                cipher.updateAAD(associatedData(chunkIndex, last));
+                plaintext.clear();
+                cipher.doFinal(ciphertext, plaintext);
+                plaintext.flip();
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Unable to decrypt attachment", e);
+            }
+
+            chunkIndex++;
+            lastRead = last;
+            if (last && file.hasRemaining()) {
+                throw new IOException("Attachment has trailing data");
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.keychain.chat.services.database;
+
+/**
+ * Bloom filter over string keys.
+ *
+ * mightContain never returns false for a key that was added, and returns true for a key that was
+ * not added with roughly the false positive rate it was sized for.  Adding more keys than
+ * expected raises that rate; results stay correct, only less useful.
+ */
+final class BloomFilter {
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int n = Math.max(expectedKeys, 1);
+        long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        // whole number of longs, capped so the array stays addressable
+        int words = (int) Math.min((m + 63) / 64, Integer.MAX_VALUE / 64);
+
+        this.bits = new long[words];
+        this.bitCount = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    synchronized void put(String key) {
+        long hash1 = hash(key);
+        long hash2 = mix(hash1) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    synchronized boolean mightContain(String key) {
+        long hash1 = hash(key);
+        long hash2 = mix(hash1) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Long.remainderUnsigned(hash1 + i * hash2, bitCount);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a over the key's chars
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // MurmurHash3 finalizer, spreads the bits so the two derived hashes are independent enough
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
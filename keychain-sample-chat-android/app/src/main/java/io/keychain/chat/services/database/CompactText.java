@@ -0,0 +1,113 @@
+package io.keychain.chat.services.database;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encoding for the ciphertext stored in messages.msg and chats.lastMsg.
+ *
+ * Values are BLOBs whose first byte tells how the rest is stored:
+ *   RAW     - UTF-8 text
+ *   DEFLATE - raw deflate of the UTF-8 text, used only when it is actually smaller
+ *
+ * Rows copied over by the version 4 upgrade hold the old TEXT value as bytes with no tag.
+ * Ciphertext is an XML document, so it never starts with a tag byte and is read as plain UTF-8.
+ */
+final class CompactText {
+    static final byte RAW = 0x00;
+    static final byte DEFLATE = 0x01;
+
+    private CompactText() {}
+
+    static byte[] encode(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = deflate(utf8);
+
+        byte[] encoded;
+        if (deflated != null && deflated.length < utf8.length) {
+            encoded = new byte[deflated.length + 1];
+            encoded[0] = DEFLATE;
+            System.arraycopy(deflated, 0, encoded, 1, deflated.length);
+        } else {
+            encoded = new byte[utf8.length + 1];
+            encoded[0] = RAW;
+            System.arraycopy(utf8, 0, encoded, 1, utf8.length);
+        }
+        return encoded;
+    }
+
+    static String decode(byte[] encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        if (encoded.length == 0) {
+            return "";
+        }
+
+        switch (encoded[0]) {
+            case RAW:
+                return new String(encoded, 1, encoded.length - 1, StandardCharsets.UTF_8);
+            case DEFLATE:
+                return new String(inflate(encoded), StandardCharsets.UTF_8);
+            default:
+                // Untagged value left by the upgrade from TEXT columns
+                return new String(encoded, StandardCharsets.UTF_8);
+        }
+    }
+
+    static boolean isEncoded(byte[] value) {
+        return value != null && value.length > 0 && (value[0] == RAW || value[0] == DEFLATE);
+    }
+
+    private static byte[] deflate(byte[] input) {
+        // Stop as soon as the output is not smaller than the input; it would be stored raw anyway
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            byte[] buffer = new byte[input.length];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    return null;
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] encoded) {
+        Inflater inflater = new Inflater(true);
+        try {
+            // Skip the tag; the padding byte at the end is the extra input a 'nowrap' Inflater may need
+            inflater.setInput(Arrays.copyOfRange(encoded, 1, encoded.length + 1));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated compressed text");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.keychain.chat.services.database;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * A lazy view of the rows of a cursor.  Each row is mapped when the iterator reaches it and is not
+ * kept afterwards, so a large read holds one cursor window and one object at a time instead of a
+ * copy of every row.  It can be iterated once; closing it closes the cursor.
+ */
+final class CursorIterable<T> implements Iterable<T>, Closeable {
+    private final Cursor cursor;
+    private final RowMapper<T> mapper;
+    private boolean iterated;
+
+    CursorIterable(Cursor cursor, Function<Cursor, RowMapper<T>> mapperFactory) {
+        this.cursor = cursor;
+        try {
+            this.mapper = mapperFactory.apply(cursor);
+        } catch (RuntimeException e) {
+            // e.g. a column the mapper needs is missing; the caller never gets a chance to close it
+            cursor.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("A CursorIterable can only be iterated once");
+        }
+        iterated = true;
+
+        return new Iterator<T>() {
+            // null until moveToNext has been called for the next row
+            private Boolean hasRow;
+
+            @Override
+            public boolean hasNext() {
+                if (hasRow == null) {
+                    hasRow = cursor.moveToNext();
+                }
+                return hasRow;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                hasRow = null;
+                return mapper.map(cursor);
+            }
+        };
+    }
+
+    // Maps the first row only, for lookups that match at most one
+    Optional<T> first() {
+        iterated = true;
+        return cursor.moveToFirst() ? Optional.ofNullable(mapper.map(cursor)) : Optional.empty();
+    }
+
+    List<T> toList() {
+        List<T> list = new ArrayList<>();
+        for (T row : this) {
+            list.add(row);
+        }
+        return list;
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
@@ -0,0 +1,176 @@
+package io.keychain.chat.services.database;
+
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * InvalidationTracker records which rows of which tables a write changed and tells the observers
+ * of those tables once the write has committed.
+ *
+ * SQLiteDBService reports every insert, update and delete here by table and row key (the key is
+ * whatever observers look rows up by: a chat id for chats and chat_summaries, a message id for
+ * messages, a uri for users).  Changes made inside a transaction are collected per thread and
+ * delivered in one Changes per table when the outermost transaction commits; if it rolls back
+ * they are discarded.  A change made outside a transaction is delivered at once.
+ *
+ * Observers run on the thread that committed, after the commit, so a query they make sees the
+ * change.  They should hand anything slow to another thread.
+ */
+public class InvalidationTracker {
+    private static final String TAG = "InvalidationTracker";
+
+    public interface Observer {
+        @WorkerThread
+        void onChanged(Changes changes);
+    }
+
+    /**
+     * Rows of one table changed by one transaction.  A row inserted and then updated by the same
+     * transaction is only reported as inserted; a row deleted by it is only reported as deleted.
+     * Every observer of the table gets the same instance, so treat it as read-only.
+     */
+    public static class Changes {
+        public final String table;
+        public final Set<String> inserted = new LinkedHashSet<>();
+        public final Set<String> updated = new LinkedHashSet<>();
+        public final Set<String> deleted = new LinkedHashSet<>();
+
+        Changes(String table) { this.table = table; }
+
+        // Every row this transaction touched, whatever happened to it
+        public Set<String> all() {
+            Set<String> all = new LinkedHashSet<>(inserted);
+            all.addAll(updated);
+            all.addAll(deleted);
+            return all;
+        }
+    }
+
+    private static class Transaction {
+        int depth;
+        // the innermost open level called setTransactionSuccessful
+        boolean successful;
+        boolean failed;
+        final Map<String, Changes> changes = new HashMap<>();
+    }
+
+    // table -> observers of that table
+    private final Map<String, List<Observer>> observers = new ConcurrentHashMap<>();
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+
+    public void addObserver(Observer observer, String... tables) {
+        for (String table : tables) {
+            observers.computeIfAbsent(table, t -> new CopyOnWriteArrayList<>()).add(observer);
+        }
+    }
+
+    public void removeObserver(Observer observer) {
+        for (List<Observer> tableObservers : observers.values()) {
+            tableObservers.remove(observer);
+        }
+    }
+
+    // Call right after the database transaction begins
+    void beginTransaction() {
+        Transaction current = transaction.get();
+        if (current == null) {
+            current = new Transaction();
+            transaction.set(current);
+        }
+        current.depth++;
+    }
+
+    // Call right after the database transaction is marked successful
+    void setTransactionSuccessful() {
+        Transaction current = transaction.get();
+        if (current != null) {
+            current.successful = true;
+        }
+    }
+
+    // Call after the database transaction ends. 'ended' is false if ending it threw, i.e. the commit failed.
+    void endTransaction(boolean ended) {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return;
+        }
+
+        // like SQLite, a nested transaction that is not successful rolls back the outermost one
+        current.failed |= !ended || !current.successful;
+        current.successful = false;
+        if (--current.depth > 0) {
+            return;
+        }
+
+        transaction.remove();
+        if (!current.failed) {
+            for (Changes changes : current.changes.values()) {
+                dispatch(changes);
+            }
+        }
+    }
+
+    void inserted(String table, String key) {
+        Changes changes = changes(table);
+        changes.inserted.add(key);
+        changes.deleted.remove(key);
+        flushIfAutocommit(changes);
+    }
+
+    void updated(String table, String key) {
+        Changes changes = changes(table);
+        if (!changes.inserted.contains(key) && !changes.deleted.contains(key)) {
+            changes.updated.add(key);
+        }
+        flushIfAutocommit(changes);
+    }
+
+    void deleted(String table, String key) {
+        Changes changes = changes(table);
+        // a row that did not exist before this transaction was never seen by observers
+        if (!changes.inserted.remove(key)) {
+            changes.deleted.add(key);
+        }
+        changes.updated.remove(key);
+        flushIfAutocommit(changes);
+    }
+
+    private Changes changes(String table) {
+        Transaction current = transaction.get();
+        if (current == null) {
+            return new Changes(table);
+        }
+        return current.changes.computeIfAbsent(table, Changes::new);
+    }
+
+    private void flushIfAutocommit(Changes changes) {
+        if (transaction.get() == null) {
+            dispatch(changes);
+        }
+    }
+
+    private void dispatch(Changes changes) {
+        List<Observer> tableObservers = observers.getOrDefault(changes.table, Collections.emptyList());
+        if (tableObservers.isEmpty() || (changes.inserted.isEmpty() && changes.updated.isEmpty() && changes.deleted.isEmpty())) {
+            return;
+        }
+
+        for (Observer observer : tableObservers) {
+            try {
+                observer.onChanged(changes);
+            } catch (Exception e) {
+                Log.e(TAG, "Exception thrown from observer of " + changes.table + ": " + e.getMessage());
+            }
+        }
+    }
+}
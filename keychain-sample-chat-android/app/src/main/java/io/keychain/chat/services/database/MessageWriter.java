@@ -0,0 +1,164 @@
+package io.keychain.chat.services.database;
+
+import android.util.Log;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.keychain.chat.interfaces.ChatRepository;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * MessageWriter is a write-behind persistence stage for inbound chat messages.
+ *
+ * Callers enqueue messages and return immediately.  A single writer thread drains the queue and
+ * commits the messages in groups through ChatRepository#appendMessages, so a burst of messages
+ * (e.g. the backlog the broker replays on reconnect) costs one transaction per group instead of
+ * one per message.  A group is closed when it reaches MAX_BATCH_SIZE messages or when
+ * MAX_BATCH_DELAY_MS has passed since its first message, whichever comes first.
+ *
+ * Each message carries a Callback that runs on the writer thread once its group has committed,
+ * so anything that must only happen after the data is durable (updating the UI, acknowledging
+ * the message to the broker) belongs there.
+ *
+ * The callbacks run one after the other on the writer thread, so slow work there (decrypting, say)
+ * holds up the next commit; hand it to another thread.
+ *
+ * The queue is bounded: when it is full #enqueue blocks, which pushes back on the producer
+ * instead of dropping messages.  Every message #enqueue accepts is committed, even if #close is
+ * called right after.
+ */
+public class MessageWriter implements Closeable {
+    private static final String TAG = "MessageWriter";
+    public static final String CLOSED = "MessageWriter is closed";
+    private static final int MAX_QUEUE_SIZE = 1000;
+    private static final int MAX_BATCH_SIZE = 200;
+    private static final long MAX_BATCH_DELAY_MS = 50;
+    private static final long IDLE_POLL_MS = 5000;
+
+    private final ChatRepository repository;
+    private final BlockingQueue<PendingWrite> queue = new ArrayBlockingQueue<>(MAX_QUEUE_SIZE);
+    private final Thread writerThread;
+    // #enqueue holds the read lock from its closed check until the message is queued; #close takes the write lock
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private volatile boolean shouldStop;
+
+    public interface Callback {
+        // 'stored' is the persisted message, or null if it could not be stored
+        @WorkerThread
+        void onComplete(ChatMessage stored);
+    }
+
+    private static class PendingWrite {
+        final ChatMessage message;
+        final Callback callback;
+        PendingWrite(ChatMessage m, Callback c) { this.message = m; this.callback = c; }
+    }
+
+    public MessageWriter(ChatRepository repository) {
+        this.repository = repository;
+
+        writerThread = new Thread(() -> {
+            List<PendingWrite> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            // keep draining after close() so nothing that was accepted is lost; once shouldStop is
+            // set nothing more is queued, so an empty queue then means everything is committed
+            while (!shouldStop || !queue.isEmpty()) {
+                try {
+                    PendingWrite first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+
+                    batch.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY_MS);
+                    while (batch.size() < MAX_BATCH_SIZE) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // only close() stops the writer, or messages accepted meanwhile would never be committed
+                    Log.d(TAG, "Writer interrupted, committing what is queued");
+                }
+
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                    batch.clear();
+                }
+            }
+        }, TAG);
+
+        writerThread.start();
+    }
+
+    /**
+     * Queue a message to be appended.  Blocks while the queue is full.
+     * The callback runs on the writer thread after the message's group has been committed.
+     * Throws IllegalStateException once the writer is closed.
+     */
+    public void enqueue(ChatMessage message, Callback callback) throws InterruptedException {
+        closeLock.readLock().lock();
+        try {
+            if (shouldStop) {
+                throw new IllegalStateException(CLOSED);
+            }
+            // blocking here is fine: the writer keeps draining until close() gets the write lock
+            queue.put(new PendingWrite(message, callback));
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            messages.add(write.message);
+        }
+
+        long start = System.nanoTime();
+        // appendMessages hands back the same instances it stored
+        Set<ChatMessage> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+        repository.appendMessages(messages).ifPresent(stored::addAll);
+        Log.d(TAG, "Committed " + stored.size() + "/" + batch.size() + " messages in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+        for (PendingWrite write : batch) {
+            try {
+                write.callback.onComplete(stored.contains(write.message) ? write.message : null);
+            } catch (Exception e) {
+                Log.e(TAG, "Exception thrown from write callback: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages.  Messages already queued are still committed and their callbacks run.
+     */
+    @Override
+    public void close() {
+        // waits for enqueues in progress, so their messages are queued before the writer may stop
+        closeLock.writeLock().lock();
+        try {
+            shouldStop = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+    }
+}
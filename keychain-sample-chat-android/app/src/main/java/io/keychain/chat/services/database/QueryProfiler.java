@@ -0,0 +1,265 @@
+package io.keychain.chat.services.database;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import io.keychain.chat.interfaces.ChatRepository;
+
+/**
+ * QueryProfiler keeps latency and row count statistics of repository calls, and a log of the
+ * slowest SQL statements with their query plans.
+ *
+ * Calls are grouped by operation, which is the ChatRepository method name for calls made through
+ * #wrap.  For each operation it keeps a latency histogram, the number of rows returned, and which
+ * threads called it, counting calls made on the UI thread separately.  SQLiteDBService reports
+ * each query it runs through #isSlow and #recordSlowQuery.
+ *
+ * Nothing here depends on Android, so JVM tests can build one, record into it and read the
+ * numbers back with #getStats and #getSlowQueries.  The app's instance is #getDefault, installed
+ * in debug builds or when database.profile is true; the app writes its #dump to a file each time it
+ * goes to the background (see KeychainApp).
+ */
+public class QueryProfiler {
+    public static final long DEFAULT_SLOW_QUERY_MS = 50;
+    private static final int MAX_SLOW_QUERIES = 32;
+    private static final int MAX_THREADS_PER_OPERATION = 16;
+    private static final String OTHER_THREADS = "(other)";
+
+    // Bucket i holds calls that took less than 2^i microseconds; the last one holds everything slower (about 1s+)
+    static final int BUCKETS = 21;
+
+    private static volatile QueryProfiler defaultProfiler;
+
+    private final long slowQueryNanos;
+    private final BooleanSupplier isUiThread;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final Deque<SlowQuery> slowQueries = new ArrayDeque<>(MAX_SLOW_QUERIES);
+
+    /**
+     * Latency and row counts of one operation.  The instances returned by #getStats are copies.
+     */
+    public static class Stats {
+        public long calls;
+        public long uiThreadCalls;
+        public long rows;
+        public long totalNanos;
+        public long maxNanos;
+        public final long[] histogram = new long[BUCKETS];
+        // thread name -> calls made on it
+        public final Map<String, Long> threads = new TreeMap<>();
+
+        // Upper bound of the bucket holding the given percentile, e.g. 0.95
+        public long percentileMicros(double percentile) {
+            long rank = (long) Math.ceil(calls * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        public double meanMillis() {
+            return calls == 0 ? 0 : totalNanos / 1e6 / calls;
+        }
+
+        synchronized void add(long elapsedNanos, int rowCount, String thread, boolean uiThread) {
+            calls++;
+            rows += rowCount;
+            totalNanos += elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+            histogram[bucket(elapsedNanos)]++;
+            if (uiThread) {
+                uiThreadCalls++;
+            }
+            if (!threads.containsKey(thread) && threads.size() >= MAX_THREADS_PER_OPERATION) {
+                thread = OTHER_THREADS;
+            }
+            threads.merge(thread, 1L, Long::sum);
+        }
+
+        synchronized Stats copy() {
+            Stats copy = new Stats();
+            copy.calls = calls;
+            copy.uiThreadCalls = uiThreadCalls;
+            copy.rows = rows;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            System.arraycopy(histogram, 0, copy.histogram, 0, BUCKETS);
+            copy.threads.putAll(threads);
+            return copy;
+        }
+    }
+
+    public static class SlowQuery {
+        public final String sql;
+        public final long elapsedNanos;
+        public final String thread;
+        public final boolean uiThread;
+        // one row of EXPLAIN QUERY PLAN per entry
+        public final List<String> plan;
+
+        SlowQuery(String sql, long elapsedNanos, String thread, boolean uiThread, List<String> plan) {
+            this.sql = sql;
+            this.elapsedNanos = elapsedNanos;
+            this.thread = thread;
+            this.uiThread = uiThread;
+            this.plan = plan;
+        }
+    }
+
+    public QueryProfiler(long slowQueryMillis, BooleanSupplier isUiThread) {
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+        this.isUiThread = isUiThread;
+    }
+
+    // The profiler SQLiteDBService reports to. Set by the app on start; until then nothing is recorded.
+    public static QueryProfiler getDefault() { return defaultProfiler; }
+
+    public static void setDefault(QueryProfiler profiler) { defaultProfiler = profiler; }
+
+    public void record(String operation, long elapsedNanos, int rows) {
+        stats.computeIfAbsent(operation, o -> new Stats())
+             .add(elapsedNanos, rows, Thread.currentThread().getName(), isUiThread.getAsBoolean());
+    }
+
+    public boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= slowQueryNanos;
+    }
+
+    public void recordSlowQuery(String sql, long elapsedNanos, List<String> plan) {
+        SlowQuery query = new SlowQuery(sql, elapsedNanos, Thread.currentThread().getName(),
+                                        isUiThread.getAsBoolean(), plan);
+        synchronized (slowQueries) {
+            if (slowQueries.size() == MAX_SLOW_QUERIES) {
+                slowQueries.removeFirst();
+            }
+            slowQueries.addLast(query);
+        }
+    }
+
+    // operation -> copy of its statistics, by operation name
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> copy = new TreeMap<>();
+        for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    // Oldest first
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new ArrayList<>(slowQueries);
+        }
+    }
+
+    public void reset() {
+        stats.clear();
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+    }
+
+    /**
+     * Writes a plain text report: one line per operation, slowest total first, then the slow query log.
+     */
+    public void dump(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        List<Map.Entry<String, Stats>> operations = new ArrayList<>(getStats().entrySet());
+        operations.sort((a, b) -> Long.compare(b.getValue().totalNanos, a.getValue().totalNanos));
+
+        out.println("operation calls ui_thread rows mean_ms p50_us p95_us p99_us max_ms threads");
+        for (Map.Entry<String, Stats> entry : operations) {
+            Stats s = entry.getValue();
+            out.println(String.format(Locale.ROOT, "%s %d %d %d %.3f %d %d %d %.3f %s",
+                    entry.getKey(), s.calls, s.uiThreadCalls, s.rows, s.meanMillis(),
+                    s.percentileMicros(0.5), s.percentileMicros(0.95), s.percentileMicros(0.99),
+                    s.maxNanos / 1e6, s.threads));
+        }
+
+        out.println();
+        out.println("slow queries (>= " + TimeUnit.NANOSECONDS.toMillis(slowQueryNanos) + "ms), oldest first");
+        for (SlowQuery query : getSlowQueries()) {
+            out.println(String.format(Locale.ROOT, "%.3fms on %s%s: %s",
+                    query.elapsedNanos / 1e6, query.thread, query.uiThread ? " (UI thread)" : "", query.sql));
+            for (String step : query.plan) {
+                out.println("    " + step);
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        dump(writer);
+        return writer.toString();
+    }
+
+    /**
+     * A ChatRepository that forwards every call to 'repository' and records it under the method's name.
+     */
+    public ChatRepository wrap(ChatRepository repository) {
+        return (ChatRepository) Proxy.newProxyInstance(
+                ChatRepository.class.getClassLoader(),
+                new Class<?>[] {ChatRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return method.invoke(repository, args);
+                    }
+
+                    long start = System.nanoTime();
+                    Object result = null;
+                    try {
+                        result = method.invoke(repository, args);
+                        return result;
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        record(method.getName(), System.nanoTime() - start, rowCount(result));
+                    }
+                });
+    }
+
+    // How many rows a repository call handed back
+    static int rowCount(Object result) {
+        if (result instanceof Optional) {
+            return rowCount(((Optional<?>) result).orElse(null));
+        }
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Map) {
+            return ((Map<?, ?>) result).size();
+        }
+        if (result instanceof Boolean) {
+            return (Boolean) result ? 1 : 0;
+        }
+        return result == null ? 0 : 1;
+    }
+
+    static int bucket(long elapsedNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        // smallest i with micros < 2^i
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+}
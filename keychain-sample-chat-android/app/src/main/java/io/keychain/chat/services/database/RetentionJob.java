@@ -0,0 +1,123 @@
+package io.keychain.chat.services.database;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import io.keychain.chat.interfaces.ChatRepository;
+
+/**
+ * RetentionJob enforces a RetentionPolicy in the background and gives the space back to the file
+ * system.
+ *
+ * It runs shortly after start and then periodically on its own low priority thread.  All the work
+ * goes through ChatRepository calls that delete at most BATCH_SIZE rows, or free at most
+ * VACUUM_PAGES pages, in one short write transaction, with a pause after each.  The write lock is
+ * never held for more than one such step, so live message ingest only ever waits for one of them.
+ */
+public class RetentionJob implements Closeable {
+    private static final String TAG = "RetentionJob";
+    private static final long INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final long PERIOD_MS = TimeUnit.HOURS.toMillis(6);
+    // rows per delete transaction
+    static final int BATCH_SIZE = 200;
+    // 1MB of 4KB pages per incremental vacuum step
+    static final int VACUUM_PAGES = 256;
+    // gap between steps, so queued writers get the lock
+    private static final long PAUSE_MS = 20;
+
+    private final ChatRepository repository;
+    private final RetentionPolicy policy;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed;
+
+    public RetentionJob(ChatRepository repository, RetentionPolicy policy) {
+        this.repository = repository;
+        this.policy = policy;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, TAG);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, INITIAL_DELAY_MS, PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One full pass: delete everything the policy no longer keeps, then reclaim the free pages.
+     * Runs on the job's thread; only public so tests can run a pass directly.
+     */
+    public void run() {
+        try {
+            Log.i(TAG, "Running " + policy);
+            long now = System.currentTimeMillis();
+            long deleted = 0;
+
+            long cutoff = policy.messageCutoff(now);
+            if (cutoff > 0) {
+                deleted += drain(() -> repository.deleteMessagesOlderThan(cutoff, BATCH_SIZE));
+            }
+
+            if (policy.maxMessagesPerChat > 0) {
+                List<String> chatIds = repository.getChatsWithMoreMessagesThan(policy.maxMessagesPerChat)
+                        .orElse(Collections.emptyList());
+                for (String chatId : chatIds) {
+                    deleted += drain(() -> repository.deleteMessagesBeyond(chatId, policy.maxMessagesPerChat, BATCH_SIZE));
+                }
+            }
+
+            if (policy.maxBytes > 0) {
+                deleted += drain(() -> repository.deleteOldestMessagesOver(policy.maxBytes, BATCH_SIZE));
+            }
+
+            long seenCutoff = policy.seenMessageCutoff(now);
+            if (seenCutoff > 0) {
+                drain(() -> repository.deleteSeenMessagesOlderThan(seenCutoff, BATCH_SIZE));
+            }
+
+            // also catches pages freed by anything else, e.g. deleted chats
+            while (!closed && repository.reclaimSpace(VACUUM_PAGES) > 0) {
+                pause();
+            }
+
+            Log.i(TAG, "Deleted messages: " + deleted);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // never let an exception cancel the schedule
+            Log.e(TAG, "Exception thrown from retention pass: " + e.getMessage());
+        }
+    }
+
+    // Repeats 'step' until it deletes less than a full batch. Returns the total deleted.
+    private long drain(IntSupplier step) throws InterruptedException {
+        long total = 0;
+        while (!closed) {
+            int deleted = step.getAsInt();
+            total += deleted;
+            if (deleted < BATCH_SIZE) {
+                break;
+            }
+            pause();
+        }
+        return total;
+    }
+
+    private static void pause() throws InterruptedException {
+        Thread.sleep(PAUSE_MS);
+    }
+
+    /**
+     * Stop the job.  A step already running finishes; the rest of the pass is skipped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+}
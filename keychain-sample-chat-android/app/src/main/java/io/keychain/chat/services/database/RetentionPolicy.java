@@ -0,0 +1,77 @@
+package io.keychain.chat.services.database;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * How much chat history RetentionJob keeps.  Every limit is optional: 0 means no limit, and a
+ * message is deleted as soon as any limit it is over says so.
+ *
+ * Read from application.properties with #fromProperties.
+ */
+public class RetentionPolicy {
+    private static final String TAG = "RetentionPolicy";
+    public static final String PROPERTY_MAX_AGE_DAYS = "retention.max_age_days";
+    public static final String PROPERTY_MAX_MESSAGES_PER_CHAT = "retention.max_messages_per_chat";
+    public static final String PROPERTY_MAX_MEGABYTES = "retention.max_megabytes";
+    public static final String PROPERTY_SEEN_MESSAGE_DAYS = "retention.seen_message_days";
+    public static final String INVALID_RETENTION_PROPERTY = "Invalid retention property, ignoring it: ";
+    // Long enough to outlast any broker redelivery
+    public static final int DEFAULT_SEEN_MESSAGE_DAYS = 30;
+
+    // Messages older than this are deleted
+    public final int maxAgeDays;
+    // Only the newest this many messages of each chat are kept
+    public final int maxMessagesPerChat;
+    // The oldest messages are deleted while they take up more than this; other tables do not count
+    public final long maxBytes;
+    // Ids of inbound messages are remembered this long to drop redeliveries
+    public final int seenMessageDays;
+
+    public RetentionPolicy(int maxAgeDays, int maxMessagesPerChat, long maxBytes, int seenMessageDays) {
+        this.maxAgeDays = Math.max(maxAgeDays, 0);
+        this.maxMessagesPerChat = Math.max(maxMessagesPerChat, 0);
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.seenMessageDays = Math.max(seenMessageDays, 0);
+    }
+
+    // 'property' returns the value of a property, or null if it is not set
+    public static RetentionPolicy fromProperties(Function<String, String> property) {
+        return new RetentionPolicy(
+                (int) parse(property, PROPERTY_MAX_AGE_DAYS, 0),
+                (int) parse(property, PROPERTY_MAX_MESSAGES_PER_CHAT, 0),
+                parse(property, PROPERTY_MAX_MEGABYTES, 0) * 1024 * 1024,
+                (int) parse(property, PROPERTY_SEEN_MESSAGE_DAYS, DEFAULT_SEEN_MESSAGE_DAYS));
+    }
+
+    // Epoch millis before which messages are too old, or 0 if age is not limited
+    public long messageCutoff(long now) {
+        return maxAgeDays > 0 ? now - TimeUnit.DAYS.toMillis(maxAgeDays) : 0;
+    }
+
+    // Epoch millis before which seen message ids are forgotten, or 0 if they are kept forever
+    public long seenMessageCutoff(long now) {
+        return seenMessageDays > 0 ? now - TimeUnit.DAYS.toMillis(seenMessageDays) : 0;
+    }
+
+    private static long parse(Function<String, String> property, String name, long defaultValue) {
+        String value = property.apply(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, INVALID_RETENTION_PROPERTY + name + " = " + value);
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{maxAgeDays=" + maxAgeDays + ", maxMessagesPerChat=" + maxMessagesPerChat +
+               ", maxBytes=" + maxBytes + ", seenMessageDays=" + seenMessageDays + "}";
+    }
+}
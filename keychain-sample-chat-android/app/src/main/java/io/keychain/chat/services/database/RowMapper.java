@@ -0,0 +1,133 @@
+package io.keychain.chat.services.database;
+
+import static io.keychain.common.Constants.CHAT_ID;
+import static io.keychain.common.Constants.FIRST_NAME;
+import static io.keychain.common.Constants.ID;
+import static io.keychain.common.Constants.IMAGE_URL;
+import static io.keychain.common.Constants.LAST_MSG;
+import static io.keychain.common.Constants.LAST_NAME;
+import static io.keychain.common.Constants.LAST_TIMESTAMP;
+import static io.keychain.common.Constants.MSG;
+import static io.keychain.common.Constants.OWNER;
+import static io.keychain.common.Constants.PARTICIPANT_IDS;
+import static io.keychain.common.Constants.PEER;
+import static io.keychain.common.Constants.PEER_NAME;
+import static io.keychain.common.Constants.PHOTO;
+import static io.keychain.common.Constants.RECEIVER_ID;
+import static io.keychain.common.Constants.SENDER_ID;
+import static io.keychain.common.Constants.SEND_OR_RCVD;
+import static io.keychain.common.Constants.SORT_KEY;
+import static io.keychain.common.Constants.SOURCE;
+import static io.keychain.common.Constants.STATUS;
+import static io.keychain.common.Constants.TIMESTAMP;
+import static io.keychain.common.Constants.UNREAD_COUNT;
+import static io.keychain.common.Constants.URI;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.ChatSummary;
+import io.keychain.chat.models.chat.User;
+import io.keychain.mobile.util.Utils;
+
+/**
+ * Maps the current row of a cursor to a model object.
+ *
+ * The factories look up the columns they need by name once, when the mapper is made, so mapping a
+ * row is only the column reads and the one object returned.  A mapper is only valid for the cursor
+ * it was made for (or one with the same columns); make one per query.
+ */
+interface RowMapper<T> {
+    T map(Cursor cursor);
+
+    static RowMapper<User> users(Cursor cursor) {
+        int id = cursor.getColumnIndexOrThrow(ID);
+        int firstName = cursor.getColumnIndexOrThrow(FIRST_NAME);
+        int lastName = cursor.getColumnIndexOrThrow(LAST_NAME);
+        int status = cursor.getColumnIndexOrThrow(STATUS);
+        int source = cursor.getColumnIndexOrThrow(SOURCE);
+        int photo = cursor.getColumnIndexOrThrow(PHOTO);
+        int uri = cursor.getColumnIndexOrThrow(URI);
+
+        return c -> new User(c.getString(id).toUpperCase(),
+                             c.getString(firstName),
+                             c.getString(lastName),
+                             c.getInt(status),
+                             c.getInt(source),
+                             c.getString(photo),
+                             c.getString(uri));
+    }
+
+    static RowMapper<Chat> chats(Cursor cursor) {
+        int id = cursor.getColumnIndexOrThrow(ID);
+        int participantIds = cursor.getColumnIndexOrThrow(PARTICIPANT_IDS);
+        int lastMsg = cursor.getColumnIndexOrThrow(LAST_MSG);
+        int timestamp = cursor.getColumnIndexOrThrow(TIMESTAMP);
+
+        return c -> {
+            String participants = c.getString(participantIds);
+            int separator = participants != null ? participants.indexOf('|') : -1;
+            return new Chat(String.valueOf(c.getLong(id)),
+                            separator >= 0
+                                    ? new ArrayList<>(Arrays.asList(participants.substring(0, separator),
+                                                                    participants.substring(separator + 1)))
+                                    : new ArrayList<>(),
+                            CompactText.decode(c.getBlob(lastMsg)),
+                            Utils.getDateTimeFromEpoc(c.getLong(timestamp)));
+        };
+    }
+
+    static RowMapper<ChatMessage> messages(Cursor cursor) {
+        int id = cursor.getColumnIndexOrThrow(ID);
+        int chatId = cursor.getColumnIndexOrThrow(CHAT_ID);
+        int sendOrRcvd = cursor.getColumnIndexOrThrow(SEND_OR_RCVD);
+        int senderId = cursor.getColumnIndexOrThrow(SENDER_ID);
+        int receiverId = cursor.getColumnIndexOrThrow(RECEIVER_ID);
+        int imageUrl = cursor.getColumnIndexOrThrow(IMAGE_URL);
+        int msg = cursor.getColumnIndexOrThrow(MSG);
+        int timestamp = cursor.getColumnIndexOrThrow(TIMESTAMP);
+
+        return c -> {
+            ChatMessage message = new ChatMessage();
+            message.id = String.valueOf(c.getLong(id));
+            message.chatId = String.valueOf(c.getLong(chatId));
+            message.sendOrRcvd = ChatDirection.fromInt(c.getInt(sendOrRcvd));
+            message.senderId = c.getString(senderId);
+            message.receiverId = c.getString(receiverId);
+            message.imageUrl = c.getString(imageUrl);
+            message.msg = CompactText.decode(c.getBlob(msg));
+            message.timestamp = c.getLong(timestamp);
+            return message;
+        };
+    }
+
+    // Rows of chat_summaries joined with the chat's lastMsg
+    static RowMapper<ChatSummary> chatSummaries(Cursor cursor) {
+        int owner = cursor.getColumnIndexOrThrow(OWNER);
+        int chatId = cursor.getColumnIndexOrThrow(CHAT_ID);
+        int peer = cursor.getColumnIndexOrThrow(PEER);
+        int peerName = cursor.getColumnIndexOrThrow(PEER_NAME);
+        int lastTimestamp = cursor.getColumnIndexOrThrow(LAST_TIMESTAMP);
+        int unreadCount = cursor.getColumnIndexOrThrow(UNREAD_COUNT);
+        int sortKey = cursor.getColumnIndexOrThrow(SORT_KEY);
+        int lastMsg = cursor.getColumnIndexOrThrow(LAST_MSG);
+
+        return c -> {
+            ChatSummary summary = new ChatSummary();
+            summary.owner = c.getString(owner);
+            summary.chatId = String.valueOf(c.getLong(chatId));
+            summary.peer = c.getString(peer);
+            summary.peerName = c.getString(peerName);
+            summary.lastTimestamp = Utils.getDateTimeFromEpoc(c.getLong(lastTimestamp));
+            summary.unreadCount = c.getInt(unreadCount);
+            summary.sortKey = c.getLong(sortKey);
+            summary.lastMsg = CompactText.decode(c.getBlob(lastMsg));
+            return summary;
+        };
+    }
+}
@@ -5,6 +5,8 @@ import static io.keychain.common.Constants.CHATS;
 import static io.keychain.common.Constants.CHATS_DB;
 import static io.keychain.common.Constants.CHAT_ID;
 import static io.keychain.common.Constants.CHAT_ID_IS_NOT_VALID;
+import static io.keychain.common.Constants.CHAT_PARTICIPANTS;
+import static io.keychain.common.Constants.CHAT_SUMMARIES;
 import static io.keychain.common.Constants.ERROR_GETTING_CHATS_FOR_SENDER_ID;
 import static io.keychain.common.Constants.ERROR_GETTING_MESSAGES_FOR_CHAT_ID;
 import static io.keychain.common.Constants.ERROR_GETTING_PLATFORM_USERS;
@@ -22,22 +24,28 @@ import static io.keychain.common.Constants.GETTING_CHAT_USERS;
 import static io.keychain.common.Constants.GETTING_MESSAGE_FOR_RECORD_ID;
 import static io.keychain.common.Constants.GETTING_PLATFORM_USER_FOR_ID;
 import static io.keychain.common.Constants.ID;
-import static io.keychain.common.Constants.INSERTING_CHAT_USER;
 import static io.keychain.common.Constants.INSERTING_CHAT;
+import static io.keychain.common.Constants.INSERTING_CHAT_USER;
 import static io.keychain.common.Constants.INSERTING_MESSAGE;
 import static io.keychain.common.Constants.INVALID_RECEIVER_ID;
 import static io.keychain.common.Constants.LAST_MSG;
 import static io.keychain.common.Constants.LAST_NAME;
+import static io.keychain.common.Constants.LAST_TIMESTAMP;
 import static io.keychain.common.Constants.MESSAGES;
 import static io.keychain.common.Constants.MSG;
 import static io.keychain.common.Constants.NO_DATABASE_CONNECTION;
+import static io.keychain.common.Constants.OWNER;
 import static io.keychain.common.Constants.PARTICIPANT_IDS;
 import static io.keychain.common.Constants.PARTICIPANT_IDS_MUST_CONTAIN_2_ELEMENTS;
+import static io.keychain.common.Constants.PEER;
+import static io.keychain.common.Constants.PEER_NAME;
 import static io.keychain.common.Constants.PHOTO;
 import static io.keychain.common.Constants.RECEIVER_ID;
+import static io.keychain.common.Constants.SEEN_MESSAGES;
 import static io.keychain.common.Constants.SENDER_ID;
 import static io.keychain.common.Constants.SENDER_ID_IS_NOT_VALID;
 import static io.keychain.common.Constants.SEND_OR_RCVD;
+import static io.keychain.common.Constants.SORT_KEY;
 import static io.keychain.common.Constants.SOURCE;
 import static io.keychain.common.Constants.STATUS;
 import static io.keychain.common.Constants.SUCCESSFULLY_INSERTED_CHAT;
@@ -47,6 +55,7 @@ import static io.keychain.common.Constants.SUCCESSFULLY_UPDATED_CHAT;
 import static io.keychain.common.Constants.SUCCESSFULLY_UPDATED_USER_PROFILE;
 import static io.keychain.common.Constants.TIMESTAMP;
 import static io.keychain.common.Constants.UNABLE_TO_SAVE_MESSAGE_TO_DB;
+import static io.keychain.common.Constants.UNREAD_COUNT;
 import static io.keychain.common.Constants.UPDATING_CHAT;
 import static io.keychain.common.Constants.UPDATING_USER_PROFILE;
 import static io.keychain.common.Constants.URI;
@@ -54,41 +63,63 @@ import static io.keychain.common.Constants.USERS;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.ContextWrapper;
 import android.content.res.AssetManager;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.media.Image;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import io.keychain.chat.interfaces.ChatRepository;
 import io.keychain.chat.models.chat.Chat;
 import io.keychain.chat.models.chat.ChatDirection;
 import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.ChatSummary;
 import io.keychain.chat.models.chat.User;
 import io.keychain.mobile.util.Utils;
 
@@ -97,8 +128,10 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
     public static final String GETTING_PLATFORM_USER = "Getting platform user: ";
     public static final String GETTING_ALL_CHATS_FOR_SENDER_ID = "Getting all chats for senderId: ";
     public static final String CHATS_SQL = "chats.sql";
-    public static final String ATTEMPTING_TO_COPY_DATABASE = "Attempting to copy database";
-    public static final int DB_VERSION = 1;
+    public static final String CHATS_UPGRADE_SQL = "chats_upgrade_%d.sql";
+    public static final String UPGRADING_DATABASE = "Upgrading database from version ";
+    public static final String ERROR_UPGRADING_DATABASE = "Error upgrading database to version ";
+    public static final int DB_VERSION = 7;
     public static final String DATABASE_CANNOT_BE_OPENED = "For some reason the Database cannot be opened";
     public static final String FAILED_TO_OPEN_CHAT_DATABASE = "Failed to open chat database.";
     public static final String ERROR_CREATING_DATABASE_TABLES = "Error creating database tables.";
@@ -108,15 +141,114 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
     public static final String DATA_DATA = "/data/data/";
     public static final String GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS = "Getting all chat messages where participant is: ";
     public static final String ERROR_GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS = "Error getting all chat messages where participant is: ";
+    public static final String GETTING_MESSAGES_PAGE_FOR_CHAT_ID = "Getting page of messages for chatId: ";
+    public static final String APPENDING_MESSAGES = "Appending messages: ";
+    public static final String SUCCESSFULLY_INSERTED_MESSAGES = "Successfully inserted messages: ";
+    public static final String DIRECTION_IS_NOT_VALID = "Direction is not valid.";
+    public static final String MESSAGE_IS_EMPTY = "Message has neither text nor attachment.";
+    public static final String COMPACTING_STORED_MESSAGES = "Compacting stored messages: ";
+    public static final String KEPT_MESSAGES_WITHOUT_CHAT = "Kept messages whose chat no longer exists: ";
+    public static final String DROPPING_DUPLICATE_MESSAGE = "Dropping duplicate message: ";
+    public static final String ERROR_LOADING_SEEN_MESSAGES = "Error loading seen message ids.";
+    public static final String ERROR_CHECKING_SEEN_MESSAGE = "Error checking seen message id: ";
+    // Sized for the ids of the last ~100k inbound messages at 1% false positives, about 120KB
+    private static final int SEEN_FILTER_CAPACITY = 100_000;
+    private static final double SEEN_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    public static final String GETTING_CHAT_SUMMARIES_FOR_OWNER = "Getting chat summaries for: ";
+    public static final String ERROR_GETTING_CHAT_SUMMARIES_FOR_OWNER = "Error getting chat summaries for: ";
+    public static final String ERROR_MARKING_CHAT_READ = "Error marking chat read: ";
+    // chat_summaries.sortKey of the ALL chat, which is always listed first
+    private static final long PINNED_SORT_KEY = Long.MAX_VALUE;
+    private static final int MAX_IDS_PER_QUERY = 500;
+    public static final String UPSERTING_USERS = "Upserting users: ";
+    public static final String SUCCESSFULLY_UPSERTED_USERS = "Successfully upserted users, changed: ";
+    public static final String ERROR_UPSERTING_USERS = "Error upserting users.";
+    private static final int PHOTO_QUALITY = 90;
+    public static final String FAILED_TO_OPEN_READ_CONNECTION = "Failed to open read-only connection, reads will share the writer.";
+    public static final String SLOW_QUERY = "Slow query (%.1fms): %s, plan: %s";
+    public static final String ERROR_EXPLAINING_QUERY = "Error getting query plan: ";
+    public static final String EXPORTING_MESSAGES = "Exporting messages where participant is: ";
+    public static final String SUCCESSFULLY_EXPORTED_MESSAGES = "Successfully exported messages: ";
+    public static final String ERROR_EXPORTING_MESSAGES = "Error exporting messages where participant is: ";
+    public static final String IMPORTING_MESSAGES = "Importing messages.";
+    public static final String SUCCESSFULLY_IMPORTED_MESSAGES = "Successfully imported messages: ";
+    public static final String ERROR_IMPORTING_MESSAGES = "Error importing messages.";
+    // Rows read per query by exportMessages, and messages stored per transaction by importMessages
+    private static final int EXPORT_PAGE_SIZE = 500;
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final Gson GSON = new Gson();
+    public static final String DELETING_EXPIRED_MESSAGES = "Deleted expired messages: ";
+    public static final String ERROR_DELETING_MESSAGES = "Error deleting expired messages.";
+    public static final String ERROR_DELETING_SEEN_MESSAGES = "Error deleting old seen message ids.";
+    public static final String ERROR_GETTING_CHATS_OVER_LIMIT = "Error getting chats over the message limit.";
+    public static final String ENABLING_INCREMENTAL_VACUUM = "Enabling incremental auto-vacuum, rebuilding database once.";
+    public static final String ENABLED_INCREMENTAL_VACUUM = "Enabled incremental auto-vacuum in %d ms";
+    public static final String ERROR_ENABLING_INCREMENTAL_VACUUM = "Error enabling incremental auto-vacuum, will retry on next open.";
+    public static final String ERROR_RECLAIMING_SPACE = "Error reclaiming free pages.";
+    // PRAGMA auto_vacuum value
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    // A message's size for the retention cap; length() of a BLOB does not read its content
+    private static final String MESSAGE_BYTES = "IFNULL(LENGTH(msg), 0) + IFNULL(LENGTH(imageUrl), 0) + " +
+                                                "IFNULL(LENGTH(senderId), 0) + IFNULL(LENGTH(receiverId), 0)";
+    public static final String DATABASE_NOT_READY = "Gave up waiting for the database to open.";
+    public static final String WARMED_UP_DATABASE = "Warmed up database for %s in %dms: %d chats, %d messages";
+    public static final String ERROR_WARMING_UP_DATABASE = "Error warming up database for: ";
+    // Longer than any upgrade should take; a call that waits this long gives up like one with no database
+    private static final long OPEN_TIMEOUT_SECONDS = 30;
+    // Chats at the top of the list whose first page of messages is read by warmUp
+    private static final int WARM_UP_CHATS = 10;
+    private static final int WARM_UP_PAGE_SIZE = 50;
+    // Opens databases and warms them up, off the thread that created the service
+    private static final ExecutorService OPEN_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, TAG);
+        thread.setDaemon(true);
+        return thread;
+    });
 
     Context context;
     AssetManager assetManager;
+    final AttachmentStore attachmentStore;
+    // Single writer connection. All inserts, updates and transactions go through it.
     SQLiteDatabase db;
+    // Read-only handle on the same file. With write-ahead logging it keeps its own pool of
+    // connections, so queries from the UI thread never queue behind the writer.
+    SQLiteDatabase readDb;
     boolean dbInitialized = false;
     final String dbLocation;
 
+    // Compiled once and reused for every appended message. Guarded by writeLock because
+    // a statement's bindings are shared state.
+    private final Object writeLock = new Object();
+    // Users are looked up once per rendered message; keep the ones we have seen in memory.
+    private final UserCache userCache = new UserCache();
+    // Tells observers which rows each committed write changed
+    final InvalidationTracker invalidationTracker = new InvalidationTracker();
+    private SQLiteStatement insertMessageStatement;
+    private SQLiteStatement updateChatStatement;
+    private SQLiteStatement countSeenMessageStatement;
+    private SQLiteStatement insertSeenMessageStatement;
+    private SQLiteStatement updateSummaryStatement;
+    private SQLiteStatement addUnreadStatement;
+    private SQLiteStatement insertUserStatement;
+    private SQLiteStatement updateUserStatement;
+    private SQLiteStatement updatePeerNameStatement;
+    private SQLiteStatement deleteMessageStatement;
+    private SQLiteStatement resetLastMessageStatement;
+    // In-memory front for seen_messages: a miss means "never seen", so only hits go to the table
+    private final BloomFilter seenMessages = new BloomFilter(SEEN_FILTER_CAPACITY, SEEN_FILTER_FALSE_POSITIVE_RATE);
+    final String dbName;
+    // Completes with true once the database is open and upgraded, or false if it could not be opened
+    private final CompletableFuture<Boolean> opened;
+
     public SQLiteDBService(Context context) {
-        super(context, CHATS_DB, null, DB_VERSION);
+        this(context, CHATS_DB);
+    }
+
+    @VisibleForTesting
+    SQLiteDBService(Context context, String dbName) {
+        super(context, dbName, null, DB_VERSION);
+        this.dbName = dbName;
+        setWriteAheadLoggingEnabled(true);
 
         if (android.os.Build.VERSION.SDK_INT >= 17) {
             dbLocation = context.getApplicationInfo().dataDir + DATABASES;
@@ -126,7 +258,14 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
 
         this.context = context;
         this.assetManager = context.getAssets();
+        this.attachmentStore = new AttachmentStore(context);
+
+        // Creating or upgrading the file and loading the seen ids can take a while, and this is
+        // usually called on the main thread. Open in the background; every call waits in awaitOpen.
+        opened = CompletableFuture.supplyAsync(this::open, OPEN_EXECUTOR);
+    }
 
+    private boolean open() {
         try {
             if (!ifDBExists()) {
                 db = getWritableDatabase();
@@ -134,43 +273,182 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
             } else {
                 openDatabase();
                 Log.i(TAG, "Opened database at: " + db.getPath());
+                enableIncrementalVacuum();
             }
+            openReadDatabase();
+            loadSeenMessages();
         } catch (Exception e) {
             Log.e(TAG, FAILED_TO_OPEN_CHAT_DATABASE, e);
         }
+        return db != null && dbInitialized;
+    }
+
+    /**
+     * Switches a database created before incremental auto-vacuum was on over to it, which takes a
+     * VACUUM rebuilding the whole file.  It runs here, on the open thread, because nothing can write
+     * yet: every call, message ingest included, waits in awaitOpen until open returns.  Done later it
+     * would hold the write lock for the length of the rebuild while messages arrive.  The cost is one
+     * slower open, on the first start after the update; if it fails, e.g. for lack of space for the
+     * copy, the database opens as it is and the next open tries again.
+     */
+    private void enableIncrementalVacuum() {
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) {
+                return;
+            }
+
+            Log.i(TAG, ENABLING_INCREMENTAL_VACUUM);
+            long start = System.nanoTime();
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            Log.i(TAG, String.format(Locale.ROOT, ENABLED_INCREMENTAL_VACUUM,
+                                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        } catch (Exception e) {
+            Log.e(TAG, ERROR_ENABLING_INCREMENTAL_VACUUM, e);
+        }
+    }
+
+    // Blocks until the background open has finished. False if there is no usable database.
+    private boolean awaitOpen() {
+        try {
+            return opened.get(OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, DATABASE_NOT_READY, e);
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> whenReady() {
+        // a dependent stage, so callers cannot complete ours
+        return opened.thenApply(Function.identity());
+    }
+
+    @Override
+    public CompletableFuture<Void> warmUp(String owner) {
+        return opened.thenAcceptAsync(ready -> {
+            if (ready) {
+                warmUpNow(owner);
+            }
+        }, OPEN_EXECUTOR);
+    }
+
+    /**
+     * Reads what the first screens after login show: the owner's chat list, the users in it and the
+     * first page of the top chats.  That pulls the pages of idx_chat_summaries_owner_sort and
+     * idx_messages_chat_timestamp they live on into the file system cache, and the users into
+     * userCache, so those screens do not wait on the disk.
+     */
+    private void warmUpNow(String owner) {
+        try {
+            long start = System.nanoTime();
+            int messages = 0;
+
+            getPlatformUserByUri(owner);
+            List<ChatSummary> summaries = getChatSummaries(owner).orElse(Collections.emptyList());
+            for (ChatSummary summary : summaries.subList(0, Math.min(WARM_UP_CHATS, summaries.size()))) {
+                getPlatformUserByUri(summary.peer);
+                messages += getMessages(summary.chatId, null, WARM_UP_PAGE_SIZE).map(List::size).orElse(0);
+            }
+
+            Log.i(TAG, String.format(Locale.ROOT, WARMED_UP_DATABASE, owner,
+                                     TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), summaries.size(), messages));
+        } catch (Exception e) {
+            Log.e(TAG, ERROR_WARMING_UP_DATABASE + owner, e);
+        }
+    }
+
+    // Runs before onCreate, so a new database is created with incremental auto-vacuum already on.
+    // Existing databases are switched over by enableIncrementalVacuum.
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         try {
             Log.i(TAG, CREATING_DATABASE_TABLES);
-            String script = getSqlScript().replace("\n", "");
-            Log.i(TAG, "Executing script: ");
-            Log.i(TAG, script);
-
-            // execSQL can only execute a single STATEMENT. So we have to split the
-            // SQL file into individual queries and call execSQL several times
-            for (String sql : script.split(";")) {
-                if (sql.isEmpty())
-                    continue;
-
-                db.execSQL(sql);
-            }
+            executeScript(db, CHATS_SQL);
 
             dbInitialized = true;
         } catch (Exception e) {
             Log.e(TAG, ERROR_CREATING_DATABASE_TABLES, e);
-            Toast.makeText(context, ERROR_CREATING_DATABASE_TABLES, Toast.LENGTH_LONG).show();
-            closeDatabase();
+            // onCreate runs on the open thread
+            new Handler(Looper.getMainLooper()).post(() ->
+                    Toast.makeText(context, ERROR_CREATING_DATABASE_TABLES, Toast.LENGTH_LONG).show());
+            closeConnections();
             deleteDatabase();
         }
     }
 
+    /**
+     * Runs chats_upgrade_N.sql for every version between oldVersion and newVersion.
+     * SQLiteOpenHelper wraps this in a single transaction, so a failed step leaves the
+     * database at oldVersion and the upgrade is retried on the next open.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (newVersion > oldVersion) {
-            Log.d(TAG, ATTEMPTING_TO_COPY_DATABASE);
+        Log.i(TAG, UPGRADING_DATABASE + oldVersion + " to " + newVersion);
+
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            try {
+                executeScript(db, String.format(Locale.ROOT, CHATS_UPGRADE_SQL, version));
+
+                if (version == 4) {
+                    compactMigratedText(db);
+                    logOrphanedMessages(db);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, ERROR_UPGRADING_DATABASE + version, e);
+                throw new SQLiteException(ERROR_UPGRADING_DATABASE + version, e);
+            }
+        }
+    }
+
+    /**
+     * The version 4 script can only copy the old TEXT ciphertext across as bytes.  Re-encode those
+     * values with CompactText so upgraded databases get the same savings as new ones.
+     */
+    private void compactMigratedText(SQLiteDatabase db) {
+        compactMigratedText(db, MESSAGES, MSG);
+        compactMigratedText(db, CHATS, LAST_MSG);
+    }
+
+    /**
+     * Messages whose chat row was gone before the version 4 upgrade are copied with a null chatId
+     * rather than dropped: no chat lists them, but their ciphertext is still there to recover.
+     */
+    private void logOrphanedMessages(SQLiteDatabase db) {
+        long orphaned = DatabaseUtils.queryNumEntries(db, MESSAGES, CHAT_ID + " IS NULL");
+        if (orphaned > 0) {
+            Log.w(TAG, KEPT_MESSAGES_WITHOUT_CHAT + orphaned);
+        }
+    }
+
+    private void compactMigratedText(SQLiteDatabase db, String table, String column) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + column + " = ? WHERE id = ?");
+        int count = 0;
+
+        try (Cursor cursor = db.rawQuery("SELECT id, " + column + " FROM " + table + " WHERE " + column + " IS NOT NULL", null)) {
+            while (cursor.moveToNext()) {
+                byte[] value = cursor.getBlob(1);
+                if (CompactText.isEncoded(value)) {
+                    continue;
+                }
+
+                update.bindBlob(1, CompactText.encode(CompactText.decode(value)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+                count++;
+            }
+        } finally {
+            update.close();
         }
+
+        Log.i(TAG, COMPACTING_STORED_MESSAGES + table + " " + count);
     }
 
     public void openDatabase() throws Exception {
@@ -178,8 +456,8 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
             return;
         }
 
-        String dbPath =  dbLocation + CHATS_DB;
-        db = SQLiteDatabase.openDatabase(dbPath, null, SQLiteDatabase.OPEN_READWRITE);
+        // Go through SQLiteOpenHelper so that onUpgrade runs for databases created by older versions
+        db = getWritableDatabase();
 
         if(!db.isOpen()) {
             throw new Exception(DATABASE_CANNOT_BE_OPENED);
@@ -188,16 +466,94 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         dbInitialized = true;
     }
 
+    private void openReadDatabase() {
+        if (db == null || !db.isOpen()) {
+            return;
+        }
+
+        try {
+            readDb = SQLiteDatabase.openDatabase(db.getPath(),
+                                                 null,
+                                                 SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        } catch (Exception e) {
+            Log.w(TAG, FAILED_TO_OPEN_READ_CONNECTION, e);
+            readDb = null;
+        }
+    }
+
+    // Connection for queries that are not part of a write transaction
+    private SQLiteDatabase reader() {
+        return readDb != null && readDb.isOpen() ? readDb : db;
+    }
+
     public void closeDatabase() {
+        // let a background open finish first, or it would reopen what is closed here
+        awaitOpen();
+        closeConnections();
+    }
+
+    private void closeConnections() {
+        synchronized (writeLock) {
+            if (insertMessageStatement != null) {
+                insertMessageStatement.close();
+                insertMessageStatement = null;
+            }
+            if (updateChatStatement != null) {
+                updateChatStatement.close();
+                updateChatStatement = null;
+            }
+            if (countSeenMessageStatement != null) {
+                countSeenMessageStatement.close();
+                countSeenMessageStatement = null;
+            }
+            if (insertSeenMessageStatement != null) {
+                insertSeenMessageStatement.close();
+                insertSeenMessageStatement = null;
+            }
+            if (updateSummaryStatement != null) {
+                updateSummaryStatement.close();
+                updateSummaryStatement = null;
+            }
+            if (addUnreadStatement != null) {
+                addUnreadStatement.close();
+                addUnreadStatement = null;
+            }
+            if (insertUserStatement != null) {
+                insertUserStatement.close();
+                insertUserStatement = null;
+            }
+            if (updateUserStatement != null) {
+                updateUserStatement.close();
+                updateUserStatement = null;
+            }
+            if (updatePeerNameStatement != null) {
+                updatePeerNameStatement.close();
+                updatePeerNameStatement = null;
+            }
+            if (deleteMessageStatement != null) {
+                deleteMessageStatement.close();
+                deleteMessageStatement = null;
+            }
+            if (resetLastMessageStatement != null) {
+                resetLastMessageStatement.close();
+                resetLastMessageStatement = null;
+            }
+        }
+        if (readDb != null) {
+            readDb.close();
+            readDb = null;
+        }
         if (db != null) {
             close();
         }
+        userCache.clear();
     }
 
     private void deleteDatabase() {
         try {
-            String dbPath =  context.getDatabasePath(CHATS_DB).getPath();
+            String dbPath =  context.getDatabasePath(dbName).getPath();
             Files.delete(Paths.get(dbPath));
+            userCache.clear();
         } catch (IOException e) {
             Log.w(TAG, ERROR_DELETING_DATABASE_FILE, e);
         }
@@ -207,7 +563,7 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
      * Check if the database file exists
      */
     private boolean ifDBExists() {
-        String dbPath = dbLocation + CHATS_DB;
+        String dbPath = dbLocation + dbName;
 
         Log.i(TAG, "Chat db path: " + dbPath);
 
@@ -225,8 +581,23 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         return false;
     }
 
-    private String getSqlScript() throws Exception {
-        InputStream inputStream = assetManager.open(CHATS_SQL);
+    private void executeScript(SQLiteDatabase db, String scriptName) throws Exception {
+        String script = getSqlScript(scriptName).replace("\n", " ");
+        Log.i(TAG, "Executing script: " + scriptName);
+        Log.i(TAG, script);
+
+        // execSQL can only execute a single STATEMENT. So we have to split the
+        // SQL file into individual queries and call execSQL several times
+        for (String sql : script.split(";")) {
+            if (sql.trim().isEmpty())
+                continue;
+
+            db.execSQL(sql);
+        }
+    }
+
+    private String getSqlScript(String scriptName) throws Exception {
+        InputStream inputStream = assetManager.open(scriptName);
 
         byte[] buffer = new byte[inputStream.available()];
         inputStream.read(buffer);
@@ -235,20 +606,96 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         return new String(buffer);
     }
 
+    @Override
+    public void addObserver(InvalidationTracker.Observer observer, String... tables) {
+        invalidationTracker.addObserver(observer, tables);
+    }
+
+    @Override
+    public void removeObserver(InvalidationTracker.Observer observer) {
+        invalidationTracker.removeObserver(observer);
+    }
+
+    // Write transactions go through these three so the tracker only reports changes that committed
+    private void beginTransaction() {
+        db.beginTransactionNonExclusive();
+        invalidationTracker.beginTransaction();
+    }
+
+    private void setTransactionSuccessful() {
+        db.setTransactionSuccessful();
+        invalidationTracker.setTransactionSuccessful();
+    }
+
+    private void endTransaction() {
+        boolean ended = false;
+        try {
+            db.endTransaction();
+            ended = true;
+        } finally {
+            invalidationTracker.endTransaction(ended);
+        }
+    }
+
+    /**
+     * rawQuery, timed when the app has a QueryProfiler.  The time is taken when the caller first
+     * moves the cursor, which is when SQLite runs the statement (see TimedCursor).  Queries slower
+     * than the profiler's threshold go to its slow query log with their EXPLAIN QUERY PLAN.
+     */
+    private Cursor query(SQLiteDatabase connection, String sql, String[] args) {
+        QueryProfiler profiler = QueryProfiler.getDefault();
+        if (profiler == null) {
+            return connection.rawQuery(sql, args);
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = connection.rawQuery(sql, args);
+        return new TimedCursor(cursor, System.nanoTime() - start, elapsed -> {
+            if (profiler.isSlow(elapsed)) {
+                List<String> plan = explain(connection, sql, args);
+                profiler.recordSlowQuery(sql, elapsed, plan);
+                Log.w(TAG, String.format(Locale.ROOT, SLOW_QUERY, elapsed / 1e6, sql, plan));
+            }
+        });
+    }
+
+    private static List<String> explain(SQLiteDatabase connection, String sql, String[] args) {
+        List<String> plan = new ArrayList<>();
+        try (Cursor cursor = connection.rawQuery("EXPLAIN QUERY PLAN " + sql, args)) {
+            // the last column is the step's description, e.g. "SEARCH TABLE messages USING INDEX ..."
+            int detail = cursor.getColumnCount() - 1;
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, ERROR_EXPLAINING_QUERY + e.getMessage());
+        }
+        return plan;
+    }
+
+    // chat_summaries rows are keyed by chat; a peer's name change touches every chat with them
+    private void summariesOfPeerUpdated(String peer) {
+        try (Cursor cursor = query(db, "SELECT chatId FROM chat_summaries WHERE peer = ?", new String[] {peer})) {
+            while (cursor.moveToNext()) {
+                invalidationTracker.updated(CHAT_SUMMARIES, String.valueOf(cursor.getLong(0)));
+            }
+        }
+    }
+
     @Override
     public Optional<Map<String, User>> getPlatformUsers(Set<String> filterBy) {
         try {
             Log.i(TAG, GETTING_CHAT_USERS);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM users", null);
-            Optional<Map<String, User>> map = getPlatformUsers(cursor);
-            cursor.close();
-            return map;
+            try (CursorIterable<User> users = new CursorIterable<>(
+                    query(reader(), "SELECT * FROM users", null), RowMapper::users)) {
+                return getPlatformUsers(users);
+            }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_PLATFORM_USERS, ex);
         }
@@ -261,17 +708,15 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, GETTING_PLATFORM_USER_FOR_ID + recordId);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM users WHERE id = ?",
-                                        new String[] {recordId});
-
-            Optional<User> user = getPlatformUsers(cursor).flatMap(users -> users.values().stream().findFirst());
-            cursor.close();
-            return user;
+            try (CursorIterable<User> users = new CursorIterable<>(
+                    query(reader(), "SELECT * FROM users WHERE id = ? LIMIT 1", new String[] {recordId}), RowMapper::users)) {
+                return users.first().filter(user -> user.uri != null);
+            }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_PLATFORM_USER_FOR_RECORD_ID + recordId, ex);
             return Optional.empty();
@@ -283,41 +728,53 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, GETTING_PLATFORM_USER + firstName + " " + lastName);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM users WHERE firstName = ? AND lastName = ?",
-                                        new String[] {firstName, lastName});
-
-            Optional<List<User>> users = getPlatformUsers(cursor)
-                    .map(Map::values)
-                    .map(ArrayList::new);
-            cursor.close();
-
-            return users;
+            try (CursorIterable<User> users = new CursorIterable<>(
+                    query(reader(), "SELECT * FROM users WHERE firstName = ? AND lastName = ?", new String[] {firstName, lastName}),
+                    RowMapper::users)) {
+                List<User> matches = new ArrayList<>();
+                for (User user : users) {
+                    if (user.uri != null) {
+                        matches.add(user);
+                    }
+                }
+                return !matches.isEmpty() ? Optional.of(matches) : Optional.empty();
+            }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_PLATFORM_USER_FOR + firstName + " " + lastName, ex);
             return Optional.empty();
         }
     }
 
+    /**
+     * Returns the user with this uri.  Results are cached, and the returned instance is shared with
+     * other callers, so do not modify it; use updateUserProfile instead.
+     */
     @Override
     public Optional<User> getPlatformUserByUri(String uri) {
         try {
-            Log.i(TAG, GETTING_PLATFORM_USER + uri);
-
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM users WHERE uri = ?", new String[] {uri});
+            User cached = userCache.get(uri);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+
+            Log.i(TAG, GETTING_PLATFORM_USER + uri);
 
-            Optional<User> user = getPlatformUsers(cursor).flatMap(users -> users.values().stream().findFirst());
-            cursor.close();
-            return user;
+            try (CursorIterable<User> users = new CursorIterable<>(
+                    query(reader(), "SELECT * FROM users WHERE uri = ? LIMIT 1", new String[] {uri}), RowMapper::users)) {
+                Optional<User> user = users.first();
+                user.ifPresent(userCache::put);
+                return user;
+            }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_PLATFORM_USER_FOR_RECORD_ID + uri, ex);
             return Optional.empty();
@@ -329,7 +786,7 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, INSERTING_CHAT_USER + firstName + " " + lastName);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
@@ -352,19 +809,42 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
 
             ContentValues contentValues = new ContentValues();
 
+            String uriToUse = getUriToUse(uri);
+
             contentValues.put(ID, id);
             contentValues.put(FIRST_NAME, firstName);
             contentValues.put(LAST_NAME, lastName);
             contentValues.put(STATUS, status);
             contentValues.put(SOURCE, source);
-            contentValues.put(URI, getUriToUse(uri));
+            contentValues.put(URI, uriToUse);
             contentValues.put(PHOTO, imagesPath);
 
-            long rc = db.insert(USERS, null, contentValues);
+            long rc;
+            // the user row and the peer name on its chat summaries change together
+            synchronized (writeLock) {
+                beginTransaction();
+                try {
+                    rc = db.insert(USERS, null, contentValues);
+                    if (rc > -1) {
+                        invalidationTracker.inserted(USERS, uriToUse);
+
+                        // Chats can be listed before the peer's profile arrives
+                        ContentValues summary = new ContentValues();
+                        summary.put(PEER_NAME, displayName(firstName, lastName));
+                        if (db.update(CHAT_SUMMARIES, summary, "peer=?", new String[] { uriToUse }) > 0) {
+                            summariesOfPeerUpdated(uriToUse);
+                        }
+                    }
+
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                }
+            }
 
             if (rc > -1) {
                 Log.i(TAG, SUCCESSFULLY_INSERTED_CHAT_USER + firstName + " " + lastName);
-
+                userCache.put(new User(id, firstName, lastName, status, source, imagesPath, uriToUse));
                 return Optional.of(id);
             }
         } catch (Exception ex) {
@@ -388,7 +868,7 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, UPDATING_USER_PROFILE + firstName + " " + lastName);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return false;
             }
@@ -402,10 +882,32 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
                 contentValues.put(STATUS, status);
                 contentValues.put(URI, getUriToUse(uri));
 
-                long rc = db.update(USERS,
-                                    contentValues,
-                                    "uri=?",
-                                    new String[] { uri });
+                long rc;
+                synchronized (writeLock) {
+                    beginTransaction();
+                    try {
+                        rc = db.update(USERS,
+                                       contentValues,
+                                       "uri=?",
+                                       new String[] { uri });
+                        if (rc > 0) {
+                            invalidationTracker.updated(USERS, uri);
+                        }
+
+                        // Chat lists show the peer's name from their summary row
+                        ContentValues summary = new ContentValues();
+                        summary.put(PEER_NAME, displayName(firstName, lastName));
+                        if (db.update(CHAT_SUMMARIES, summary, "peer=?", new String[] { uri }) > 0) {
+                            summariesOfPeerUpdated(uri);
+                        }
+
+                        setTransactionSuccessful();
+                    } finally {
+                        endTransaction();
+                    }
+                }
+                // Drop the stale copy; the next lookup reloads the row
+                userCache.invalidate(uri);
 
                 if (rc > 0) {
                     Log.i(TAG, SUCCESSFULLY_UPDATED_USER_PROFILE + firstName + " " + lastName);
@@ -423,30 +925,164 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         return false;
     }
 
+    /**
+     * UPSERT (INSERT ... ON CONFLICT DO UPDATE) needs SQLite 3.24, which only ships from API 30, so each user
+     * is an INSERT OR IGNORE followed, when the row already existed, by an UPDATE that only matches if
+     * something differs.  Both statements are compiled once for the whole batch.
+     */
+    @Override
+    public Optional<List<User>> upsertUsers(Collection<User> users) {
+        try {
+            Log.i(TAG, UPSERTING_USERS + users.size());
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            List<User> changed = new ArrayList<>();
+
+            synchronized (writeLock) {
+                beginTransaction();
+                try {
+                    SQLiteStatement insert = getInsertUserStatement();
+                    SQLiteStatement update = getUpdateUserStatement();
+                    SQLiteStatement peerName = getUpdatePeerNameStatement();
+
+                    for (User user : users) {
+                        if (user == null || user.uri == null || user.uri.trim().isEmpty()) {
+                            continue;
+                        }
+
+                        String firstName = user.firstName != null ? user.firstName : "";
+                        String lastName = user.lastName != null ? user.lastName : "";
+                        String id = UUID.randomUUID().toString();
+
+                        insert.bindString(1, id);
+                        insert.bindString(2, firstName);
+                        insert.bindString(3, lastName);
+                        insert.bindLong(4, user.status);
+                        insert.bindLong(5, user.source);
+                        bindStringOrNull(insert, 6, user.photo);
+                        insert.bindString(7, user.uri);
+
+                        User stored;
+                        if (insert.executeUpdateDelete() > 0) {
+                            stored = new User(id, firstName, lastName, user.status, user.source, user.photo, user.uri);
+                            invalidationTracker.inserted(USERS, user.uri);
+                        } else {
+                            update.bindString(1, firstName);
+                            update.bindString(2, lastName);
+                            update.bindLong(3, user.status);
+                            update.bindString(4, user.uri);
+
+                            if (update.executeUpdateDelete() == 0) {
+                                // already up to date
+                                continue;
+                            }
+                            stored = readUser(user.uri);
+                            invalidationTracker.updated(USERS, user.uri);
+                        }
+
+                        peerName.bindString(1, displayName(firstName, lastName));
+                        peerName.bindString(2, user.uri);
+                        if (peerName.executeUpdateDelete() > 0) {
+                            summariesOfPeerUpdated(user.uri);
+                        }
+
+                        userCache.invalidate(user.uri);
+                        if (stored != null) {
+                            changed.add(stored);
+                        }
+                    }
+
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                }
+            }
+
+            Log.i(TAG, SUCCESSFULLY_UPSERTED_USERS + changed.size());
+
+            return Optional.of(changed);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_UPSERTING_USERS, ex);
+            return Optional.empty();
+        }
+    }
+
+    // Reads through the writer so rows changed by the current transaction are visible
+    private User readUser(String uri) {
+        try (CursorIterable<User> users = new CursorIterable<>(
+                query(db, "SELECT * FROM users WHERE uri = ? LIMIT 1", new String[] {uri}), RowMapper::users)) {
+            return users.first().orElse(null);
+        }
+    }
+
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getInsertUserStatement() {
+        if (insertUserStatement == null) {
+            insertUserStatement = db.compileStatement(
+                    "INSERT OR IGNORE INTO users (id, firstName, lastName, status, source, photo, uri) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+        }
+        return insertUserStatement;
+    }
+
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getUpdateUserStatement() {
+        if (updateUserStatement == null) {
+            // ?1..?3 are reused in the WHERE clause so unchanged rows are not rewritten
+            updateUserStatement = db.compileStatement(
+                    "UPDATE users SET firstName = ?1, lastName = ?2, status = ?3 " +
+                    "WHERE uri = ?4 AND (firstName IS NOT ?1 OR lastName IS NOT ?2 OR status IS NOT ?3)");
+        }
+        return updateUserStatement;
+    }
+
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getUpdatePeerNameStatement() {
+        if (updatePeerNameStatement == null) {
+            updatePeerNameStatement = db.compileStatement("UPDATE chat_summaries SET peerName = ? WHERE peer = ?");
+        }
+        return updatePeerNameStatement;
+    }
+
     @Override
     public Optional<List<Chat>> getAllChats(String senderId, Set<String> excludePersonaIds) {
         try {
             Log.i(TAG, GETTING_ALL_CHATS_FOR_SENDER_ID + senderId);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
             Log.i(TAG, "getAllChats: db path: " + db.getPath());
             // Get chats where the active persona is a participant
-            Cursor cursor = db.rawQuery("SELECT * FROM chats WHERE participantIds LIKE ?",
-                                        new String[] {"%" + senderId + "%"});
-
-
-            // Filter out chats where my other personas are participants
-            List<Chat> chats = getChats(cursor)
-                    .orElse(new ArrayList<>())
-                    .stream()
-                    .filter(chat -> !excludePersonaIds.contains(chat.participantIds.get(0)) && !excludePersonaIds.contains(chat.participantIds.get(1)))
-                    .collect(Collectors.toList());
-            cursor.close();
-            return Optional.of(chats);
+            try (CursorIterable<Chat> rows = new CursorIterable<>(
+                    query(reader(), "SELECT c.* FROM chat_participants p " +
+                                    "INNER JOIN chats c ON c.id = p.chatId " +
+                                    "WHERE p.uri = ?",
+                                    new String[] {senderId}),
+                    RowMapper::chats)) {
+                List<Chat> chats = new ArrayList<>();
+                for (Chat chat : rows) {
+                    // Filter out chats where my other personas are participants
+                    if (chat.participantIds.size() < 2
+                            || excludePersonaIds.contains(chat.participantIds.get(0))
+                            || excludePersonaIds.contains(chat.participantIds.get(1))) {
+                        continue;
+                    }
+
+                    if (chat.participantIds.contains(ALL)) {
+                        chats.add(0, chat);
+                    } else {
+                        chats.add(chat);
+                    }
+                }
+                return Optional.of(chats);
+            }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_CHATS_FOR_SENDER_ID + senderId, ex);
         }
@@ -459,17 +1095,20 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, GETTING_CHAT_FOR_SENDER_RECEIVER);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM chats WHERE participantIds LIKE ? AND participantIds LIKE ?",
-                                        new String[] {"%" + senderId + "%", "%" + receiverId + "%"});
-
-            Optional<Chat> chat = getChats(cursor).flatMap(chats -> chats.stream().findFirst());
-            cursor.close();
-            return chat;
+            try (CursorIterable<Chat> chats = new CursorIterable<>(
+                    query(reader(), "SELECT c.* FROM chat_participants s " +
+                                    "INNER JOIN chat_participants r ON r.chatId = s.chatId " +
+                                    "INNER JOIN chats c ON c.id = s.chatId " +
+                                    "WHERE s.uri = ? AND r.uri = ? LIMIT 1",
+                                    new String[] {senderId, receiverId}),
+                    RowMapper::chats)) {
+                return chats.first();
+            }
 
         } catch (Exception ex) {
             Log.e(TAG, ERROR_GETTING_PLATFORM_USERS, ex);
@@ -483,27 +1122,42 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         try {
             Log.i(TAG, INSERTING_CHAT);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
             ContentValues contentValues = new ContentValues();
 
-            contentValues.put(ID, chat.id.toUpperCase());
-
             String participants = String.join("|", chat.participantIds);
 
+            // id is left to SQLite; the chat takes its rowid
             contentValues.put(PARTICIPANT_IDS, participants);
-            contentValues.put(LAST_MSG, chat.lastMsg);
-            contentValues.put(TIMESTAMP, chat.timestamp.toString());
-
-            long rc = db.insert(CHATS, null, contentValues);
-
-            if (rc > -1) {
-                Log.i(TAG, SUCCESSFULLY_INSERTED_CHAT);
-
-                return Optional.of(chat.id);
+            contentValues.put(LAST_MSG, CompactText.encode(chat.lastMsg));
+            contentValues.put(TIMESTAMP, Utils.getLongFromDateTime(chat.timestamp));
+
+            beginTransaction();
+            try {
+                long rc = db.insert(CHATS, null, contentValues);
+
+                if (rc > -1) {
+                    for (String participantId : chat.participantIds) {
+                        ContentValues participant = new ContentValues();
+                        participant.put(CHAT_ID, rc);
+                        participant.put(URI, participantId);
+                        db.insertWithOnConflict(CHAT_PARTICIPANTS, null, participant, SQLiteDatabase.CONFLICT_IGNORE);
+                    }
+                    insertChatSummaries(rc, chat);
+                    invalidationTracker.inserted(CHATS, String.valueOf(rc));
+                    setTransactionSuccessful();
+
+                    Log.i(TAG, SUCCESSFULLY_INSERTED_CHAT);
+
+                    chat.id = String.valueOf(rc);
+                    return Optional.of(chat.id);
+                }
+            } finally {
+                endTransaction();
             }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_INSERTING_CHAT, ex);
@@ -515,129 +1169,676 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         return Optional.empty();
     }
 
-    @Override
-    public boolean updateChat(String id, String lastMessage) {
-        try {
-            Log.i(TAG, UPDATING_CHAT);
-
-            if (db == null || !dbInitialized) {
-                Log.w(TAG, NO_DATABASE_CONNECTION);
-                return false;
-            }
-
-            Cursor cursor = db.rawQuery("SELECT * FROM chats WHERE id = ?",
-                                        new String[] {id});
-
-            int cursorCount = cursor.getCount();
-            cursor.close();
-            if (cursorCount > 0) {
-                ContentValues contentValues = new ContentValues();
-
-                contentValues.put(LAST_MSG, lastMessage);
-                contentValues.put(TIMESTAMP, LocalDateTime.now().toString());
-
-                long rc = db.update(CHATS, contentValues, "id=?", new String[]{id});
+    // Adds a row to the chat list of each participant. Must run inside the transaction that inserts the chat.
+    private void insertChatSummaries(long chatId, Chat chat) {
+        long timestamp = Utils.getLongFromDateTime(chat.timestamp);
+        boolean pinned = chat.participantIds.contains(ALL);
 
-                if (rc > 0) {
-                    Log.i(TAG, SUCCESSFULLY_UPDATED_CHAT + id);
+        for (String owner : chat.participantIds) {
+            for (String peer : chat.participantIds) {
+                if (peer.equals(owner)) {
+                    continue;
+                }
 
-                    return true;
+                User peerUser = getPlatformUserByUri(peer).orElse(null);
+
+                ContentValues summary = new ContentValues();
+                summary.put(OWNER, owner);
+                summary.put(CHAT_ID, chatId);
+                summary.put(PEER, peer);
+                summary.put(PEER_NAME, peerUser != null ? displayName(peerUser.firstName, peerUser.lastName) : null);
+                summary.put(LAST_TIMESTAMP, timestamp);
+                summary.put(UNREAD_COUNT, 0);
+                summary.put(SORT_KEY, pinned ? PINNED_SORT_KEY : timestamp);
+                if (db.insertWithOnConflict(CHAT_SUMMARIES, null, summary, SQLiteDatabase.CONFLICT_IGNORE) > -1) {
+                    invalidationTracker.inserted(CHAT_SUMMARIES, String.valueOf(chatId));
                 }
             }
-        } catch (Exception ex) {
-            Log.e(TAG, ERROR_UPDATING_CHAT, ex);
-            return false;
         }
+    }
 
-        Log.e(TAG, ERROR_UPDATING_CHAT + id);
-
-        return false;
+    // Same format as User.getName
+    private static String displayName(String firstName, String lastName) {
+        return (firstName != null ? firstName : "") + " " + (lastName != null ? lastName : "");
     }
 
     @Override
-    public Optional<List<ChatMessage>> getAllMessages(Chat chat) {
+    public Optional<List<ChatSummary>> getChatSummaries(String owner) {
         try {
-            Log.i(TAG, GETTING_ALL_MESSAGES_FOR_CHAT_ID + chat.id);
+            Log.i(TAG, GETTING_CHAT_SUMMARIES_FOR_OWNER + owner);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM messages WHERE chatId = ?",
-                                        new String[] {chat.id});
+            // Walks idx_chat_summaries_owner_sort, newest first with the ALL chat pinned on top
+            Cursor cursor = query(reader(), "SELECT s.*, c.lastMsg FROM chat_summaries s " +
+                                        "INNER JOIN chats c ON c.id = s.chatId " +
+                                        "WHERE s.owner = ? ORDER BY s.sortKey DESC",
+                                        new String[] {owner});
 
-            Optional<List<ChatMessage>> messages = getMessages(cursor);
-            cursor.close();
-            return messages;
+            try (CursorIterable<ChatSummary> rows = new CursorIterable<>(cursor, RowMapper::chatSummaries)) {
+                return Optional.of(rows.toList());
+            }
         } catch (Exception ex) {
-            Log.e(TAG, ERROR_GETTING_MESSAGES_FOR_CHAT_ID + chat.id, ex);
+            Log.e(TAG, ERROR_GETTING_CHAT_SUMMARIES_FOR_OWNER + owner, ex);
         }
 
         return Optional.empty();
     }
 
     @Override
-    public Optional<List<ChatMessage>> getAllMessages(String uri) {
+    public Optional<List<ChatSummary>> getChatSummaries(String owner, Collection<String> chatIds) {
         try {
-            Log.i(TAG, GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS + uri);
+            Log.i(TAG, GETTING_CHAT_SUMMARIES_FOR_OWNER + owner + ", chats: " + chatIds.size());
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
                 return Optional.empty();
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM messages WHERE senderId = ? OR receiverId = ?",
-                                        new String[] {uri, uri});
+            List<ChatSummary> summaries = new ArrayList<>(chatIds.size());
+            List<String> ids = new ArrayList<>(chatIds);
 
-            Optional<List<ChatMessage>> messages = getMessages(cursor);
-            cursor.close();
-            return  messages;
+            // Primary key lookups, in chunks that stay under SQLite's limit of 999 bound parameters
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+                List<String> chunk = ids.subList(from, Math.min(from + MAX_IDS_PER_QUERY, ids.size()));
+                String[] args = new String[chunk.size() + 1];
+                args[0] = owner;
+                for (int i = 0; i < chunk.size(); i++) {
+                    args[i + 1] = chunk.get(i);
+                }
+
+                String placeholders = String.join(",", Collections.nCopies(chunk.size(), "?"));
+                try (CursorIterable<ChatSummary> rows = new CursorIterable<>(
+                        query(reader(), "SELECT s.*, c.lastMsg FROM chat_summaries s " +
+                                        "INNER JOIN chats c ON c.id = s.chatId " +
+                                        "WHERE s.owner = ? AND s.chatId IN (" + placeholders + ")",
+                                        args),
+                        RowMapper::chatSummaries)) {
+                    for (ChatSummary summary : rows) {
+                        summaries.add(summary);
+                    }
+                }
+            }
+            return Optional.of(summaries);
         } catch (Exception ex) {
-            Log.e(TAG, ERROR_GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS + uri, ex);
+            Log.e(TAG, ERROR_GETTING_CHAT_SUMMARIES_FOR_OWNER + owner, ex);
         }
 
         return Optional.empty();
     }
 
     @Override
-    public Optional<ChatMessage> getMessage(String recordId) {
+    public boolean markChatRead(String chatId, String owner) {
         try {
-            Log.i(TAG, GETTING_MESSAGE_FOR_RECORD_ID + recordId);
-
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
-                return Optional.empty();
+                return false;
             }
 
-            Cursor cursor = db.rawQuery("SELECT * FROM messages WHERE id = ?",
-                                        new String[] {recordId});
+            ContentValues contentValues = new ContentValues();
+            contentValues.put(UNREAD_COUNT, 0);
 
-            Optional<ChatMessage> message = getMessages(cursor).flatMap(chatMessages -> chatMessages.stream().findFirst());
-            cursor.close();
-            return message;
+            // Only rewrite the row when there is something to clear
+            if (db.update(CHAT_SUMMARIES, contentValues, "chatId=? AND owner=? AND unreadCount > 0",
+                          new String[] {chatId, owner}) > 0) {
+                invalidationTracker.updated(CHAT_SUMMARIES, chatId);
+                return true;
+            }
+            return false;
         } catch (Exception ex) {
-            Log.e(TAG, "Error getting message for recordId: " + recordId, ex);
-            return Optional.empty();
+            Log.e(TAG, ERROR_MARKING_CHAT_READ + chatId, ex);
+            return false;
         }
     }
 
     @Override
-    public Optional<String> saveMessage(String chatId, String senderId, String msg, ChatDirection direction, Chat chat) {
+    public boolean updateChat(String id, String lastMessage) {
         try {
-            Log.i(TAG, INSERTING_MESSAGE);
+            Log.i(TAG, UPDATING_CHAT);
 
-            if (db == null || !dbInitialized) {
+            if (!awaitOpen()) {
                 Log.w(TAG, NO_DATABASE_CONNECTION);
-                return Optional.empty();
+                return false;
             }
 
-            if (senderId == null || senderId.isEmpty()) {
-                Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + SENDER_ID_IS_NOT_VALID);
-                return Optional.empty();
+            boolean exists;
+            try (Cursor cursor = query(db, "SELECT 1 FROM chats WHERE id = ? LIMIT 1", new String[] {id})) {
+                exists = cursor.moveToFirst();
             }
+            if (exists) {
+                ContentValues contentValues = new ContentValues();
 
-            if (chat.participantIds == null || chat.participantIds.size() < 2) {
+                long timestamp = Utils.getLongFromDateTime(LocalDateTime.now());
+                contentValues.put(LAST_MSG, CompactText.encode(lastMessage));
+                contentValues.put(TIMESTAMP, timestamp);
+
+                long rc;
+                beginTransaction();
+                try {
+                    rc = db.update(CHATS, contentValues, "id=?", new String[]{id});
+                    db.execSQL("UPDATE chat_summaries SET lastTimestamp = ?, " +
+                               "sortKey = CASE WHEN sortKey = " + PINNED_SORT_KEY + " THEN sortKey ELSE ? END " +
+                               "WHERE chatId = ?",
+                               new Object[] {timestamp, timestamp, id});
+                    if (rc > 0) {
+                        invalidationTracker.updated(CHATS, id);
+                        invalidationTracker.updated(CHAT_SUMMARIES, id);
+                    }
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                }
+
+                if (rc > 0) {
+                    Log.i(TAG, SUCCESSFULLY_UPDATED_CHAT + id);
+
+                    return true;
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_UPDATING_CHAT, ex);
+            return false;
+        }
+
+        Log.e(TAG, ERROR_UPDATING_CHAT + id);
+
+        return false;
+    }
+
+    @Override
+    public Optional<List<ChatMessage>> getAllMessages(Chat chat) {
+        try {
+            Log.i(TAG, GETTING_ALL_MESSAGES_FOR_CHAT_ID + chat.id);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            Cursor cursor = query(reader(), "SELECT * FROM messages WHERE chatId = ?",
+                                        new String[] {chat.id});
+
+            return getMessages(cursor);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_GETTING_MESSAGES_FOR_CHAT_ID + chat.id, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<List<ChatMessage>> getMessages(String chatId, ChatMessage before, int limit) {
+        try {
+            Log.i(TAG, GETTING_MESSAGES_PAGE_FOR_CHAT_ID + chatId);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            // Keyset pagination over idx_messages_chat_timestamp: (timestamp, id) of the oldest
+            // message already loaded marks where the next page starts, so no OFFSET scan is needed
+            Cursor cursor;
+            if (before == null) {
+                cursor = query(reader(), "SELECT * FROM messages WHERE chatId = ? " +
+                                     "ORDER BY timestamp DESC, id DESC LIMIT " + limit,
+                                     new String[] {chatId});
+            } else {
+                String timestamp = String.valueOf(before.timestamp);
+                cursor = query(reader(), "SELECT * FROM messages WHERE chatId = ? AND timestamp <= ? " +
+                                     "AND (timestamp < ? OR id < ?) " +
+                                     "ORDER BY timestamp DESC, id DESC LIMIT " + limit,
+                                     new String[] {chatId, timestamp, timestamp, before.id});
+            }
+
+            return getMessages(cursor);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_GETTING_MESSAGES_FOR_CHAT_ID + chatId, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<List<ChatMessage>> getAllMessages(String uri) {
+        try {
+            Log.i(TAG, GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS + uri);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            Cursor cursor = query(reader(), "SELECT * FROM messages WHERE senderId = ? OR receiverId = ?",
+                                        new String[] {uri, uri});
+
+            return getMessages(cursor);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_GETTING_ALL_CHAT_MESSAGES_WHERE_PARTICIPANT_IS + uri, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Pages through the messages by id, EXPORT_PAGE_SIZE rows per query, and writes each one as a line
+     * as soon as it is read, so memory use does not grow with the history.  Message bodies are written
+     * as stored (ciphertext); photos only as their attachment reference.
+     */
+    @Override
+    public Optional<Long> exportMessages(String uri, OutputStream out) {
+        try {
+            Log.i(TAG, EXPORTING_MESSAGES + uri);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            long exported = 0;
+            long lastId = 0;
+            int rows;
+
+            do {
+                rows = 0;
+                // The rowid range restarts each page where the last one stopped, so the whole export is one pass
+                try (CursorIterable<ChatMessage> messages = new CursorIterable<>(
+                        query(reader(), "SELECT * FROM messages WHERE id > ? AND (senderId = ? OR receiverId = ?) " +
+                                        "ORDER BY id LIMIT " + EXPORT_PAGE_SIZE,
+                                        new String[] {String.valueOf(lastId), uri, uri}),
+                        RowMapper::messages)) {
+                    for (ChatMessage message : messages) {
+                        GSON.toJson(new ExportedMessage(message), writer);
+                        writer.write('\n');
+                        lastId = Long.parseLong(message.id);
+                        rows++;
+                    }
+                }
+                exported += rows;
+            } while (rows == EXPORT_PAGE_SIZE);
+
+            writer.flush();
+            Log.i(TAG, SUCCESSFULLY_EXPORTED_MESSAGES + exported);
+
+            return Optional.of(exported);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_EXPORTING_MESSAGES + uri, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Reads one line at a time and stores IMPORT_BATCH_SIZE messages per transaction, so a large import
+     * neither holds the whole file in memory nor commits once per message.  Imported messages keep their
+     * timestamps and are stored as read.  Importing the same file twice stores its messages twice.
+     */
+    @Override
+    public Optional<Long> importMessages(InputStream in) {
+        try {
+            Log.i(TAG, IMPORTING_MESSAGES);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+            // one JSON document per line
+            reader.setLenient(true);
+
+            // participant pair -> chat id, so each chat is looked up once
+            Map<String, String> chatIds = new HashMap<>();
+            List<ChatMessage> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+            long imported = 0;
+
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                ExportedMessage record = GSON.fromJson(reader, ExportedMessage.class);
+                if (record == null || record.sender == null || record.receiver == null) {
+                    continue;
+                }
+
+                String pair = record.sender.compareTo(record.receiver) < 0
+                        ? record.sender + "|" + record.receiver
+                        : record.receiver + "|" + record.sender;
+                String chatId = chatIds.get(pair);
+                if (chatId == null) {
+                    chatId = getChat(record.sender, record.receiver)
+                            .map(chat -> chat.id)
+                            .orElseGet(() -> saveChat(new Chat(record.sender, record.receiver, null)).orElse(null));
+                    if (chatId == null) {
+                        throw new SQLiteException(ERROR_INSERTING_CHAT);
+                    }
+                    chatIds.put(pair, chatId);
+                }
+
+                batch.add(record.toMessage(chatId));
+                if (batch.size() == IMPORT_BATCH_SIZE) {
+                    imported += importBatch(batch);
+                }
+            }
+            if (!batch.isEmpty()) {
+                imported += importBatch(batch);
+            }
+
+            Log.i(TAG, SUCCESSFULLY_IMPORTED_MESSAGES + imported);
+
+            return Optional.of(imported);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_IMPORTING_MESSAGES, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    // Stores and clears 'batch'. Returns how many were stored.
+    private int importBatch(List<ChatMessage> batch) {
+        int stored = appendMessages(batch, false)
+                .orElseThrow(() -> new SQLiteException(ERROR_IMPORTING_MESSAGES))
+                .size();
+        batch.clear();
+        return stored;
+    }
+
+    // Scans by rowid, which follows arrival order, so the oldest messages are found first
+    @Override
+    public int deleteMessagesOlderThan(long timestamp, int limit) {
+        return deleteMessages(selectMessages("SELECT id, imageUrl, chatId FROM messages WHERE timestamp < ? ORDER BY id LIMIT " + limit,
+                                             new String[] {String.valueOf(timestamp)}));
+    }
+
+    // Walks idx_messages_chat_timestamp from the newest message, skipping the ones kept
+    @Override
+    public int deleteMessagesBeyond(String chatId, int keep, int limit) {
+        return deleteMessages(selectMessages("SELECT id, imageUrl, chatId FROM messages WHERE chatId = ? " +
+                                             "ORDER BY timestamp DESC, id DESC LIMIT " + limit + " OFFSET " + keep,
+                                             new String[] {chatId}));
+    }
+
+    /**
+     * Only the messages count towards 'maxBytes' (see #messageBytes), so other tables growing past it
+     * never empty the chats.  Deletes no more of the oldest messages than it takes to get under it.
+     */
+    @Override
+    public int deleteOldestMessagesOver(long maxBytes, int limit) {
+        long excess = messageBytes() - maxBytes;
+        if (excess <= 0) {
+            return 0;
+        }
+
+        List<MessageRow> oldest = selectMessages("SELECT id, imageUrl, chatId, " + MESSAGE_BYTES + " FROM messages " +
+                                                 "ORDER BY id LIMIT " + limit, null);
+        List<MessageRow> rows = new ArrayList<>();
+        for (MessageRow row : oldest) {
+            if (excess <= 0) {
+                break;
+            }
+            rows.add(row);
+            excess -= row.bytes;
+        }
+        return deleteMessages(rows);
+    }
+
+    /**
+     * What the messages take up: their ciphertext, photo references and participant ids.  Reads every
+     * row, but length() of a BLOB does not read its content, and it runs on the read connection without
+     * holding up writers.  Returns 0 if the database is not available.
+     */
+    @VisibleForTesting
+    long messageBytes() {
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return 0;
+            }
+            return DatabaseUtils.longForQuery(reader(), "SELECT CAST(TOTAL(" + MESSAGE_BYTES + ") AS INTEGER) FROM messages", null);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_DELETING_MESSAGES, ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public Optional<List<String>> getChatsWithMoreMessagesThan(int count) {
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            // One pass over idx_messages_chat_timestamp
+            try (Cursor cursor = query(reader(), "SELECT chatId FROM messages GROUP BY chatId HAVING COUNT(*) > ?",
+                                       new String[] {String.valueOf(count)})) {
+                List<String> chatIds = new ArrayList<>();
+                while (cursor.moveToNext()) {
+                    chatIds.add(String.valueOf(cursor.getLong(0)));
+                }
+                return Optional.of(chatIds);
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_GETTING_CHATS_OVER_LIMIT, ex);
+        }
+
+        return Optional.empty();
+    }
+
+    // A message picked for deletion, and what #deleteMessages has to tidy up after it
+    private static class MessageRow {
+        final long id;
+        final String imageUrl;
+        final Long chatId;
+        // see MESSAGE_BYTES; 0 unless selected
+        final long bytes;
+        MessageRow(long id, String imageUrl, Long chatId, long bytes) {
+            this.id = id;
+            this.imageUrl = imageUrl;
+            this.chatId = chatId;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Runs 'select', which returns (id, imageUrl, chatId) and optionally the row's size, on the read
+     * connection.  Picking the rows can take a scan, so it stays out of the write transaction; rows
+     * deleted in between are skipped by #deleteMessages.
+     */
+    private List<MessageRow> selectMessages(String select, String[] args) {
+        List<MessageRow> rows = new ArrayList<>();
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return rows;
+            }
+
+            try (Cursor cursor = query(reader(), select, args)) {
+                while (cursor.moveToNext()) {
+                    rows.add(new MessageRow(cursor.getLong(0),
+                                            cursor.isNull(1) ? null : cursor.getString(1),
+                                            cursor.isNull(2) ? null : cursor.getLong(2),
+                                            cursor.getColumnCount() > 3 ? cursor.getLong(3) : 0));
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_DELETING_MESSAGES, ex);
+            rows.clear();
+        }
+        return rows;
+    }
+
+    /**
+     * Deletes the messages by id in one short transaction, and then their photos if nothing else refers
+     * to them.  A chat whose last message was deleted gets the newest one left as its last message, or
+     * none, in the same transaction.  Returns how many were deleted.
+     */
+    private int deleteMessages(List<MessageRow> rows) {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return 0;
+            }
+
+            int deleted = 0;
+            List<String> photos = new ArrayList<>();
+
+            synchronized (writeLock) {
+                beginTransaction();
+                try {
+                    Set<Long> chatIds = new HashSet<>();
+                    SQLiteStatement delete = getDeleteMessageStatement();
+                    for (MessageRow row : rows) {
+                        delete.bindLong(1, row.id);
+                        if (delete.executeUpdateDelete() == 0) {
+                            // deleted since it was selected
+                            continue;
+                        }
+                        invalidationTracker.deleted(MESSAGES, String.valueOf(row.id));
+                        deleted++;
+                        if (row.imageUrl != null) {
+                            photos.add(row.imageUrl);
+                        }
+                        if (row.chatId != null) {
+                            chatIds.add(row.chatId);
+                        }
+                    }
+
+                    // chats.lastMsg is the newest message's ciphertext, and the chat list shows it
+                    SQLiteStatement resetLast = getResetLastMessageStatement();
+                    for (long chatId : chatIds) {
+                        resetLast.bindLong(1, chatId);
+                        if (resetLast.executeUpdateDelete() > 0) {
+                            invalidationTracker.updated(CHATS, String.valueOf(chatId));
+                            invalidationTracker.updated(CHAT_SUMMARIES, String.valueOf(chatId));
+                        }
+                    }
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                }
+
+                // Under the lock, so a message that refers to the same photo cannot be stored in between
+                for (String photo : photos) {
+                    deletePhotoIfUnused(photo);
+                }
+            }
+
+            if (deleted > 0) {
+                Log.i(TAG, DELETING_EXPIRED_MESSAGES + deleted);
+            }
+            return deleted;
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_DELETING_MESSAGES, ex);
+            return 0;
+        }
+    }
+
+    // NOT thread safe! Callers must hold writeLock
+    private void deletePhotoIfUnused(String ref) {
+        try (Cursor cursor = query(db, "SELECT 1 FROM messages WHERE imageUrl = ? " +
+                                       "UNION ALL SELECT 1 FROM users WHERE photo = ? LIMIT 1",
+                                   new String[] {ref, ref})) {
+            if (!cursor.moveToFirst()) {
+                attachmentStore.delete(ref);
+            }
+        }
+    }
+
+    @Override
+    public int deleteSeenMessagesOlderThan(long timestamp, int limit) {
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return 0;
+            }
+
+            // The bloom filter cannot forget them, but a filter hit is always checked against the table
+            synchronized (writeLock) {
+                return db.delete(SEEN_MESSAGES, "(senderId, msgId) IN (SELECT senderId, msgId FROM seen_messages " +
+                                                "WHERE timestamp < ? LIMIT " + limit + ")",
+                                 new String[] {String.valueOf(timestamp)});
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_DELETING_SEEN_MESSAGES, ex);
+            return 0;
+        }
+    }
+
+    /**
+     * Gives up to 'maxPages' free pages back to the file system and returns how many are still free.
+     * Frees nothing in a database that enableIncrementalVacuum could not convert yet.
+     */
+    @Override
+    public long reclaimSpace(int maxPages) {
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return 0;
+            }
+
+            synchronized (writeLock) {
+                // without incremental auto-vacuum the pragma frees nothing, and the free pages would never go down
+                if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                    return 0;
+                }
+
+                // Each step of the pragma frees one page and returns a row, so it has to be read to the end
+                try (Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null)) {
+                    while (cursor.moveToNext()) {
+                        // keep stepping
+                    }
+                }
+                return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_RECLAIMING_SPACE, ex);
+            return 0;
+        }
+    }
+
+    @Override
+    public Optional<ChatMessage> getMessage(String recordId) {
+        try {
+            Log.i(TAG, GETTING_MESSAGE_FOR_RECORD_ID + recordId);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            try (CursorIterable<ChatMessage> messages = new CursorIterable<>(
+                    query(reader(), "SELECT * FROM messages WHERE id = ? LIMIT 1", new String[] {recordId}),
+                    RowMapper::messages)) {
+                return messages.first();
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Error getting message for recordId: " + recordId, ex);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<String> saveMessage(String chatId, String senderId, String msg, ChatDirection direction, Chat chat) {
+        try {
+            Log.i(TAG, INSERTING_MESSAGE);
+
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            if (senderId == null || senderId.isEmpty()) {
+                Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + SENDER_ID_IS_NOT_VALID);
+                return Optional.empty();
+            }
+
+            if (chat.participantIds == null || chat.participantIds.size() < 2) {
                 Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + PARTICIPANT_IDS_MUST_CONTAIN_2_ELEMENTS);
                 return Optional.empty();
             }
@@ -654,25 +1855,27 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
                 return Optional.empty();
             }
 
-            String id = chatId != null && !chatId.trim().isEmpty()
-                    ? chatId : UUID.randomUUID().toString().toUpperCase();
-
             ContentValues contentValues = new ContentValues();
 
-            contentValues.put(ID, id);
-            contentValues.put(CHAT_ID, chat.id);
-            contentValues.put(SEND_OR_RCVD, direction.getDirection());
+            // Record ids are rowids; only a numeric id can be kept, anything else gets a new one
+            long id = parseRowId(chatId);
+            if (id > 0) {
+                contentValues.put(ID, id);
+            }
+            contentValues.put(CHAT_ID, parseRowId(chat.id));
+            contentValues.put(SEND_OR_RCVD, direction.getCode());
             contentValues.put(SENDER_ID, senderId);
             contentValues.put(RECEIVER_ID, receiverId);
-            contentValues.put(MSG, msg);
+            contentValues.put(MSG, CompactText.encode(msg));
             contentValues.put(TIMESTAMP, Utils.getLongFromDateTime(LocalDateTime.now()));
 
             long rc = db.insert(MESSAGES, null, contentValues);
 
             if (rc > -1) {
                 Log.i(TAG, SUCCESSFULLY_INSERTED_MESSAGE);
+                invalidationTracker.inserted(MESSAGES, String.valueOf(rc));
 
-                return Optional.of(id);
+                return Optional.of(String.valueOf(rc));
             }
         } catch (Exception ex) {
             Log.e(TAG, ERROR_SAVING_MESSAGE, ex);
@@ -685,105 +1888,357 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
     }
 
     @Override
-    public Optional<String> savePhotoMessage(String senderUri, Image image, Chat chat) {
-        return Optional.empty();
+    public Optional<ChatMessage> appendMessage(ChatMessage message) {
+        return appendMessages(Collections.singletonList(message))
+                .flatMap(messages -> messages.stream().findFirst());
     }
 
-    private String saveToInternalStorage(Bitmap bitmapImage) throws Exception {
-        ContextWrapper cw = new ContextWrapper(context);
-        // path to /data/data/yourApp/app_data/imageDir
-        File directory = cw.getDir("imageDir", Context.MODE_PRIVATE);
-        // Create imageDir
-        File imagePath = new File(directory, UUID.randomUUID().toString() + ".jpg");
+    @Override
+    public Optional<List<ChatMessage>> appendMessages(List<ChatMessage> messages) {
+        return appendMessages(messages, true);
+    }
 
-        Log.i(TAG, "Saving image to: " + imagePath.getAbsolutePath());
+    // A message that already has a timestamp keeps it. 'countUnread' false stores received messages as read.
+    private Optional<List<ChatMessage>> appendMessages(List<ChatMessage> messages, boolean countUnread) {
+        try {
+            Log.i(TAG, APPENDING_MESSAGES + messages.size());
 
-        try (FileOutputStream fos = new FileOutputStream(imagePath)) {
-            // Use the compress method on the BitMap object to write image to the OutputStream
-            bitmapImage.compress(Bitmap.CompressFormat.PNG, 100, fos);
-            Log.d(TAG, "Successfully saved image to: " + imagePath.getAbsolutePath());
-        }
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return Optional.empty();
+            }
+
+            List<ChatMessage> stored = new ArrayList<>(messages.size());
+            // chatId -> newest message appended to it, so each chat is updated once per batch
+            Map<String, ChatMessage> lastMessages = new LinkedHashMap<>();
+            // chatId -> receiver -> messages received, added to the receiver's unread count
+            Map<String, Map<String, Integer>> unread = new HashMap<>();
 
-        return imagePath.getAbsolutePath();
+            synchronized (writeLock) {
+                beginTransaction();
+                try {
+                    SQLiteStatement insert = getInsertMessageStatement();
+
+                    for (ChatMessage message : messages) {
+                        if (!isValidForAppend(message)) {
+                            continue;
+                        }
+
+                        // Checked here as well as by the caller: a redelivery can be queued before the first copy commits
+                        if (message.remoteId != null && wasSeen(message.senderId, message.remoteId)) {
+                            Log.i(TAG, DROPPING_DUPLICATE_MESSAGE + message.remoteId);
+                            continue;
+                        }
+
+                        long timestamp = message.timestamp != null
+                                ? message.timestamp
+                                : Utils.getLongFromDateTime(LocalDateTime.now());
+
+                        insert.clearBindings();
+                        insert.bindLong(1, parseRowId(message.chatId));
+                        insert.bindLong(2, message.sendOrRcvd.getCode());
+                        insert.bindString(3, message.senderId);
+                        insert.bindString(4, message.receiverId);
+                        bindStringOrNull(insert, 5, message.imageUrl);
+                        bindBlobOrNull(insert, 6, CompactText.encode(message.msg));
+                        insert.bindLong(7, timestamp);
+
+                        try {
+                            message.id = String.valueOf(insert.executeInsert());
+                            message.timestamp = timestamp;
+                        } catch (SQLiteConstraintException e) {
+                            // One bad row must not roll back the rest of the group
+                            Log.w(TAG, ERROR_SAVING_MESSAGE + message.chatId, e);
+                            continue;
+                        }
+
+                        if (message.remoteId != null) {
+                            markSeen(message.senderId, message.remoteId, timestamp);
+                        }
+
+                        invalidationTracker.inserted(MESSAGES, message.id);
+                        stored.add(message);
+                        lastMessages.merge(message.chatId, message,
+                                           (last, next) -> next.timestamp >= last.timestamp ? next : last);
+                        if (countUnread && message.sendOrRcvd == ChatDirection.receive) {
+                            unread.computeIfAbsent(message.chatId, k -> new HashMap<>())
+                                  .merge(message.receiverId, 1, Integer::sum);
+                        }
+                    }
+
+                    SQLiteStatement update = getUpdateChatStatement();
+
+                    for (ChatMessage message : lastMessages.values()) {
+                        update.clearBindings();
+                        bindBlobOrNull(update, 1, CompactText.encode(message.msg));
+                        update.bindLong(2, message.timestamp);
+                        update.bindLong(3, parseRowId(message.chatId));
+
+                        if (update.executeUpdateDelete() == 0) {
+                            throw new SQLiteException(ERROR_UPDATING_CHAT + message.chatId);
+                        }
+
+                        SQLiteStatement summary = getUpdateSummaryStatement();
+                        summary.bindLong(1, message.timestamp);
+                        summary.bindLong(2, message.timestamp);
+                        summary.bindLong(3, parseRowId(message.chatId));
+                        summary.executeUpdateDelete();
+
+                        invalidationTracker.updated(CHATS, message.chatId);
+                        invalidationTracker.updated(CHAT_SUMMARIES, message.chatId);
+                    }
+
+                    SQLiteStatement addUnread = getAddUnreadStatement();
+
+                    for (Map.Entry<String, Map<String, Integer>> chat : unread.entrySet()) {
+                        for (Map.Entry<String, Integer> receiver : chat.getValue().entrySet()) {
+                            addUnread.bindLong(1, receiver.getValue());
+                            addUnread.bindLong(2, parseRowId(chat.getKey()));
+                            addUnread.bindString(3, receiver.getKey());
+                            addUnread.executeUpdateDelete();
+                        }
+                    }
+
+                    setTransactionSuccessful();
+                } finally {
+                    endTransaction();
+                }
+            }
+
+            Log.i(TAG, SUCCESSFULLY_INSERTED_MESSAGES + stored.size());
+
+            return Optional.of(stored);
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_SAVING_MESSAGE, ex);
+            return Optional.empty();
+        }
     }
 
-    private Bitmap loadImageFromStorage(String path) throws FileNotFoundException {
-        return BitmapFactory.decodeStream(new FileInputStream(path));
+    @Override
+    public boolean isDuplicateMessage(String senderId, String remoteId) {
+        if (senderId == null || remoteId == null) {
+            return false;
+        }
+
+        if (!seenMessages.mightContain(seenKey(senderId, remoteId))) {
+            return false;
+        }
+
+        try {
+            if (!awaitOpen()) {
+                Log.w(TAG, NO_DATABASE_CONNECTION);
+                return false;
+            }
+
+            // Filter hit: either a real duplicate or a false positive, the table decides
+            try (Cursor cursor = query(reader(), "SELECT 1 FROM seen_messages WHERE senderId = ? AND msgId = ? LIMIT 1",
+                                       new String[] {senderId, remoteId})) {
+                return cursor.moveToFirst();
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_CHECKING_SEEN_MESSAGE + remoteId, ex);
+            return false;
+        }
     }
 
-    private Optional<Map<String, User>>  getPlatformUsers(Cursor cursor) {
-        Map<String, User> users = new HashMap<>();
+    // Part of open, so it must not wait for it
+    private void loadSeenMessages() {
+        if (db == null || !dbInitialized) {
+            return;
+        }
 
-        if (cursor.getCount() > 0) {
+        try (Cursor cursor = query(reader(), "SELECT senderId, msgId FROM " + SEEN_MESSAGES, null)) {
             while (cursor.moveToNext()) {
-                String uri = cursor.getString(6);
+                seenMessages.put(seenKey(cursor.getString(0), cursor.getString(1)));
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, ERROR_LOADING_SEEN_MESSAGES, ex);
+        }
+    }
 
-                if (uri == null) {
-                    continue;
-                }
+    // NOT thread safe! Callers must hold writeLock and be inside the append transaction
+    private boolean wasSeen(String senderId, String remoteId) {
+        if (!seenMessages.mightContain(seenKey(senderId, remoteId))) {
+            return false;
+        }
 
-                users.put(uri, getUser(cursor, uri));
-            }
+        if (countSeenMessageStatement == null) {
+            countSeenMessageStatement = db.compileStatement("SELECT COUNT(*) FROM seen_messages WHERE senderId = ? AND msgId = ?");
         }
+        countSeenMessageStatement.bindString(1, senderId);
+        countSeenMessageStatement.bindString(2, remoteId);
+        return countSeenMessageStatement.simpleQueryForLong() > 0;
+    }
 
-        return !users.isEmpty() ? Optional.of(users) : Optional.empty();
+    // NOT thread safe! Callers must hold writeLock and be inside the append transaction
+    private void markSeen(String senderId, String remoteId, long timestamp) {
+        if (insertSeenMessageStatement == null) {
+            insertSeenMessageStatement = db.compileStatement(
+                    "INSERT OR IGNORE INTO seen_messages (senderId, msgId, timestamp) VALUES (?, ?, ?)");
+        }
+        insertSeenMessageStatement.bindString(1, senderId);
+        insertSeenMessageStatement.bindString(2, remoteId);
+        insertSeenMessageStatement.bindLong(3, timestamp);
+        insertSeenMessageStatement.executeUpdateDelete();
+
+        // If the transaction rolls back this only adds a false positive, which the table lookup catches
+        seenMessages.put(seenKey(senderId, remoteId));
     }
 
-    @NonNull
-    private User getUser(Cursor cursor, String uri) {
-        return new User(cursor.getString(0).toUpperCase(),
-                             cursor.getString(1),
-                             cursor.getString(2),
-                             cursor.getInt(3),
-                             cursor.getInt(4),
-                             cursor.getString(5),
-                             cursor.getString(6));
+    private static String seenKey(String senderId, String remoteId) {
+        return senderId + '\n' + remoteId;
     }
 
-    private Optional<List<Chat>> getChats(Cursor cursor) {
-        List<Chat> chats = new ArrayList<>();
+    private boolean isValidForAppend(ChatMessage message) {
+        if (message.senderId == null || message.senderId.isEmpty()) {
+            Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + SENDER_ID_IS_NOT_VALID);
+            return false;
+        }
 
-        if (cursor.getCount() > 0) {
-            while (cursor.moveToNext()) {
-                Chat chat = getChat(cursor);
+        if (message.receiverId == null || message.receiverId.isEmpty()) {
+            Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + INVALID_RECEIVER_ID);
+            return false;
+        }
 
-                if (chat.participantIds.contains(ALL)) {
-                    chats.add(0, chat);
-                    continue;
-                }
+        if (parseRowId(message.chatId) <= 0) {
+            Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + CHAT_ID_IS_NOT_VALID);
+            return false;
+        }
 
-                chats.add(getChat(cursor));
-            }
+        if (message.sendOrRcvd == null) {
+            Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + DIRECTION_IS_NOT_VALID);
+            return false;
         }
 
-        return !chats.isEmpty() ? Optional.of(chats) : Optional.empty();
+        if (message.msg == null && message.imageUrl == null) {
+            Log.e(TAG, UNABLE_TO_SAVE_MESSAGE_TO_DB + MESSAGE_IS_EMPTY);
+            return false;
+        }
+
+        return true;
+    }
+
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getInsertMessageStatement() {
+        if (insertMessageStatement == null) {
+            insertMessageStatement = db.compileStatement(
+                    "INSERT INTO messages (chatId, sendOrRcvd, senderId, receiverId, imageUrl, msg, timestamp) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+        }
+        return insertMessageStatement;
     }
 
-    @NonNull
-    private Chat getChat(Cursor cursor) {
-        Chat chat = new Chat();
-        chat.id = cursor.getString(0);
-        chat.participantIds = new ArrayList<>();
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getUpdateChatStatement() {
+        if (updateChatStatement == null) {
+            // An imported message older than the chat's last one leaves it alone
+            updateChatStatement = db.compileStatement(
+                    "UPDATE chats SET lastMsg = CASE WHEN timestamp > ?2 THEN lastMsg ELSE ?1 END, " +
+                    "timestamp = MAX(IFNULL(timestamp, 0), ?2) WHERE id = ?3");
+        }
+        return updateChatStatement;
+    }
 
-        String[] parts = cursor.getString(1).split("[|]");
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getUpdateSummaryStatement() {
+        if (updateSummaryStatement == null) {
+            updateSummaryStatement = db.compileStatement(
+                    "UPDATE chat_summaries SET lastTimestamp = MAX(IFNULL(lastTimestamp, 0), ?1), " +
+                    "sortKey = CASE WHEN sortKey = " + PINNED_SORT_KEY + " THEN sortKey ELSE MAX(IFNULL(sortKey, 0), ?2) END " +
+                    "WHERE chatId = ?3");
+        }
+        return updateSummaryStatement;
+    }
 
-        if (parts.length > 1) {
-            chat.participantIds.add(parts[0]);
-            chat.participantIds.add(parts[1]);
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getAddUnreadStatement() {
+        if (addUnreadStatement == null) {
+            addUnreadStatement = db.compileStatement(
+                    "UPDATE chat_summaries SET unreadCount = unreadCount + ? WHERE chatId = ? AND owner = ?");
         }
+        return addUnreadStatement;
+    }
 
-        chat.lastMsg = cursor.getString(2);
-        chat.timestamp = LocalDateTime.parse(cursor.getString(3));
-        return chat;
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getResetLastMessageStatement() {
+        if (resetLastMessageStatement == null) {
+            // Walks idx_messages_chat_timestamp from the newest message; a chat left empty gets NULL
+            String newest = "(SELECT msg FROM messages WHERE chatId = ?1 ORDER BY timestamp DESC, id DESC LIMIT 1)";
+            resetLastMessageStatement = db.compileStatement(
+                    "UPDATE chats SET lastMsg = " + newest + " WHERE id = ?1 AND lastMsg IS NOT " + newest);
+        }
+        return resetLastMessageStatement;
     }
 
+    // NOT thread safe! Callers must hold writeLock
+    private SQLiteStatement getDeleteMessageStatement() {
+        if (deleteMessageStatement == null) {
+            deleteMessageStatement = db.compileStatement("DELETE FROM messages WHERE id = ?");
+        }
+        return deleteMessageStatement;
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
+
+    // chats and messages are keyed by rowid, handed out as decimal strings. Returns -1 for anything else.
+    private static long parseRowId(String id) {
+        if (id == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Returns the attachment reference to store as the user's photo
+    private String saveToInternalStorage(Bitmap bitmapImage) throws Exception {
+        Log.i(TAG, "Saving image to attachment store");
+
+        // Compressed straight into the encrypted store, never materialized as a byte array
+        String ref = attachmentStore.put(out -> bitmapImage.compress(Bitmap.CompressFormat.JPEG, PHOTO_QUALITY, out));
+        Log.d(TAG, "Successfully saved image: " + ref);
+
+        return ref;
+    }
+
+    // Users that have a uri, keyed by it
+    private static Optional<Map<String, User>> getPlatformUsers(Iterable<User> rows) {
+        Map<String, User> users = new HashMap<>();
+
+        for (User user : rows) {
+            if (user.uri != null) {
+                users.put(user.uri, user);
+            }
+        }
+
+        return !users.isEmpty() ? Optional.of(users) : Optional.empty();
+    }
+
+    // Maps and closes 'cursor'. A row that cannot be read is logged and skipped.
     private Optional<List<ChatMessage>> getMessages(Cursor cursor) {
         List<ChatMessage> messages = new ArrayList<>();
 
-        if (cursor.getCount() > 0) {
-            while (cursor.moveToNext()) {
+        try (CursorIterable<ChatMessage> rows = new CursorIterable<>(cursor, RowMapper::messages)) {
+            Iterator<ChatMessage> iterator = rows.iterator();
+            while (iterator.hasNext()) {
                 try {
-                    messages.add(getMessage(cursor));
+                    messages.add(iterator.next());
                 } catch (Exception e) {
                     Log.e(TAG, "Error getting message from db: ", e);
                 }
@@ -793,19 +2248,39 @@ public class SQLiteDBService extends SQLiteOpenHelper implements ChatRepository
         return !messages.isEmpty() ? Optional.of(messages) : Optional.empty();
     }
 
-    private ChatMessage getMessage(Cursor cursor) {
-        ChatMessage message = new ChatMessage();
-        message.id = cursor.getString(0);
-        message.chatId = cursor.getString(1);
-        message.sendOrRcvd = ChatDirection.valueOf(cursor.getString(2));
-        message.senderId = cursor.getString(3);
-        message.receiverId = cursor.getString(4);
-        message.imageUrl = cursor.getString(5);
-        message.msg = cursor.getString(6);
-
-        message.timestamp = Long.parseLong(cursor.getString(7));
+    // One line of exportMessages. Chats are not exported; the sender and receiver identify the chat on import.
+    private static class ExportedMessage {
+        // ChatDirection code, null when the stored one is not a known direction. Such a record is not imported.
+        Integer direction;
+        String sender;
+        String receiver;
+        String imageUrl;
+        String msg;
+        Long timestamp;
+
+        // for Gson
+        ExportedMessage() {}
+
+        ExportedMessage(ChatMessage message) {
+            direction = message.sendOrRcvd != null ? message.sendOrRcvd.getCode() : null;
+            sender = message.senderId;
+            receiver = message.receiverId;
+            imageUrl = message.imageUrl;
+            msg = message.msg;
+            timestamp = message.timestamp;
+        }
 
-        return message;
+        ChatMessage toMessage(String chatId) {
+            ChatMessage message = new ChatMessage();
+            message.chatId = chatId;
+            // a missing direction fails isValidForAppend, so the record is logged and left out
+            message.sendOrRcvd = direction != null ? ChatDirection.fromInt(direction) : null;
+            message.senderId = sender;
+            message.receiverId = receiver;
+            message.imageUrl = imageUrl;
+            message.msg = msg;
+            message.timestamp = timestamp;
+            return message;
+        }
     }
-
 }
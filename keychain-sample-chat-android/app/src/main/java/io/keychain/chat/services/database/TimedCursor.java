@@ -0,0 +1,78 @@
+package io.keychain.chat.services.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * A cursor that reports how long its query took, once.  rawQuery only prepares the statement;
+ * SQLite runs it when the first cursor window is filled, on the first move or count.  That is the
+ * moment timed here, so profiling reads nothing the caller would not have read itself.
+ */
+final class TimedCursor extends CursorWrapper {
+    interface Listener {
+        // Nanoseconds spent preparing the statement and filling the first window
+        void onFirstFill(long elapsedNanos);
+    }
+
+    private final long prepareNanos;
+    private final Listener listener;
+    private boolean filled;
+
+    TimedCursor(Cursor cursor, long prepareNanos, Listener listener) {
+        super(cursor);
+        this.prepareNanos = prepareNanos;
+        this.listener = listener;
+    }
+
+    private void fill() {
+        if (filled) {
+            return;
+        }
+        filled = true;
+        long start = System.nanoTime();
+        super.getCount();
+        listener.onFirstFill(prepareNanos + System.nanoTime() - start);
+    }
+
+    @Override
+    public int getCount() {
+        fill();
+        return super.getCount();
+    }
+
+    @Override
+    public boolean move(int offset) {
+        fill();
+        return super.move(offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        fill();
+        return super.moveToPosition(position);
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        fill();
+        return super.moveToFirst();
+    }
+
+    @Override
+    public boolean moveToLast() {
+        fill();
+        return super.moveToLast();
+    }
+
+    @Override
+    public boolean moveToNext() {
+        fill();
+        return super.moveToNext();
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        fill();
+        return super.moveToPrevious();
+    }
+}
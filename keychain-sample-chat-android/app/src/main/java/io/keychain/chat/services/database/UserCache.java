@@ -0,0 +1,42 @@
+package io.keychain.chat.services.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.keychain.chat.models.chat.User;
+
+/**
+ * Bounded LRU cache of users keyed by uri, kept by SQLiteDBService in front of the users table.
+ *
+ * The cached User instances are handed out to every caller, so they must be treated as read-only.
+ * Anything that changes a user row has to go through the repository, which replaces or evicts the
+ * entry in the same call.
+ */
+class UserCache {
+    private static final int MAX_USERS = 256;
+
+    private final Map<String, User> users = new LinkedHashMap<String, User>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, User> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+
+    synchronized User get(String uri) {
+        return users.get(uri);
+    }
+
+    synchronized void put(User user) {
+        if (user != null && user.uri != null) {
+            users.put(user.uri, user);
+        }
+    }
+
+    synchronized void invalidate(String uri) {
+        users.remove(uri);
+    }
+
+    synchronized void clear() {
+        users.clear();
+    }
+}
@@ -1,8 +1,8 @@
 package io.keychain.chat.viewmodel;
 
-import static io.keychain.common.Constants.ERROR_GETTING_MESSAGES_FOR_CHAT_ID;
+import static io.keychain.common.Constants.CHAT_SUMMARIES;
 import static io.keychain.common.Constants.ERROR_SAVING_CHAT_TO_DB;
-import static io.keychain.common.Constants.ERROR_UPDATING_CHAT;
+import static io.keychain.common.Constants.MESSAGES;
 import static io.keychain.common.Constants.NEW_CHAT_SAVED_TO_DB_RECORD_ID;
 import static io.keychain.common.Constants.NO_EXISTING_CHAT_FOR;
 import static io.keychain.common.Constants.PAIR_ACK;
@@ -16,15 +16,15 @@ import static io.keychain.common.Constants.SENDER_SUB_NAME;
 import static io.keychain.common.Constants.SENDING;
 
 import android.app.Application;
-import android.util.Base64;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,32 +32,53 @@ import org.json.JSONObject;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import io.keychain.chat.KeychainApp;
 import io.keychain.chat.MqttUseCase;
 import io.keychain.chat.interfaces.ChatRepository;
 import io.keychain.chat.models.chat.Chat;
 import io.keychain.chat.models.chat.ChatDirection;
 import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.ChatSummary;
 import io.keychain.chat.models.chat.Message;
 import io.keychain.chat.models.chat.PairStatus;
 import io.keychain.chat.models.chat.User;
 import io.keychain.chat.models.chat.UserSource;
 import io.keychain.chat.services.channel.ChannelMessage;
+import io.keychain.chat.services.channel.ChatMessageCodec;
+import io.keychain.chat.services.database.AsyncChatRepository;
+import io.keychain.chat.services.database.InvalidationTracker;
+import io.keychain.chat.services.database.MessageWriter;
+import io.keychain.chat.services.database.QueryProfiler;
+import io.keychain.chat.services.database.RetentionJob;
+import io.keychain.chat.services.database.RetentionPolicy;
 import io.keychain.chat.services.database.SQLiteDBService;
 import io.keychain.chat.views.contacts.ChatUser;
 import io.keychain.core.Contact;
 import io.keychain.core.Facade;
 import io.keychain.core.Uri;
+import io.keychain.mobile.threading.TaskRunner;
 import io.keychain.mobile.util.PairHandler;
 import io.keychain.mobile.util.PairHelper;
 import io.keychain.mobile.util.UriUploader;
@@ -69,6 +90,8 @@ public class TabbedViewModel extends KeychainViewModel {
     public static final String UNABLE_TO_SEND_MESSAGE_NO_RECORD_ID = "Unable to send message. No record id.";
     public static final String SENDING_CHAT_MESSAGE_TO_TOPIC = "Sending chat message to topic: ";
     public static final String UNABLE_TO_SEND_CHAT_MESSAGE = "Unable to send chat message because it was not saved to the chat database.";
+    public static final String UNABLE_TO_QUEUE_CHAT_MESSAGE = "Unable to send chat message to: ";
+    public static final String UNABLE_TO_SEND_PAIRING_MESSAGE = "Unable to send pairing message to: ";
     public static final String ERROR_PAIRING_USING_TRUSTED_DIRECTORY = "Error pairing using trusted directory: ";
     public static final String PAIRING_TO = "Pairing to ";
     public static final String OVER_MQTT = " over MQTT";
@@ -78,29 +101,121 @@ public class TabbedViewModel extends KeychainViewModel {
 
     public static final String RECEIVED_CHAT_MESSAGE = "Received chat message: ";
     public static final String CHAT_MESSAGE_SAVED_TO_DATABASE = "Chat message saved to database, messageId: ";
+    public static final String UNABLE_TO_STORE_RECEIVED_MESSAGE = "Did not store message received from: ";
+    public static final String DROPPING_DUPLICATE_MESSAGE = "Dropping duplicate or own message: ";
+
+    // Number of messages loaded when a chat is opened and on every scroll back through history
+    private static final int MESSAGE_PAGE_SIZE = 50;
+
+    // Keys of the queries where only the newest result matters
+    private static final String QUERY_PERSONA = "persona";
+    private static final String QUERY_MESSAGES = "messages";
+    private static final String QUERY_OPEN_CHAT = "openChat";
+
+    // Chat list order: the ALL chat pinned on top, then most recent first
+    private static final Comparator<ChatSummary> CHAT_LIST_ORDER =
+            Comparator.comparingLong((ChatSummary summary) -> summary.sortKey).reversed();
 
     /* Repository */
     private final ChatRepository chatRepository;
+    // Group-commits inbound messages off the MQTT thread
+    private final MessageWriter messageWriter;
+    // Wire format of chat messages, chosen per peer
+    private final ChatMessageCodec messageCodec;
+    // Deletes history the retention policy in application.properties no longer keeps
+    private final RetentionJob retentionJob;
+    // Runs the repository queries the UI waits on, so none of them touch SQLite on the main thread
+    private final AsyncChatRepository asyncRepository;
+    // Encrypts, stores and sends what we type, one message at a time so they go out in order
+    private final ExecutorService sendExecutor;
+    private final TaskRunner sendRunner;
+    // Loads the chat list and the patches to it, one at a time so they apply in commit order
+    private final ExecutorService chatListExecutor;
+    private final TaskRunner chatListRunner;
+    // Decrypts received messages for display, in arrival order, so the message writer only commits
+    private final ExecutorService displayExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     /* Live Data for Views to observe */
-    private final MutableLiveData<List<Chat>> chatLiveData = new MutableLiveData<>();
+    private final MutableLiveData<List<ChatSummary>> chatLiveData = new MutableLiveData<>();
     private final MutableLiveData<List<Message>> allMessages = new MutableLiveData<>();
+    private final MutableLiveData<List<Message>> olderMessages = new MutableLiveData<>();
+    private final MutableLiveData<List<String>> removedMessages = new MutableLiveData<>();
     private final MutableLiveData<Message> latestMessage = new MutableLiveData<>();
     private final MutableLiveData<List<ChatUser>> chatContacts = new MutableLiveData<>();
     private final MutableLiveData<String> trustedDirectoryResult = new MutableLiveData<>();
 
     /* Internal state, unobservable by Views */
-    private String activePersonaUri;
-    private final Map<String, ChatUser> chatUserMap = new HashMap<>();
+    private volatile String activePersonaUri;
+    // Sorted by uri, the order the contact list shows them in
+    private final Map<String, ChatUser> chatUserMap = new ConcurrentSkipListMap<>();
+    private Chat currentChat;
+    // Author used for the active persona's own messages, rebuilt when the cached user changes
+    private User meAuthor;
+    private User meAuthorSource;
+    private ChatMessage oldestLoadedMessage;
+    private boolean hasOlderMessages;
+    private boolean loadingMessages;
+    // chatId -> plaintext of its last message, so the chat list does not decrypt on every refresh.
+    // Kept in memory only; the database holds nothing but ciphertext.
+    private final Map<String, Preview> previews = new ConcurrentHashMap<>();
+    // Chats whose summary changed since the chat list was last patched
+    private final Set<String> changedChatIds = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean chatListPatchScheduled = new AtomicBoolean();
+    private final InvalidationTracker.Observer chatSummariesObserver = this::onChatSummariesChanged;
+    private final InvalidationTracker.Observer messagesObserver = this::onMessagesChanged;
+
+    // Keyed by the ciphertext it was decrypted from, so a chat whose last message changes for any
+    // reason, retention included, is decrypted again
+    private static class Preview {
+        final String ciphertext;
+        final String text;
+        Preview(String ciphertext, String text) { this.ciphertext = ciphertext; this.text = text; }
+    }
+
+    // A page of stored messages and the same page decrypted for display
+    private static class MessagePage {
+        final List<ChatMessage> rows;
+        final List<Message> messages;
+        MessagePage(List<ChatMessage> rows, List<Message> messages) { this.rows = rows; this.messages = messages; }
+    }
+
+    // Current summaries of the chats in 'chatIds'; a chat in 'chatIds' but not in 'rows' left the list
+    private static class ChatListPatch {
+        final String owner;
+        final Set<String> chatIds;
+        final List<ChatSummary> rows;
+        ChatListPatch(String owner, Set<String> chatIds, List<ChatSummary> rows) { this.owner = owner; this.chatIds = chatIds; this.rows = rows; }
+    }
 
     private final PairHandler pairHandler;
     private final PairHelper pairHelper;
     private final MqttUseCase mqttUseCase;
 
     public TabbedViewModel(Application application, MqttUseCase useCase) {
+        this(application, useCase, new SQLiteDBService(application));
+    }
+
+    // Runs on 'database' instead of the app's chat database, e.g. a file of a test's own
+    @VisibleForTesting
+    public TabbedViewModel(Application application, MqttUseCase useCase, SQLiteDBService database) {
         super(application);
 
-        chatRepository = new SQLiteDBService(application);
+        // Every repository call is timed when the app has a profiler
+        QueryProfiler profiler = QueryProfiler.getDefault();
+        chatRepository = profiler != null ? profiler.wrap(database) : database;
+        messageWriter = new MessageWriter(chatRepository);
+        messageCodec = new ChatMessageCodec(!"false".equalsIgnoreCase(KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_CHAT_BINARY_FORMAT)));
+        retentionJob = new RetentionJob(chatRepository, RetentionPolicy.fromProperties(KeychainApp.GetInstance()::getApplicationProperty));
+        asyncRepository = new AsyncChatRepository();
+        sendExecutor = Executors.newSingleThreadExecutor();
+        sendRunner = new TaskRunner(sendExecutor);
+        chatListExecutor = Executors.newSingleThreadExecutor();
+        chatListRunner = new TaskRunner(chatListExecutor);
+        displayExecutor = Executors.newSingleThreadExecutor();
+
+        chatRepository.addObserver(chatSummariesObserver, CHAT_SUMMARIES);
+        chatRepository.addObserver(messagesObserver, MESSAGES);
 
         pairHandler = new PairHandler();
         pairHandler.addCallback(PAIR_REQUEST, this::handlePairMessageRequest, true);
@@ -115,34 +230,76 @@ public class TabbedViewModel extends KeychainViewModel {
 
     public String getActivePersonaUri() { return activePersonaUri; }
 
-    public LiveData<List<Chat>> getChats() { return chatLiveData; }
+    public LiveData<List<ChatSummary>> getChats() { return chatLiveData; }
 
     public LiveData<Message> getLatestMessage() { return latestMessage; }
 
     public LiveData<List<Message>> getAllMessages() { return allMessages; }
 
+    public LiveData<List<Message>> getOlderMessages() { return olderMessages; }
+
+    // Ids of messages that were deleted from the database, e.g. by retention
+    public LiveData<List<String>> getRemovedMessages() { return removedMessages; }
+
     public LiveData<List<ChatUser>> getChatContacts() { return chatContacts; }
 
     public LiveData<String> getTrustedDirectoryResult() { return trustedDirectoryResult; }
 
     // Call on login: set the list of chat rooms available, set current chat to null, and set the current persona/user
     public void setChatPersona(String uri) {
+        String previousPersonaUri = activePersonaUri;
         this.activePersonaUri = uri;
         UriUploader.DoUpload(new Uri(activePersonaUri), pairHelper, uploaded -> {});
-        gatewayService.findPersona(uri).ifPresent(this::createGatewayChatUserIfNeeded);
+
         setActivePersona(uri); // TODO: needed?
-        chatRepository
-                .getPlatformUserByUri(uri)
-                .ifPresent(user -> chatLiveData.setValue(chatRepository.getAllChats(user.id, Collections.emptySet()).orElse(Collections.emptyList())));
         setChat(null);
 
-        // go through gateway and fill users in chat db if needed
-        gatewayService.getContacts().forEach(this::createGatewayChatUserIfNeeded);
-        // go through chat db users and add to map
-        chatRepository.getPlatformUsers(null).ifPresent(m -> {
-            m.values().forEach(u -> addChatUser(u.firstName, u.lastName, u.uri, PairStatus.fromInt(u.status), UserSource.fromInt(u.source)));
+        if (!"false".equalsIgnoreCase(KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_DATABASE_WARM_UP))) {
+            chatRepository.warmUp(uri);
+        }
+
+        boolean firstLogin = chatUserMap.isEmpty();
+        asyncRepository.execute(QUERY_PERSONA, () -> {
+            // reconcile the persona and the gateway contacts with the chat db in one batch
+            List<User> gatewayUsers = new ArrayList<>();
+            gatewayService.findPersona(uri).ifPresent(persona -> addGatewayUser(gatewayUsers, persona));
+            gatewayService.getContacts().forEach(contact -> addGatewayUser(gatewayUsers, contact));
+            List<User> changed = chatRepository.upsertUsers(gatewayUsers).orElse(Collections.emptyList());
+            Log.i(TAG, "Reconciled " + gatewayUsers.size() + " gateway users, " + changed.size() + " changed");
+
+            if (firstLogin) {
+                // first login: go through chat db users and add to map
+                return chatRepository.getPlatformUsers(null).<List<User>>map(m -> new ArrayList<>(m.values())).orElse(Collections.emptyList());
+            }
+
+            // the map already holds every user; only apply what changed
+            List<User> users = new ArrayList<>(changed);
+            if (previousPersonaUri != null && !previousPersonaUri.equals(uri)) {
+                chatRepository.getPlatformUserByUri(previousPersonaUri).ifPresent(users::add);
+            }
+            return users;
+        }, users -> {
+            if (users == null) {
+                return;
+            }
+            chatUserMap.remove(uri);
+            users.forEach(this::addChatUser);
+            refreshChatUsers();
+            refreshChats();
         });
-        refreshChatUsers();
+    }
+
+    private void addGatewayUser(List<User> users, Facade facade) {
+        try {
+            users.add(new User(null, facade.getName(), facade.getSubName(), PairStatus.PAIRED.getCode(),
+                               UserSource.GATEWAY.getCode(), null, facade.getUri().toString()));
+        } catch (Exception e) {
+            Log.e(TAG, "General exception: " + e.getMessage());
+        }
+    }
+
+    private void addChatUser(User u) {
+        addChatUser(u.firstName, u.lastName, u.uri, PairStatus.fromInt(u.status), UserSource.fromInt(u.source));
     }
 
     private boolean createChatUserIfNeeded(String name, String subName, String uri, PairStatus status, UserSource source) {
@@ -170,14 +327,6 @@ public class TabbedViewModel extends KeychainViewModel {
         return true;
     }
 
-    private void createGatewayChatUserIfNeeded(Facade facade) {
-        try {
-            createChatUserIfNeeded(facade.getName(), facade.getSubName(), facade.getUri().toString(), PairStatus.PAIRED, UserSource.GATEWAY);
-        } catch (Exception e) {
-            Log.e(TAG, "General exception: " + e.getMessage());
-        }
-    }
-
     private void addChatUser(String name, String subName, String uri, PairStatus status, UserSource source) {
         ChatUser user = new ChatUser(
                 name,
@@ -194,42 +343,174 @@ public class TabbedViewModel extends KeychainViewModel {
             chatUserMap.put(uri, user);
     }
 
+    // Loads the whole chat list; after that it is kept current by patching in the rows that change
     public void refreshChats() {
-        chatLiveData.setValue(chatRepository.getAllChats(activePersonaUri, Collections.emptySet()).orElse(Collections.emptyList()));
+        String owner = activePersonaUri;
+        chatListRunner.executeAsync(() -> {
+            List<ChatSummary> summaries = chatRepository.getChatSummaries(owner).orElse(Collections.emptyList());
+            // decrypt here, so the list renders from the preview cache
+            summaries.forEach(this::getPreview);
+            return summaries;
+        }, summaries -> chatLiveData.setValue(summaries == null ? Collections.emptyList() : summaries));
+    }
+
+    // Called on the committing thread: note the chats and load them on the chat list thread
+    private void onChatSummariesChanged(InvalidationTracker.Changes changes) {
+        changedChatIds.addAll(changes.all());
+        if (chatListPatchScheduled.compareAndSet(false, true)) {
+            chatListRunner.executeAsync(this::loadChatListPatch, this::applyChatListPatch);
+        }
+    }
+
+    private ChatListPatch loadChatListPatch() {
+        // changes noted from here on schedule another patch
+        chatListPatchScheduled.set(false);
+        Set<String> chatIds = new HashSet<>(changedChatIds);
+        changedChatIds.removeAll(chatIds);
+
+        String owner = activePersonaUri;
+        if (owner == null || chatIds.isEmpty()) {
+            return null;
+        }
+
+        List<ChatSummary> rows = chatRepository.getChatSummaries(owner, chatIds).orElse(null);
+        if (rows == null) {
+            return null;
+        }
+        rows.forEach(this::getPreview);
+        return new ChatListPatch(owner, chatIds, rows);
+    }
+
+    private void applyChatListPatch(ChatListPatch patch) {
+        List<ChatSummary> current = chatLiveData.getValue();
+        // before the first refreshChats there is no list to patch; it will load every row anyway
+        if (patch == null || current == null || !patch.owner.equals(activePersonaUri)) {
+            return;
+        }
+
+        List<ChatSummary> patched = new ArrayList<>(current.size() + patch.rows.size());
+        for (ChatSummary summary : current) {
+            if (!patch.chatIds.contains(summary.chatId)) {
+                patched.add(summary);
+            }
+        }
+        patched.addAll(patch.rows);
+        // all but the patched rows are already in order, which the sort handles in about linear time
+        patched.sort(CHAT_LIST_ORDER);
+        chatLiveData.setValue(patched);
+    }
+
+    // Called on the committing thread. New messages already reach the conversation through latestMessage.
+    private void onMessagesChanged(InvalidationTracker.Changes changes) {
+        if (!changes.deleted.isEmpty()) {
+            List<String> ids = new ArrayList<>(changes.deleted);
+            mainHandler.post(() -> removedMessages.setValue(ids));
+        }
+    }
+
+    /**
+     * Plaintext of the chat's last message.  Decrypts only when the preview is not cached for the
+     * summary's last message yet, i.e. the first time a chat is listed after the app starts.
+     */
+    public String getPreview(ChatSummary summary) {
+        Preview cached = previews.get(summary.chatId);
+        if (cached != null && Objects.equals(cached.ciphertext, summary.lastMsg)) {
+            return cached.text;
+        }
+
+        String text = decrypt(summary.lastMsg);
+        previews.put(summary.chatId, new Preview(summary.lastMsg, text));
+        return text;
+    }
+
+    private void cachePreview(ChatMessage message, String plaintext) {
+        previews.put(message.chatId, new Preview(message.msg, plaintext));
     }
 
     public void refreshChatUsers() {
-        List<ChatUser> list = chatUserMap.values().stream().sorted(Comparator.comparing(a -> a.uri)).collect(Collectors.toList());
+        List<ChatUser> list = new ArrayList<>(chatUserMap.values());
         if (Utils.IsUiThread())
             chatContacts.setValue(list);
         else
             chatContacts.postValue(list);
     }
     
-    // Call on conversation click: set list of chat messages for the chat
+    // Call on conversation click: set the most recent page of chat messages for the chat, newest first
     public Chat setChat(Chat chat) {
-        if (chat != null) {
-            List<Message> messages = chatRepository
-                    .getAllMessages(chat)
-                    .orElse(Collections.emptyList())
-                    .stream().map(m -> getMessage(decrypt(m.msg), m.senderId, Utils.getDateTimeFromEpoc(m.timestamp), m.id))
-                    .collect(Collectors.toList());
-            allMessages.setValue(messages);
+        currentChat = chat;
+        oldestLoadedMessage = null;
+        hasOlderMessages = false;
+        olderMessages.setValue(null);
+
+        if (chat == null) {
+            asyncRepository.cancel(QUERY_MESSAGES);
+            loadingMessages = false;
+        } else {
+            // don't show the previous chat's messages while this one loads
+            allMessages.setValue(Collections.emptyList());
+            loadMessagePage(chat, allMessages);
+
+            String owner = activePersonaUri;
+            asyncRepository.execute(null, () -> chatRepository.markChatRead(chat.id, owner), null);
         }
         return chat;
     }
 
-    // Call on contact click
-    public Chat setChatByFacade(ChatUser user) {
-        Chat chat = null;
+    // Call when the conversation is scrolled to its oldest loaded message: emits the next page of history, newest first
+    public void loadOlderMessages() {
+        if (currentChat == null || !hasOlderMessages || loadingMessages) {
+            return;
+        }
+
+        loadMessagePage(currentChat, olderMessages);
+    }
+
+    // Loads and decrypts the page before oldestLoadedMessage off the main thread, then emits it to 'target'
+    private void loadMessagePage(Chat chat, MutableLiveData<List<Message>> target) {
+        ChatMessage before = oldestLoadedMessage;
+        loadingMessages = true;
+
+        // Same key for every page: opening another chat supersedes a page still loading for this one
+        asyncRepository.execute(QUERY_MESSAGES, () -> {
+            List<ChatMessage> page = chatRepository
+                    .getMessages(chat.id, before, MESSAGE_PAGE_SIZE)
+                    .orElse(Collections.emptyList());
+
+            List<Message> messages = page.stream()
+                    .map(m -> getMessage(decrypt(m.msg), m.senderId, Utils.getDateTimeFromEpoc(m.timestamp), m.id))
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            return new MessagePage(page, messages);
+        }, page -> {
+            loadingMessages = false;
+            if (page == null) {
+                return;
+            }
+
+            hasOlderMessages = page.rows.size() == MESSAGE_PAGE_SIZE;
+            if (!page.rows.isEmpty()) {
+                oldestLoadedMessage = page.rows.get(page.rows.size() - 1);
+            }
+            if (target == allMessages || !page.messages.isEmpty()) {
+                target.setValue(page.messages);
+            }
+        });
+    }
+
+    // Call on contact click: 'callback' gets the chat with this contact on the main thread, or null if there is none
+    public void setChatByFacade(ChatUser user, TaskRunner.Callback<Chat> callback) {
         String senderUri = activePersonaUri;
         String recipientUri = user.uri;
-        chat = chatRepository.getChat(senderUri, recipientUri).orElse(null);
-        if (chat == null && user.isChattable) {
-            chatRepository.saveChat(new Chat(senderUri, recipientUri, null));
-            chat = chatRepository.getChat(senderUri, recipientUri).orElse(null);
-        }
-        return setChat(chat);
+        boolean chattable = user.isChattable;
+
+        asyncRepository.execute(QUERY_OPEN_CHAT, () -> {
+            Chat chat = chatRepository.getChat(senderUri, recipientUri).orElse(null);
+            if (chat == null && chattable) {
+                chatRepository.saveChat(new Chat(senderUri, recipientUri, null));
+                chat = chatRepository.getChat(senderUri, recipientUri).orElse(null);
+            }
+            return chat;
+        }, callback);
     }
 
     public User getUserNameForUri(String uri) {
@@ -288,15 +569,46 @@ public class TabbedViewModel extends KeychainViewModel {
                 uri,
                 null).toString().getBytes(StandardCharsets.UTF_8);
         Log.d(TAG, PAIRING_TO + uri + OVER_MQTT);
-        addContactForChat(uri, "", "", PairStatus.REQUEST_SENT, source);
-        mqttUseCase.sendToMqttPairing(uri, payload);
-        refreshChatUsers();
+        asyncRepository.execute(null, () -> {
+            addContactForChat(uri, "", "", PairStatus.REQUEST_SENT, source);
+            mqttUseCase.sendToMqttPairing(uri, payload).whenComplete((result, error) -> {
+                if (wasNotSent(error)) {
+                    Log.e(TAG, UNABLE_TO_SEND_PAIRING_MESSAGE + uri, error);
+                    trustedDirectoryResult.postValue(UNABLE_TO_SEND_PAIRING_MESSAGE + uri);
+                    // offer to pair again
+                    asyncRepository.execute(null, () -> addContactForChat(uri, "", "", PairStatus.NONE, source), done -> refreshChatUsers());
+                }
+            });
+            return null;
+        }, done -> refreshChatUsers());
+    }
+
+    // True if the send was not accepted. Waiting for the broker here would hold up the pairing handler.
+    private static boolean wasNotAccepted(CompletableFuture<Void> sent) {
+        return sent.isCompletedExceptionally();
+    }
+
+    // True if a send failed for good. One cancelled by its channel closing is sent by the persona's next channel.
+    private static boolean wasNotSent(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error != null && !(error instanceof CancellationException);
     }
 
     @Override
     protected void onCleared() {
         super.onCleared();
-        mqttUseCase.closeMqttChannel();
+        // channels stay open so every persona keeps receiving; the next view model picks up from here
+        mqttUseCase.detach();
+        messageWriter.close();
+        retentionJob.close();
+        asyncRepository.close();
+        sendExecutor.shutdown();
+        chatListExecutor.shutdown();
+        displayExecutor.shutdown();
+        chatRepository.removeObserver(chatSummariesObserver);
+        chatRepository.removeObserver(messagesObserver);
     }
 
     /**
@@ -329,33 +641,41 @@ public class TabbedViewModel extends KeychainViewModel {
         return chat;
     }
 
-    private void updateChat(Chat chat) throws Exception {
-        if (!chatRepository.updateChat(chat.id, chat.lastMsg)) {
-            throw new Exception(ERROR_UPDATING_CHAT);
-        }
-    }
-
     /**
      * Broadcast a message over MQTT.
      * The message is unmodified by this method, so make sure to encrypt prior to calling it if
      * encryption is desired.
      */
-    private void sendMessage(String receiverUri, ChatMessage message) {
+    private void sendMessage(String receiverUri, ChatMessage message, TaskRunner.Callback<String> onError) {
         Log.i(TAG, "Sending message to receiver");
 
         if (message == null) {
             Log.e(TAG, UNABLE_TO_SEND_CHAT_MESSAGE);
+            reportError(onError, UNABLE_TO_SEND_CHAT_MESSAGE);
             return;
         }
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        message.msg = Base64.encodeToString(message.msg.getBytes(), Base64.NO_WRAP);
-        String json = gson.toJson(message);
+        // Our record id is a local rowid. Peers dedupe by message id, so send a globally unique one.
+        message.id = UUID.randomUUID().toString().toUpperCase();
+        ChatMessageCodec.Format format = messageCodec.formatFor(receiverUri);
+        byte[] payload = messageCodec.encode(message, format);
 
         // Send message to recipient(s)
         Log.i(TAG, SENDING_CHAT_MESSAGE_TO_TOPIC + receiverUri);
-        Log.i(TAG, json);
-        mqttUseCase.sendToMqttChat(receiverUri, json.getBytes());
+        Log.d(TAG, message.id + " as " + format + ", " + payload.length + " bytes");
+        mqttUseCase.sendToMqttChat(receiverUri, payload).whenComplete((result, error) -> {
+            if (wasNotSent(error)) {
+                Log.e(TAG, UNABLE_TO_QUEUE_CHAT_MESSAGE + receiverUri, error);
+                reportError(onError, UNABLE_TO_QUEUE_CHAT_MESSAGE + receiverUri);
+            }
+        });
+    }
+
+    // Runs 'onError' on the main thread, like TaskRunner callbacks
+    private void reportError(TaskRunner.Callback<String> onError, String error) {
+        if (onError != null) {
+            mainHandler.post(() -> onError.onComplete(error));
+        }
     }
 
     // TODO: private
@@ -386,7 +706,9 @@ public class TabbedViewModel extends KeychainViewModel {
             if (resp != null) {
                 Log.i(TAG, SENDING + PAIR_RESPONSE);
                 Log.i(TAG, resp.toString());
-                mqttUseCase.sendToMqttPairing(contactId, resp.toString().getBytes(StandardCharsets.UTF_8));
+                if (wasNotAccepted(mqttUseCase.sendToMqttPairing(contactId, resp.toString().getBytes(StandardCharsets.UTF_8)))) {
+                    return new PairHandler.PairResult(contactId, UNABLE_TO_SEND_PAIRING_MESSAGE + contactId);
+                }
 
                 addContactForChat(contactId, name, subName, PairStatus.RESPONSE_RECEIVED, UserSource.MQTT);
                 onRefresh(); // TODO: remove if not needed
@@ -428,7 +750,9 @@ public class TabbedViewModel extends KeychainViewModel {
             if (ack != null) {
                 Log.i(TAG, SENDING + PAIR_ACK);
                 Log.i(TAG, ack.toString());
-                mqttUseCase.sendToMqttPairing(contactId, ack.toString().getBytes(StandardCharsets.UTF_8));
+                if (wasNotAccepted(mqttUseCase.sendToMqttPairing(contactId, ack.toString().getBytes(StandardCharsets.UTF_8)))) {
+                    return new PairHandler.PairResult(contactId, UNABLE_TO_SEND_PAIRING_MESSAGE + contactId);
+                }
             }
             return result;
         } catch (Exception e) {
@@ -479,29 +803,34 @@ public class TabbedViewModel extends KeychainViewModel {
         }
     }
 
-    private void handleChatMessage(byte[] message) {
+    // 'ack' acknowledges the message to the broker. It runs once the message is stored, or right away if it is dropped.
+    // 'persona' is the one it arrived for; messages for other than the active persona are only stored.
+    private void handleChatMessage(String persona, byte[] message, Runnable ack) {
+        boolean handedOff = false;
         try {
-            String json = new String(message);
-            Log.i(TAG, RECEIVED_CHAT_MESSAGE + json);
+            // JSON or binary, whichever the sender used; msg comes back as the ciphertext
+            ChatMessage chatMessage = messageCodec.decode(message);
+            Log.i(TAG, RECEIVED_CHAT_MESSAGE + chatMessage.id);
 
-            // Convert from JSON to ChatMessage
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            ChatMessage chatMessage = gson.fromJson(json, ChatMessage.class);
-
-            // Did we already process this message?
-            if (chatRepository.getMessage(chatMessage.id).isPresent() || activePersonaUri.equals(chatMessage.senderId)) {
+            // Our own echo, or a redelivery of something already stored? Usually answered from memory.
+            if (persona.equals(chatMessage.senderId) || chatRepository.isDuplicateMessage(chatMessage.senderId, chatMessage.id)) {
+                Log.d(TAG, DROPPING_DUPLICATE_MESSAGE + chatMessage.id);
                 return;
             }
 
-            String urlDecoded = new String(Base64.decode(chatMessage.msg, Base64.NO_WRAP));
-            chatMessage.msg = urlDecoded;
             String senderUri = chatMessage.senderId;
             String receiverId = chatMessage.receiverId;
-            assert Objects.equals(receiverId, activePersonaUri); // TODO: remove this after test
+            assert Objects.equals(receiverId, persona); // TODO: remove this after test
 
-            handleReceivedMessage(urlDecoded, senderUri, receiverId);
+            handleReceivedMessage(chatMessage.msg, senderUri, receiverId, chatMessage.id, persona.equals(activePersonaUri), ack);
+            handedOff = true;
         } catch (Exception e) {
             Log.e(TAG, "Error in MQTT handling: " + e.getMessage());
+        } finally {
+            // Nothing left to persist; ack so the broker does not redeliver a message we will never store
+            if (!handedOff) {
+                ack.run();
+            }
         }
     }
 
@@ -510,20 +839,28 @@ public class TabbedViewModel extends KeychainViewModel {
     }
 
     // helper
+    /**
+     * The message list marks outgoing messages by author id "0".  The repository's User is shared
+     * and must not be modified, so keep one copy of the active persona with that id.
+     */
+    private synchronized User getMeAuthor(User user) {
+        if (meAuthorSource != user) {
+            meAuthor = new User("0", user.firstName, user.lastName, user.status, user.source, user.photo, user.uri);
+            meAuthorSource = user;
+        }
+        return meAuthor;
+    }
+
     private Message getMessage(String plaintext, String senderUri, LocalDateTime dateTime, String id) {
         User author;
         Date date;
         try {
+            // The repository caches users, so this is a query only for the first message of each sender
             User user = chatRepository
                     .getPlatformUserByUri(senderUri)
                     .orElseThrow(() -> new Exception("Repository does not contain a user with URI = '" + senderUri + "'"));
 
-            // Deep copy
-            Gson gson = new Gson();
-            author = gson.fromJson(gson.toJson(user), User.class);
-            if (isMe(senderUri)) {
-                author.id = "0";
-            }
+            author = isMe(senderUri) ? getMeAuthor(user) : user;
 
             date = Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
             return new Message(plaintext, author, date, id);
@@ -559,42 +896,89 @@ public class TabbedViewModel extends KeychainViewModel {
         throw new Exception("Could not find contact with uri = " + selectedUser);
     }
 
-    // store message
+    // store message and make it the chat's last message in one transaction
     private ChatMessage storeMessage(String ciphertext, String senderUri, String receiverUri, ChatDirection direction) throws Exception {
         try {
             Chat chat = getChat(senderUri, receiverUri);
+            if (chat == null) {
+                throw new Exception(NO_EXISTING_CHAT_FOR + receiverUri);
+            }
 
-            chat.lastMsg = ciphertext;
-            updateChat(chat);
-
-            // Save message to chats database
-            String recordId = chatRepository.saveMessage(UUID.randomUUID().toString(),
-                            senderUri,
-                            ciphertext,
-                            direction,
-                            chat)
+            ChatMessage savedMessage = chatRepository.appendMessage(newChatMessage(chat, ciphertext, senderUri, receiverUri, direction))
                     .orElseThrow(() -> new Exception(UNABLE_TO_SEND_MESSAGE_NO_RECORD_ID));
-            ChatMessage savedMessage = chatRepository.getMessage(recordId).orElseThrow(() -> new Exception(ERROR_GETTING_MESSAGES_FOR_CHAT_ID + recordId));
-            Log.d(TAG, CHAT_MESSAGE_SAVED_TO_DATABASE + recordId);
+            Log.d(TAG, CHAT_MESSAGE_SAVED_TO_DATABASE + savedMessage.id);
             return savedMessage;
         } catch (Exception e) {
             throw new Exception("Exception storing message: " + e.getMessage(), e.getCause());
         }
     }
 
-    // from our typing
-    public void handleSubmittedMessage(String plaintext, List<String> participants) throws Exception {
-        String ciphertext = encryptMessageForOtherParticipant(plaintext, participants);
-        String otherUri = getOtherUserInChat(participants).orElse(null);
-        ChatMessage message = storeMessage(ciphertext, activePersonaUri, otherUri, ChatDirection.send);
-        addNewMessage(plaintext, activePersonaUri, Utils.getDateTimeFromEpoc(message.timestamp), message.id);
-        sendMessage(otherUri, message);
+    // from our typing. 'onError' runs on the main thread with the reason if the message could not be sent.
+    public void handleSubmittedMessage(String plaintext, List<String> participants, TaskRunner.Callback<String> onError) {
+        sendRunner.executeAsync(() -> {
+            try {
+                String ciphertext = encryptMessageForOtherParticipant(plaintext, participants);
+                String otherUri = getOtherUserInChat(participants).orElse(null);
+                ChatMessage message = storeMessage(ciphertext, activePersonaUri, otherUri, ChatDirection.send);
+                cachePreview(message, plaintext);
+                addNewMessage(plaintext, activePersonaUri, Utils.getDateTimeFromEpoc(message.timestamp), message.id);
+                sendMessage(otherUri, message, onError);
+                return null;
+            } catch (Exception e) {
+                Log.e(TAG, "Error sending message: " + e.getMessage());
+                return e.getMessage();
+            }
+        }, error -> {
+            if (error != null && onError != null) {
+                onError.onComplete(error);
+            }
+        });
+    }
+
+    private ChatMessage newChatMessage(Chat chat, String ciphertext, String senderUri, String receiverUri, ChatDirection direction) {
+        ChatMessage message = new ChatMessage();
+        message.chatId = chat.id;
+        message.sendOrRcvd = direction;
+        message.senderId = senderUri;
+        message.receiverId = receiverUri;
+        message.msg = ciphertext;
+        return message;
     }
 
-    private void handleReceivedMessage(String ciphertext, String senderUri, String receiverUri) throws Exception {
-        ChatMessage message = storeMessage(ciphertext, senderUri, receiverUri, ChatDirection.receive);
-        String plaintext = decrypt(ciphertext);
-        addNewMessage(plaintext, activePersonaUri, Utils.getDateTimeFromEpoc(message.timestamp), message.id);
+    // Hands the message to the write-behind queue; the UI update (if 'display') and the broker ack happen once it is committed
+    private void handleReceivedMessage(String ciphertext, String senderUri, String receiverUri, String remoteId, boolean display, Runnable ack) throws Exception {
+        Chat chat = getChat(senderUri, receiverUri);
+        if (chat == null) {
+            throw new Exception(NO_EXISTING_CHAT_FOR + senderUri);
+        }
+
+        ChatMessage message = newChatMessage(chat, ciphertext, senderUri, receiverUri, ChatDirection.receive);
+        message.remoteId = remoteId;
+
+        messageWriter.enqueue(message, stored -> {
+            // stored (or never will be), so the broker can let go of it
+            ack.run();
+            if (stored == null) {
+                // invalid, or a duplicate that was already queued when this copy arrived
+                Log.w(TAG, UNABLE_TO_STORE_RECEIVED_MESSAGE + senderUri);
+                return;
+            }
+            Log.d(TAG, CHAT_MESSAGE_SAVED_TO_DATABASE + stored.id);
+            if (!display) {
+                // for a persona in the background: the gateway decrypts for the active persona only
+                return;
+            }
+            try {
+                displayExecutor.execute(() -> {
+                    String plaintext = decrypt(ciphertext);
+                    cachePreview(stored, plaintext);
+                    addNewMessage(plaintext, senderUri, Utils.getDateTimeFromEpoc(stored.timestamp), stored.id);
+                });
+            } catch (RejectedExecutionException e) {
+                // the view model is gone; the message shows when its chat is opened again
+                Log.d(TAG, "Not displaying " + stored.id + ", view model cleared");
+            }
+        });
     }
 
     private Optional<String> getOtherUserInChat(List<String> participants) {
@@ -65,12 +65,7 @@ public class TabbedActivity extends BaseActivity {
         thisIntent = getIntent();
 
         Application application = getApplication();
-        MqttUseCase mqttUseCase = new MqttUseCase(
-                ((KeychainApp) application).getMqttRepository(),
-                "keychain-chat",
-                KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_MQTT_CHANNEL_PAIRING),
-                KeychainApp.GetInstance().getApplicationProperty(KeychainApp.PROPERTY_MQTT_CHANNEL_CHATS)
-        );
+        MqttUseCase mqttUseCase = ((KeychainApp) application).getMqttUseCase();
         viewModel = new ViewModelProvider(this, new TabbedViewModelFactory(application, mqttUseCase)).get(TabbedViewModel.class);
 
         viewModel.getActivePersona().observe(this, persona -> {
@@ -140,7 +135,6 @@ public class TabbedActivity extends BaseActivity {
             buttonSettings.setImageTintList(ColorStateList.valueOf(Utils.GetThemeColor(this, R.attr.colorPending)));
             buttonContacts.setImageTintList(ColorStateList.valueOf(Utils.GetThemeColor(this, R.attr.colorPending)));
             setLayout();
-            ((TabbedViewModel) viewModel).refreshChats();
         }
     }
 
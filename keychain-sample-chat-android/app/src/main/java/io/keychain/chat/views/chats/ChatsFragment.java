@@ -19,12 +19,10 @@ import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import io.keychain.chat.R;
-import io.keychain.chat.models.chat.Chat;
-import io.keychain.chat.models.chat.User;
+import io.keychain.chat.models.chat.ChatSummary;
 import io.keychain.chat.viewmodel.TabbedViewModel;
 import io.keychain.chat.views.TabbedActivity;
 
@@ -90,12 +88,15 @@ public class ChatsFragment extends Fragment {
         final ListView listView = view.findViewById(R.id.chatsList);
 
         // create a list of chat room details
-        adapter = new ChatsAdapter(context, createChatRoomDetails(Collections.emptyList()));
+        adapter = new ChatsAdapter(context, new ArrayList<>());
         listView.setAdapter(adapter);
 
+        // The view model patches the list as chats change; refill the same adapter so the list keeps its scroll position
         viewModel.getChats().observe(this, chats -> {
-            adapter = new ChatsAdapter(context, createChatRoomDetails(chats));
-            listView.setAdapter(adapter);
+            adapter.setNotifyOnChange(false);
+            adapter.clear();
+            adapter.addAll(createChatRoomDetails(chats));
+            adapter.notifyDataSetChanged();
         });
 
         listView.setOnItemClickListener((adapterView, view1, position, l) -> {
@@ -109,35 +110,24 @@ public class ChatsFragment extends Fragment {
 
                 TabbedActivity tabbedActivity = (TabbedActivity) ChatsFragment.this.context;
 
-                // set chats
-                viewModel.setChat(chat.chat);
-
-                // switch fragments
-                tabbedActivity.runOnUiThread(() -> tabbedActivity.showConversationView(chat.chat));
+                // switch fragments; showConversationView also sets the chat and loads its messages
+                tabbedActivity.showConversationView(chat.chat);
             } catch (Exception e) {
                 Log.e(TAG, ERROR_SETTING_CHAT_RECIPIENT, e);
             }
         });
     }
 
-    private List<ChatsAdapter.ChatRoomDetails> createChatRoomDetails(List<Chat> chats) {
+    // Summaries already carry the peer's name; the preview comes from the view model's plaintext cache.
+    // A peer without a user row yet has no name, so the chat is listed under the peer's uri until it does.
+    private List<ChatsAdapter.ChatRoomDetails> createChatRoomDetails(List<ChatSummary> chats) {
         List<ChatsAdapter.ChatRoomDetails> details = new ArrayList<>(chats.size());
-        for (Chat chat : chats) {
-            final User user = viewModel.getUserNameForUri(chat
-                            .participantIds
-                            .stream()
-                            .filter(s -> !s.equals(loggedInUserUri))
-                            .findFirst()
-                            .orElse(null));
-            if (user == null) {
-                Log.w(TAG, "Could not find user for chat ID " + chat.id);
-            } else {
-                details.add(new ChatsAdapter.ChatRoomDetails(
-                        chat,
-                        user.getName(),
-                        viewModel.decrypt(chat.lastMsg)
-                ));
-            }
+        for (ChatSummary summary : chats) {
+            details.add(new ChatsAdapter.ChatRoomDetails(
+                    summary.toChat(),
+                    summary.peerName != null ? summary.peerName : summary.peer,
+                    viewModel.getPreview(summary)
+            ));
         }
         return details;
     }
@@ -99,14 +99,30 @@ public class ConversationFragment extends Fragment implements MessageInput.Input
             MessagesListAdapter<Message> messageAdapter = new MessagesListAdapter<>(this.me.getId(), imageLoader);
             messageList.setAdapter(messageAdapter);
 
+            // Pages arrive newest first, which is the order MessagesListAdapter keeps internally
             viewModel.getAllMessages().observe(this, messages -> {
                 if (messages != null) {
                     msgIds.clear();
                     msgIds.addAll(messages.stream().map(Message::getId).collect(Collectors.toList()));
                     messageAdapter.clear();
-                    messageAdapter.addToEnd(messages, true);
+                    messageAdapter.addToEnd(messages, false);
                 }
             });
+            viewModel.getOlderMessages().observe(this, messages -> {
+                if (messages != null) {
+                    List<Message> page = messages.stream().filter(m -> msgIds.add(m.getId())).collect(Collectors.toList());
+                    messageAdapter.addToEnd(page, false);
+                }
+            });
+            viewModel.getRemovedMessages().observe(this, ids -> {
+                if (ids != null) {
+                    String[] shown = ids.stream().filter(msgIds::remove).toArray(String[]::new);
+                    if (shown.length > 0) {
+                        messageAdapter.deleteByIds(shown);
+                    }
+                }
+            });
+            messageAdapter.setLoadMoreListener((page, totalItemsCount) -> viewModel.loadOlderMessages());
             viewModel.getLatestMessage().observe(this, message -> {
                 if (message != null && !msgIds.contains(message.getId())) {
                     msgIds.add(message.getId());
@@ -135,12 +151,9 @@ public class ConversationFragment extends Fragment implements MessageInput.Input
         Log.d(TAG, "onSubmit() called with input: " + input.toString());
         String msg = input.toString();
 
-        try {
-            viewModel.handleSubmittedMessage(msg, participantIds);
-        } catch (Exception e) {
-            Toast.makeText(context, e.getMessage(), Toast.LENGTH_SHORT).show();
-            return false;
-        }
+        // Encrypting and storing happen off the main thread; the message shows up once it is stored
+        viewModel.handleSubmittedMessage(msg, participantIds,
+                error -> Toast.makeText(context, error, Toast.LENGTH_SHORT).show());
 
         hideKeyboard((TabbedActivity) ConversationFragment.this.context);
 
@@ -34,7 +34,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import io.keychain.chat.R;
-import io.keychain.chat.models.chat.Chat;
 import io.keychain.chat.models.chat.UserSource;
 import io.keychain.chat.views.TabbedActivity;
 import io.keychain.chat.views.qrcode.QrCodeActivity;
@@ -194,10 +193,12 @@ public class ContactMainFragment extends Fragment {
         try {
             TabbedActivity tabbedActivity = (TabbedActivity) ContactMainFragment.this.context;
 
-            Chat chat = viewModel.setChatByFacade(user);
-            if (chat == null) return;
-
-            tabbedActivity.runOnUiThread(() -> tabbedActivity.showConversationView(chat));
+            // showConversationView sets the chat and loads its messages
+            viewModel.setChatByFacade(user, chat -> {
+                if (chat != null && isAdded()) {
+                    tabbedActivity.showConversationView(chat);
+                }
+            });
         } catch (Exception e) {
             Log.e(TAG, ERROR_SHOWING_CONVERSATION, e);
             Toast.makeText(context, ERROR_SHOWING_CONVERSATION, Toast.LENGTH_SHORT).show();
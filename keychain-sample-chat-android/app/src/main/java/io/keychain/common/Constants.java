@@ -15,6 +15,7 @@ public class Constants {
     public static final String SEND_OR_RCVD = "sendOrRcvd";
     public static final String SENDER_ID = "senderId";
     public static final String RECEIVER_ID = "receiverId";
+    public static final String IMAGE_URL = "imageUrl";
     public static final String MSG = "msg";
     public static final String TIMESTAMP = "timestamp";
     public static final String MESSAGES = "messages";
@@ -26,6 +27,15 @@ public class Constants {
     public static final String ERROR_INSERTING_CHAT = "Error inserting chat";
     public static final String SUCCESSFULLY_INSERTED_CHAT = "Successfully inserted chat";
     public static final String PARTICIPANT_IDS = "participantIds";
+    public static final String CHAT_PARTICIPANTS = "chat_participants";
+    public static final String SEEN_MESSAGES = "seen_messages";
+    public static final String CHAT_SUMMARIES = "chat_summaries";
+    public static final String OWNER = "owner";
+    public static final String PEER = "peer";
+    public static final String PEER_NAME = "peerName";
+    public static final String LAST_TIMESTAMP = "lastTimestamp";
+    public static final String UNREAD_COUNT = "unreadCount";
+    public static final String SORT_KEY = "sortKey";
     public static final String INSERTING_CHAT = "Inserting chat";
     public static final String ERROR_UPDATING_USER_PROFILE = "Error updating user profile: ";
     public static final String SUCCESSFULLY_UPDATED_USER_PROFILE = "Successfully updated user profile: ";
@@ -0,0 +1,126 @@
+package io.keychain.chat.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks PublishPipeline's window, retries and futures on the JVM, against a fake client that only
+ * records what it was asked to publish.
+ */
+public class PublishPipelineTest {
+    private static final String TOPIC = "DEV/ledger/chat/receiver";
+
+    // Callbacks of the publishes the fake client accepted, in order
+    private final BlockingQueue<IMqttActionListener> published = new LinkedBlockingQueue<>();
+    private PublishPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void publishWaitsWhileTheWindowIsFull() throws Exception {
+        pipeline = new PublishPipeline(this::accept, 2);
+        CompletableFuture<Void> first = pipeline.publish(TOPIC, new byte[1]);
+        pipeline.publish(TOPIC, new byte[1]);
+        assertEquals(2, pipeline.inFlight());
+
+        CompletableFuture<CompletableFuture<Void>> third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pipeline.publish(TOPIC, new byte[1]);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+
+        // the broker acknowledges the first one, which makes room
+        published.take().onSuccess(null);
+        assertTrue(first.isDone());
+        assertFalse(third.get(5, TimeUnit.SECONDS).isDone());
+        assertEquals(2, pipeline.inFlight());
+    }
+
+    @Test
+    public void failedPublishIsRetriedBeforeItsFutureCompletes() throws Exception {
+        AtomicInteger refusals = new AtomicInteger(2);
+        pipeline = new PublishPipeline((topic, message, callback) -> {
+            if (refusals.getAndDecrement() > 0) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            return accept(topic, message, callback);
+        }, 1, 5, 10);
+
+        CompletableFuture<Void> future = pipeline.publish(TOPIC, new byte[1]);
+        // refused twice, then accepted but not delivered
+        published.poll(5, TimeUnit.SECONDS).onFailure(null, new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        assertFalse(future.isDone());
+
+        published.poll(5, TimeUnit.SECONDS).onSuccess(null);
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(0, pipeline.inFlight());
+    }
+
+    @Test
+    public void futureFailsOnceEveryAttemptFailed() throws Exception {
+        MqttException refused = new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        AtomicInteger attempts = new AtomicInteger();
+        pipeline = new PublishPipeline((topic, message, callback) -> {
+            attempts.incrementAndGet();
+            throw refused;
+        }, 1, 3, 10);
+
+        CompletableFuture<Void> future = pipeline.publish(TOPIC, new byte[1]);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(refused, e.getCause());
+        }
+        assertEquals(3, attempts.get());
+
+        // its place in the window is free again
+        pipeline.publish(TOPIC, new byte[1]);
+    }
+
+    @Test
+    public void failAllFinishesWhatIsInFlight() throws Exception {
+        pipeline = new PublishPipeline(this::accept, 2);
+        CompletableFuture<Void> first = pipeline.publish(TOPIC, new byte[1]);
+        CompletableFuture<Void> second = pipeline.publish(TOPIC, new byte[1]);
+
+        pipeline.failAll(new MqttException(MqttException.REASON_CODE_CLIENT_CLOSED));
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        assertEquals(0, pipeline.inFlight());
+
+        // a late acknowledgement from the closed client changes nothing
+        published.take().onSuccess(null);
+        assertTrue(first.isCompletedExceptionally());
+    }
+
+    private IMqttDeliveryToken accept(String topic, byte[] message, IMqttActionListener callback) {
+        published.add(callback);
+        return null;
+    }
+}
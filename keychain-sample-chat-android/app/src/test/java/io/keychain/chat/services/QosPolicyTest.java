@@ -0,0 +1,51 @@
+package io.keychain.chat.services;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks how QosPolicy picks the QoS of a topic, and how it is read from properties.
+ */
+public class QosPolicyTest {
+    private static final String PAIRING = "DEV/ledger/pairing/";
+    private static final String CHAT = "DEV/ledger/chat/";
+
+    @Test
+    public void longestMatchingPrefixWins() {
+        Map<String, Integer> qosByPrefix = new HashMap<>();
+        qosByPrefix.put("DEV/ledger/", 1);
+        qosByPrefix.put(CHAT, 0);
+        QosPolicy policy = new QosPolicy(2, qosByPrefix);
+
+        assertEquals(0, policy.qosFor(CHAT + "receiver"));
+        assertEquals(1, policy.qosFor(PAIRING + "receiver"));
+        assertEquals(2, policy.qosFor("PROD/ledger/chat/receiver"));
+    }
+
+    @Test
+    public void messageClassesAreReadFromProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("mqtt.channel.pairing", PAIRING);
+        properties.put("mqtt.channel.chat", CHAT);
+        properties.put("mqtt.qos.pairing", "1");
+        properties.put("mqtt.qos.chat", "1");
+        // no presence channel, so this one has nothing to apply to
+        properties.put("mqtt.qos.presence", "0");
+        QosPolicy policy = QosPolicy.fromProperties(properties::get);
+
+        assertEquals(1, policy.qosFor(PAIRING + "receiver"));
+        assertEquals(1, policy.qosFor(CHAT + "ALL"));
+        assertEquals(QosPolicy.DEFAULT_QOS, policy.qosFor("DEV/ledger/presence/receiver"));
+    }
+
+    @Test
+    public void withoutPropertiesEveryTopicKeepsTheDefault() {
+        QosPolicy policy = QosPolicy.fromProperties(name -> null);
+        assertEquals(QosPolicy.DEFAULT_QOS, policy.qosFor(CHAT + "receiver"));
+        assertEquals(QosPolicy.DEFAULT_QOS, QosPolicy.uniform().qosFor(PAIRING + "receiver"));
+    }
+}
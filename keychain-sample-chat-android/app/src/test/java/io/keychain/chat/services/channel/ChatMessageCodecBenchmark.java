@@ -0,0 +1,180 @@
+package io.keychain.chat.services.channel;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Function;
+
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Measures payload size and encode/decode time of chat messages on the JVM: the pretty-printed JSON
+ * TabbedViewModel used to build for every message, ChatMessageCodec's JSON, and its binary format.
+ * Skipped unless the 'benchmark' property is set:
+ *
+ *   ./gradlew testDevDebugUnitTest --tests '*ChatMessageCodecBenchmark' -Pbenchmark \
+ *       -Pbenchmark.ciphertext_bytes=1500 -Pbenchmark.commit=$(git rev-parse --short HEAD)
+ *
+ * Results are written as JSON to benchmark.output (default build/benchmark/codec.json).
+ */
+public class ChatMessageCodecBenchmark {
+    private final int ciphertextBytes = Integer.getInteger("benchmark.ciphertext_bytes", 1500);
+    private final int messageCount = Integer.getInteger("benchmark.codec_messages", 1000);
+    private final int warmup = Integer.getInteger("benchmark.warmup", 200);
+    private final int iterations = Integer.getInteger("benchmark.iterations", 2000);
+    private final Random random = new Random(Long.getLong("benchmark.seed", 42L));
+
+    private final List<ChatMessage> messages = new ArrayList<>();
+
+    // Written out as JSON, one per format
+    static class Result {
+        String format;
+        double bytesPerMessage;
+        double encodeMicros;
+        double decodeMicros;
+    }
+
+    static class Report {
+        String benchmark = ChatMessageCodecBenchmark.class.getSimpleName();
+        String commit = System.getProperty("benchmark.commit", "unknown");
+        String timestamp = Instant.now().toString();
+        String java = System.getProperty("java.version");
+        int ciphertextBytes;
+        List<Result> results = new ArrayList<>();
+    }
+
+    @Before
+    public void setUp() {
+        assumeTrue("Set -Pbenchmark to run", System.getProperty("benchmark") != null);
+        for (int i = 0; i < messageCount; i++) {
+            messages.add(message(i));
+        }
+    }
+
+    @Test
+    public void measureCodec() throws IOException {
+        Report report = new Report();
+        report.ciphertextBytes = ciphertextBytes;
+
+        Result legacy = measure("legacy-json", ChatMessageCodecBenchmark::legacyEncode, ChatMessageCodecBenchmark::legacyDecode);
+        ChatMessageCodec codec = new ChatMessageCodec(true);
+        Result json = measure("json", m -> codec.encode(m, ChatMessageCodec.Format.JSON), codec::decode);
+        Result binary = measure("binary", m -> codec.encode(m, ChatMessageCodec.Format.BINARY), codec::decode);
+        report.results.add(legacy);
+        report.results.add(json);
+        report.results.add(binary);
+        write(report);
+
+        assertTrue(binary.bytesPerMessage < legacy.bytesPerMessage);
+    }
+
+    // What TabbedViewModel did before ChatMessageCodec, minus logging
+    private static byte[] legacyEncode(ChatMessage message) {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        ChatMessage copy = copy(message);
+        copy.msg = Base64.getEncoder().encodeToString(message.msg.getBytes(StandardCharsets.UTF_8));
+        return gson.toJson(copy).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ChatMessage legacyDecode(byte[] payload) {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        ChatMessage message = gson.fromJson(new String(payload, StandardCharsets.UTF_8), ChatMessage.class);
+        message.msg = new String(Base64.getDecoder().decode(message.msg), StandardCharsets.UTF_8);
+        return message;
+    }
+
+    private Result measure(String name, Function<ChatMessage, byte[]> encode, Function<byte[], ChatMessage> decode) {
+        List<byte[]> payloads = new ArrayList<>(messages.size());
+        long bytes = 0;
+        for (ChatMessage message : messages) {
+            byte[] payload = encode.apply(message);
+            payloads.add(payload);
+            bytes += payload.length;
+        }
+
+        for (int i = 0; i < warmup; i++) {
+            decode.apply(encode.apply(messages.get(i % messages.size())));
+        }
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            ChatMessage message = messages.get(i % messages.size());
+            long start = System.nanoTime();
+            encode.apply(message);
+            encodeNanos += System.nanoTime() - start;
+
+            byte[] payload = payloads.get(i % payloads.size());
+            start = System.nanoTime();
+            decode.apply(payload);
+            decodeNanos += System.nanoTime() - start;
+        }
+
+        Result result = new Result();
+        result.format = name;
+        result.bytesPerMessage = (double) bytes / messages.size();
+        result.encodeMicros = encodeNanos / 1e3 / iterations;
+        result.decodeMicros = decodeNanos / 1e3 / iterations;
+        System.out.println(String.format(Locale.ROOT, "%-12s %8.0f bytes  encode %7.1fus  decode %7.1fus",
+                name, result.bytesPerMessage, result.encodeMicros, result.decodeMicros));
+        return result;
+    }
+
+    private ChatMessage message(int i) {
+        // ciphertext is text already, e.g. Base64 from the gateway
+        byte[] raw = new byte[ciphertextBytes * 3 / 4];
+        random.nextBytes(raw);
+
+        ChatMessage message = new ChatMessage();
+        message.id = UUID.randomUUID().toString().toUpperCase();
+        message.chatId = String.valueOf(i);
+        message.sendOrRcvd = ChatDirection.send;
+        message.senderId = "sender-uri-" + random.nextInt(1000);
+        message.receiverId = "receiver-uri-" + random.nextInt(1000);
+        message.msg = Base64.getEncoder().encodeToString(raw);
+        message.timestamp = System.currentTimeMillis();
+        return message;
+    }
+
+    private static ChatMessage copy(ChatMessage message) {
+        ChatMessage copy = new ChatMessage();
+        copy.id = message.id;
+        copy.chatId = message.chatId;
+        copy.sendOrRcvd = message.sendOrRcvd;
+        copy.senderId = message.senderId;
+        copy.receiverId = message.receiverId;
+        copy.imageUrl = message.imageUrl;
+        copy.msg = message.msg;
+        copy.timestamp = message.timestamp;
+        return copy;
+    }
+
+    private void write(Report report) throws IOException {
+        File output = new File(System.getProperty("benchmark.output", "build/benchmark/codec.json"));
+        File directory = output.getAbsoluteFile().getParentFile();
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new FileWriter(output)) {
+            gson.toJson(report, writer);
+        }
+        System.out.println("Benchmark results written to " + output.getAbsolutePath());
+    }
+}
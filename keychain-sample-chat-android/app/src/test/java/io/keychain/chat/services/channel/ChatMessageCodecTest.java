@@ -0,0 +1,128 @@
+package io.keychain.chat.services.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Checks ChatMessageCodec on the JVM: both formats round trip, JSON from other clients still reads,
+ * and binary is only sent to peers that announced it.
+ */
+public class ChatMessageCodecTest {
+    private static final String ME = "me-uri";
+    private static final String PEER = "peer-uri";
+
+    // As sent by clients without the binary format: pretty printed, no wireVersion
+    private static final String LEGACY_JSON = "{\n"
+            + "  \"id\": \"6F1C2E0A-0000-4000-8000-000000000001\",\n"
+            + "  \"chatId\": \"12\",\n"
+            + "  \"sendOrRcvd\": \"send\",\n"
+            + "  \"senderId\": \"" + PEER + "\",\n"
+            + "  \"receiverId\": \"" + ME + "\",\n"
+            + "  \"msg\": \"" + Base64.getEncoder().encodeToString("ciphertext".getBytes(StandardCharsets.UTF_8)) + "\",\n"
+            + "  \"timestamp\": 1700000000000\n"
+            + "}";
+
+    @Test
+    public void bothFormatsRoundTrip() {
+        ChatMessageCodec codec = new ChatMessageCodec(true);
+        for (ChatMessageCodec.Format format : ChatMessageCodec.Format.values()) {
+            ChatMessage decoded = codec.decode(codec.encode(message(), format));
+            assertEquals("id-1", decoded.id);
+            assertEquals(ME, decoded.senderId);
+            assertEquals(PEER, decoded.receiverId);
+            assertNull(decoded.imageUrl);
+            assertEquals(Long.valueOf(1700000000000L), decoded.timestamp);
+            assertEquals("ciphertext \u00e9", decoded.msg);
+        }
+    }
+
+    @Test
+    public void jsonFromOtherClientsStillDecodes() {
+        ChatMessageCodec codec = new ChatMessageCodec(true);
+        ChatMessage decoded = codec.decode(LEGACY_JSON.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(PEER, decoded.senderId);
+        assertEquals(ChatDirection.send, decoded.sendOrRcvd);
+        assertEquals("ciphertext", decoded.msg);
+        // it did not announce the binary format, so it keeps getting JSON
+        assertEquals(ChatMessageCodec.Format.JSON, codec.formatFor(PEER));
+    }
+
+    @Test
+    public void binaryIsSentOnceThePeerAnnouncesIt() {
+        ChatMessageCodec mine = new ChatMessageCodec(true);
+        ChatMessageCodec theirs = new ChatMessageCodec(true);
+        assertEquals(ChatMessageCodec.Format.JSON, mine.formatFor(PEER));
+
+        // their first message is JSON, carrying the version they read
+        ChatMessage reply = message();
+        reply.senderId = PEER;
+        reply.receiverId = ME;
+        byte[] first = theirs.encode(reply);
+        assertEquals('{', first[0]);
+        mine.decode(first);
+
+        assertEquals(ChatMessageCodec.Format.BINARY, mine.formatFor(PEER));
+        assertEquals('K', mine.encode(message())[0]);
+    }
+
+    @Test
+    public void disabledCodecSendsPlainJsonButReadsBinary() {
+        ChatMessageCodec codec = new ChatMessageCodec(false);
+        String json = new String(codec.encode(message()), StandardCharsets.UTF_8);
+        assertFalse(json.contains(ChatMessageCodec.WIRE_VERSION));
+
+        ChatMessage decoded = codec.decode(new ChatMessageCodec(true).encode(message(), ChatMessageCodec.Format.BINARY));
+        assertEquals("id-1", decoded.id);
+        assertEquals(ChatMessageCodec.Format.JSON, codec.formatFor(ME));
+    }
+
+    @Test
+    public void binaryIsSmallerThanJson() {
+        ChatMessageCodec codec = new ChatMessageCodec(true);
+        ChatMessage message = message();
+        message.msg = new String(new char[2000]).replace('\0', 'x');
+        int json = codec.encode(message, ChatMessageCodec.Format.JSON).length;
+        int binary = codec.encode(message, ChatMessageCodec.Format.BINARY).length;
+        assertTrue(binary + " >= " + json, binary < json * 0.8);
+    }
+
+    @Test
+    public void truncatedPayloadsAreRejected() {
+        ChatMessageCodec codec = new ChatMessageCodec(true);
+        byte[] binary = codec.encode(message(), ChatMessageCodec.Format.BINARY);
+        byte[] json = codec.encode(message(), ChatMessageCodec.Format.JSON);
+        for (byte[] payload : Arrays.asList(Arrays.copyOf(binary, binary.length - 1), Arrays.copyOf(json, json.length - 1))) {
+            try {
+                codec.decode(payload);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals(ChatMessageCodec.NOT_A_CHAT_MESSAGE, e.getMessage());
+            }
+        }
+    }
+
+    private static ChatMessage message() {
+        ChatMessage message = new ChatMessage();
+        message.id = "id-1";
+        message.chatId = "12";
+        message.sendOrRcvd = ChatDirection.send;
+        message.senderId = ME;
+        message.receiverId = PEER;
+        message.msg = "ciphertext \u00e9";
+        message.timestamp = 1700000000000L;
+        return message;
+    }
+}
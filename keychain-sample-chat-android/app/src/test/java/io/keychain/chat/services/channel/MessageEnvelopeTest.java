@@ -0,0 +1,49 @@
+package io.keychain.chat.services.channel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the MessageEnvelope frame on the JVM.  How messages are batched into envelopes is covered
+ * by OutboundJournalTest.
+ */
+public class MessageEnvelopeTest {
+
+    @Test
+    public void envelopeKeepsEveryMessageIntact() {
+        List<byte[]> messages = Arrays.asList(message(0), new byte[0], "{\"msg\":\"\u00e9\"}".getBytes(StandardCharsets.UTF_8));
+        byte[] envelope = MessageEnvelope.wrap(messages);
+
+        assertTrue(MessageEnvelope.isEnvelope(envelope));
+        List<byte[]> unwrapped = MessageEnvelope.unwrap(envelope);
+        assertEquals(messages.size(), unwrapped.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertArrayEquals(messages.get(i), unwrapped.get(i));
+        }
+    }
+
+    @Test
+    public void truncatedEnvelopeIsRejected() {
+        byte[] envelope = MessageEnvelope.wrap(Arrays.asList(message(0), message(1)));
+        assertFalse(MessageEnvelope.isEnvelope("{\"id\":\"1\"}".getBytes(StandardCharsets.UTF_8)));
+        try {
+            MessageEnvelope.unwrap(Arrays.copyOf(envelope, envelope.length - 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(MessageEnvelope.NOT_AN_ENVELOPE, e.getMessage());
+        }
+    }
+
+    private static byte[] message(int i) {
+        return ("message " + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
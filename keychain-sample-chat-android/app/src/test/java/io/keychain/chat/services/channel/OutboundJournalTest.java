@@ -0,0 +1,217 @@
+package io.keychain.chat.services.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks OutboundJournal on the JVM: order, survival across a reopen, backpressure, reuse of
+ * acknowledged space and batches of entries.
+ */
+public class OutboundJournalTest {
+    private static final String TOPIC = "DEV/ledger/chat/receiver";
+    private static final String OTHER_TOPIC = "DEV/ledger/chat/other";
+
+    private File file;
+    private OutboundJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("outbound", ".journal");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void burstSentOfflineSurvivesRestartInOrder() throws Exception {
+        journal = new OutboundJournal(file);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(journal.append(TOPIC, message(i), 0, TimeUnit.MILLISECONDS));
+        }
+        // handed out but never acknowledged, as if the process died with them in flight
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(journal.poll());
+        }
+        journal.close();
+
+        journal = new OutboundJournal(file);
+        assertEquals(1000, journal.size());
+        for (int i = 0; i < 1000; i++) {
+            OutboundJournal.Entry entry = journal.poll();
+            assertEquals(TOPIC, entry.destination);
+            assertEquals("message " + i, text(entry));
+            journal.ack(entry);
+        }
+        assertNull(journal.poll());
+        assertEquals(0, journal.size());
+    }
+
+    @Test
+    public void onlyAcknowledgedEntriesAreRemoved() throws Exception {
+        journal = new OutboundJournal(file);
+        List<OutboundJournal.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            journal.append(TOPIC, message(i), 0, TimeUnit.MILLISECONDS);
+            entries.add(journal.poll());
+        }
+
+        // out of order: the first one still holds its place
+        journal.ack(entries.get(1));
+        assertEquals(2, journal.size());
+
+        journal.rewind();
+        assertEquals("message 0", text(journal.poll()));
+        assertEquals("message 2", text(journal.poll()));
+        assertNull(journal.poll());
+
+        journal.close();
+        journal = new OutboundJournal(file);
+        assertEquals("message 0", text(journal.poll()));
+        assertEquals("message 2", text(journal.poll()));
+    }
+
+    @Test
+    public void rewindFromAFailedEntryResendsOnlyWhatIsUnacknowledged() throws Exception {
+        journal = new OutboundJournal(file);
+        List<OutboundJournal.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, journal.offer(TOPIC, message(i), 0, TimeUnit.MILLISECONDS));
+            entries.add(journal.poll());
+        }
+
+        // 0 and 2 delivered, 1 failed, 3 still pending
+        assertTrue(journal.ack(entries.get(0)));
+        assertTrue(journal.ack(entries.get(2)));
+        assertFalse(journal.ack(entries.get(2)));
+        journal.rewind(entries.get(1));
+        assertEquals("message 1", text(journal.poll()));
+        assertEquals("message 3", text(journal.poll()));
+        assertNull(journal.poll());
+
+        // an entry that was acknowledged in the meantime is not sent again
+        journal.ack(entries.get(1));
+        journal.rewind(entries.get(1));
+        assertNull(journal.poll());
+        assertEquals(4, journal.nextSequence());
+    }
+
+    @Test
+    public void batchesTakeConsecutiveEntriesForOneDestination() throws Exception {
+        journal = new OutboundJournal(file);
+        String[] topics = { TOPIC, TOPIC, TOPIC, OTHER_TOPIC, TOPIC, TOPIC, TOPIC, TOPIC };
+        for (int i = 0; i < topics.length; i++) {
+            journal.append(topics[i], message(i), 0, TimeUnit.MILLISECONDS);
+        }
+
+        // up to the other destination, which starts the next batch
+        assertEquals(3, journal.pollBatch(TOPIC::equals, 10, 1024).size());
+        List<OutboundJournal.Entry> other = journal.pollBatch(TOPIC::equals, 10, 1024);
+        assertEquals(1, other.size());
+        assertEquals("message 3", text(other.get(0)));
+
+        // up to the entry limit, then up to the byte limit
+        List<OutboundJournal.Entry> limited = journal.pollBatch(TOPIC::equals, 2, 1024);
+        assertEquals("message 4", text(limited.get(0)));
+        assertEquals("message 5", text(limited.get(1)));
+        assertEquals(2, limited.size());
+        assertEquals(1, journal.pollBatch(TOPIC::equals, 10, message(6).length + 1).size());
+        assertEquals("message 7", text(journal.pollBatch(topic -> false, 10, 1024).get(0)));
+        assertTrue(journal.pollBatch(TOPIC::equals, 10, 1024).isEmpty());
+
+        // a batch that failed is resent as one again
+        journal.rewind(limited.get(0));
+        assertEquals(2, journal.pollBatch(TOPIC::equals, 2, 1024).size());
+    }
+
+    @Test
+    public void fullJournalBlocksSendersUntilAnAck() throws Exception {
+        // room for three of these records
+        journal = new OutboundJournal(file, 200);
+        int appended = 0;
+        while (journal.append(TOPIC, new byte[10], 0, TimeUnit.MILLISECONDS)) {
+            appended++;
+        }
+        assertTrue(appended > 1);
+        assertFalse(journal.append(TOPIC, new byte[10], 50, TimeUnit.MILLISECONDS));
+
+        OutboundJournal.Entry first = journal.poll();
+        OutboundJournal.Entry second = journal.poll();
+        Thread acker = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            journal.ack(first);
+            journal.ack(second);
+        });
+        acker.start();
+        assertTrue(journal.append(TOPIC, new byte[10], 5, TimeUnit.SECONDS));
+        acker.join();
+        assertEquals(appended - 1, journal.size());
+    }
+
+    @Test
+    public void lateDuplicateAckLeavesNewerEntryInTheSamePlace() throws Exception {
+        journal = new OutboundJournal(file);
+        journal.append(TOPIC, message(0), 0, TimeUnit.MILLISECONDS);
+        OutboundJournal.Entry first = journal.poll();
+        journal.ack(first);
+
+        // the journal is empty again, so the next entry is written where the first one was
+        journal.append(TOPIC, message(1), 0, TimeUnit.MILLISECONDS);
+        journal.ack(first);
+        assertEquals(1, journal.size());
+        assertEquals("message 1", text(journal.poll()));
+    }
+
+    @Test
+    public void freedSpaceIsReusedAcrossTheEndOfTheFile() throws Exception {
+        journal = new OutboundJournal(file, 1024);
+        int expected = 0;
+        // many times the capacity, with a few entries always outstanding
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(journal.append(TOPIC, message(i), 1, TimeUnit.SECONDS));
+            if (i >= 3) {
+                OutboundJournal.Entry entry = journal.poll();
+                assertEquals("message " + expected++, text(entry));
+                journal.ack(entry);
+            }
+        }
+        assertEquals(3, journal.size());
+
+        journal.close();
+        journal = new OutboundJournal(file);
+        for (int i = expected; i < 2000; i++) {
+            assertEquals("message " + i, text(journal.poll()));
+        }
+        assertNull(journal.poll());
+    }
+
+    private static byte[] message(int i) {
+        return ("message " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(OutboundJournal.Entry entry) {
+        return new String(entry.message, StandardCharsets.UTF_8);
+    }
+}
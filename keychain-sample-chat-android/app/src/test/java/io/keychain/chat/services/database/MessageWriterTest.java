@@ -0,0 +1,126 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.keychain.chat.interfaces.ChatRepository;
+import io.keychain.chat.models.chat.ChatMessage;
+
+/**
+ * Checks MessageWriter on the JVM: a broker backlog is stored and acknowledged in full, in groups,
+ * and nothing accepted around #close is lost.
+ */
+public class MessageWriterTest {
+    private static final int BACKLOG = 10000;
+
+    // Every message appendMessages stored, and the size of each group it was called with
+    private final Set<ChatMessage> stored = ConcurrentHashMap.newKeySet();
+    private final List<Integer> groups = new ArrayList<>();
+    private MessageWriter writer;
+
+    @After
+    public void tearDown() {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void backlogIsStoredAndAckedInGroups() throws Exception {
+        writer = new MessageWriter(fakeRepository());
+        CountDownLatch acked = new CountDownLatch(BACKLOG);
+        Set<String> ackedIds = ConcurrentHashMap.newKeySet();
+
+        for (int i = 0; i < BACKLOG; i++) {
+            writer.enqueue(message(i), message -> {
+                if (message != null && ackedIds.add(message.remoteId)) {
+                    acked.countDown();
+                }
+            });
+        }
+
+        assertTrue(acked.await(30, TimeUnit.SECONDS));
+        assertEquals(BACKLOG, stored.size());
+        assertEquals(BACKLOG, ackedIds.size());
+        synchronized (groups) {
+            // far fewer transactions than messages
+            assertTrue(groups.size() + " commits", groups.size() <= BACKLOG / 10);
+        }
+    }
+
+    @Test
+    public void everyAcceptedMessageIsCommittedWhenClosedMeanwhile() throws Exception {
+        writer = new MessageWriter(fakeRepository());
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < BACKLOG; i++) {
+                try {
+                    writer.enqueue(message(i), message -> completed.incrementAndGet());
+                    accepted.incrementAndGet();
+                } catch (IllegalStateException e) {
+                    assertEquals(MessageWriter.CLOSED, e.getMessage());
+                    return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        producer.start();
+        Thread.sleep(5);
+        writer.close();
+        producer.join(TimeUnit.SECONDS.toMillis(30));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (completed.get() < accepted.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(accepted.get(), completed.get());
+        assertEquals(accepted.get(), stored.size());
+    }
+
+    private ChatRepository fakeRepository() {
+        return (ChatRepository) Proxy.newProxyInstance(
+                ChatRepository.class.getClassLoader(),
+                new Class<?>[] {ChatRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return System.identityHashCode(proxy);
+                    }
+                    if (!method.getName().equals("appendMessages")) {
+                        throw new IllegalStateException(method.getName());
+                    }
+                    @SuppressWarnings("unchecked")
+                    List<ChatMessage> messages = (List<ChatMessage>) args[0];
+                    synchronized (groups) {
+                        groups.add(messages.size());
+                    }
+                    stored.addAll(messages);
+                    return Optional.of(messages);
+                });
+    }
+
+    private static ChatMessage message(int i) {
+        ChatMessage message = new ChatMessage();
+        message.chatId = "1";
+        message.senderId = "sender";
+        message.receiverId = "receiver";
+        message.msg = "ciphertext " + i;
+        message.remoteId = "remote-" + i;
+        return message;
+    }
+}
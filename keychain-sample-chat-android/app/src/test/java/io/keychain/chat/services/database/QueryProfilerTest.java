@@ -0,0 +1,122 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.keychain.chat.interfaces.ChatRepository;
+import io.keychain.chat.models.chat.Chat;
+
+/**
+ * Checks what QueryProfiler records, on the JVM.
+ */
+public class QueryProfilerTest {
+    private final AtomicBoolean uiThread = new AtomicBoolean();
+    private final QueryProfiler profiler = new QueryProfiler(QueryProfiler.DEFAULT_SLOW_QUERY_MS, uiThread::get);
+
+    @Test
+    public void recordsLatencyRowsAndThreads() {
+        for (int i = 0; i < 99; i++) {
+            profiler.record("getMessages", TimeUnit.MICROSECONDS.toNanos(100), 20);
+        }
+        uiThread.set(true);
+        profiler.record("getMessages", TimeUnit.MILLISECONDS.toNanos(30), 20);
+
+        QueryProfiler.Stats stats = profiler.getStats().get("getMessages");
+        assertEquals(100, stats.calls);
+        assertEquals(1, stats.uiThreadCalls);
+        assertEquals(2000, stats.rows);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(30), stats.maxNanos);
+        // 100us lands in the bucket below 128us, 30ms in the one below 32768us
+        assertEquals(128, stats.percentileMicros(0.5));
+        assertEquals(128, stats.percentileMicros(0.99));
+        assertEquals(32768, stats.percentileMicros(1.0));
+        assertEquals(Long.valueOf(100), stats.threads.get(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void keepsOnlyTheNewestSlowQueries() {
+        assertFalse(profiler.isSlow(TimeUnit.MILLISECONDS.toNanos(49)));
+        assertTrue(profiler.isSlow(TimeUnit.MILLISECONDS.toNanos(50)));
+
+        for (int i = 0; i < 40; i++) {
+            profiler.recordSlowQuery("SELECT " + i, TimeUnit.MILLISECONDS.toNanos(60),
+                                     Collections.singletonList("SCAN TABLE messages"));
+        }
+
+        List<QueryProfiler.SlowQuery> slowQueries = profiler.getSlowQueries();
+        assertEquals(32, slowQueries.size());
+        assertEquals("SELECT 8", slowQueries.get(0).sql);
+        assertEquals("SELECT 39", slowQueries.get(31).sql);
+
+        StringWriter dump = new StringWriter();
+        profiler.dump(dump);
+        assertTrue(dump.toString().contains("SELECT 39"));
+        assertTrue(dump.toString().contains("    SCAN TABLE messages"));
+
+        profiler.reset();
+        assertTrue(profiler.getSlowQueries().isEmpty());
+    }
+
+    @Test
+    public void wrappedRepositoryRecordsEachMethod() {
+        Chat chat = new Chat("sender", "receiver", null);
+        ChatRepository repository = fakeRepository((name, args) -> {
+            switch (name) {
+                case "getChat":
+                    return Optional.of(chat);
+                case "getAllChats":
+                    return Optional.of(Arrays.asList(chat, chat, chat));
+                case "markChatRead":
+                    return false;
+                default:
+                    throw new IllegalStateException(name);
+            }
+        });
+        ChatRepository wrapped = profiler.wrap(repository);
+
+        assertEquals(chat, wrapped.getChat("sender", "receiver").orElse(null));
+        assertEquals(3, wrapped.getAllChats("sender", null).get().size());
+        assertFalse(wrapped.markChatRead(chat.id, "sender"));
+        try {
+            wrapped.getPlatformUserByUri("uri");
+            fail();
+        } catch (IllegalStateException expected) {
+            // the repository's own exception, not an UndeclaredThrowableException
+        }
+        wrapped.hashCode();
+
+        Map<String, QueryProfiler.Stats> stats = profiler.getStats();
+        assertEquals(4, stats.size());
+        assertEquals(1, stats.get("getChat").rows);
+        assertEquals(3, stats.get("getAllChats").rows);
+        assertEquals(0, stats.get("markChatRead").rows);
+        assertEquals(1, stats.get("getPlatformUserByUri").calls);
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    private static ChatRepository fakeRepository(Answer answer) {
+        return (ChatRepository) Proxy.newProxyInstance(
+                ChatRepository.class.getClassLoader(),
+                new Class<?>[] {ChatRepository.class},
+                (proxy, method, args) -> method.getDeclaringClass() == Object.class
+                        ? System.identityHashCode(proxy)
+                        : answer.answer(method.getName(), args));
+    }
+}
@@ -0,0 +1,266 @@
+package io.keychain.chat.services.database;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.app.Application;
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.keychain.chat.models.chat.Chat;
+import io.keychain.chat.models.chat.ChatDirection;
+import io.keychain.chat.models.chat.ChatMessage;
+import io.keychain.chat.models.chat.PairStatus;
+import io.keychain.chat.models.chat.User;
+import io.keychain.chat.models.chat.UserSource;
+
+/**
+ * Seeds a chat database at scale and measures the latency and throughput of the hot
+ * SQLiteDBService calls, on the JVM.
+ *
+ * Robolectric's native SQLite mode runs the same SQLite the app links against, so the numbers are
+ * comparable across commits on the same machine.  Skipped unless the 'benchmark' property is set:
+ *
+ *   ./gradlew testDevDebugUnitTest --tests '*RepositoryBenchmark' -Pbenchmark \
+ *       -Pbenchmark.users=10000 -Pbenchmark.chats=100000 -Pbenchmark.messages=1000000 \
+ *       -Pbenchmark.commit=$(git rev-parse --short HEAD)
+ *
+ * Results are written as JSON to benchmark.output (default build/benchmark/repository.json).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class, sdk = 30)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class RepositoryBenchmark {
+    private static final String BENCHMARK_DB = "benchmark_chats.db";
+    private static final String PERSONA = "persona-uri";
+    // rows per transaction while seeding
+    private static final int SEED_BATCH = 5000;
+
+    private final int userCount = Integer.getInteger("benchmark.users", 10_000);
+    private final int chatCount = Integer.getInteger("benchmark.chats", 100_000);
+    private final int messageCount = Integer.getInteger("benchmark.messages", 1_000_000);
+    private final int warmup = Integer.getInteger("benchmark.warmup", 200);
+    private final int iterations = Integer.getInteger("benchmark.iterations", 2000);
+    private final Random random = new Random(Long.getLong("benchmark.seed", 42L));
+
+    private Context context;
+    private SQLiteDBService service;
+    private final List<String> userUris = new ArrayList<>();
+    private final List<Chat> chats = new ArrayList<>();
+    private long seedMillis;
+
+    // Written out as JSON, one per operation
+    static class Result {
+        String operation;
+        int iterations;
+        double opsPerSecond;
+        double meanMicros;
+        double p50Micros;
+        double p95Micros;
+        double p99Micros;
+        double maxMicros;
+        double rowsPerCall;
+    }
+
+    static class Report {
+        String benchmark = RepositoryBenchmark.class.getSimpleName();
+        String commit = System.getProperty("benchmark.commit", "unknown");
+        String timestamp = Instant.now().toString();
+        String java = System.getProperty("java.version");
+        String os = System.getProperty("os.name") + " " + System.getProperty("os.arch");
+        int users;
+        int chats;
+        int messages;
+        long seedMillis;
+        List<Result> results = new ArrayList<>();
+    }
+
+    private interface Operation {
+        // Returns the number of rows the call handed back
+        int run(int iteration);
+    }
+
+    @Before
+    public void setUp() {
+        assumeTrue("Set -Pbenchmark to run", System.getProperty("benchmark") != null);
+
+        context = ApplicationProvider.getApplicationContext();
+        context.deleteDatabase(BENCHMARK_DB);
+        service = new SQLiteDBService(context, BENCHMARK_DB);
+        seed();
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.closeDatabase();
+            context.deleteDatabase(BENCHMARK_DB);
+        }
+    }
+
+    @Test
+    public void measureRepository() throws IOException {
+        Report report = new Report();
+        report.users = userCount;
+        report.chats = chatCount;
+        report.messages = messageCount;
+        report.seedMillis = seedMillis;
+
+        report.results.add(measure("getAllChats", i ->
+                rows(service.getAllChats(randomUser(), Collections.singleton(PERSONA)))));
+        report.results.add(measure("getChat", i -> {
+            Chat chat = randomChat();
+            return rows(service.getChat(chat.participantIds.get(0), chat.participantIds.get(1)));
+        }));
+        report.results.add(measure("getAllMessages", i -> rows(service.getAllMessages(randomChat()))));
+        report.results.add(measure("getPlatformUserByUri", i -> rows(service.getPlatformUserByUri(randomUser()))));
+        report.results.add(measure("saveMessage", i -> {
+            Chat chat = randomChat();
+            String sender = chat.participantIds.get(0);
+            return rows(service.saveMessage(chat.id, sender, "benchmark " + i, ChatDirection.send, chat));
+        }));
+
+        write(report);
+    }
+
+    private void seed() {
+        long start = System.nanoTime();
+
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String uri = "user-" + i;
+            userUris.add(uri);
+            users.add(new User(null, "First" + i, "Last" + i, PairStatus.PAIRED.getCode(), UserSource.GATEWAY.getCode(), null, uri));
+            if (users.size() == SEED_BATCH || i == userCount - 1) {
+                assertTrue(service.upsertUsers(users).isPresent());
+                users.clear();
+            }
+        }
+
+        // saveChat is one transaction per chat; group them so seeding does not commit 100k times
+        for (int i = 0; i < chatCount; i += SEED_BATCH) {
+            service.db.beginTransaction();
+            try {
+                for (int j = i; j < Math.min(i + SEED_BATCH, chatCount); j++) {
+                    String sender = userUris.get(j % userCount);
+                    String receiver = userUris.get((j / userCount + 1 + j) % userCount);
+                    Chat chat = new Chat(sender, receiver, null);
+                    assertTrue(service.saveChat(chat).isPresent());
+                    chats.add(chat);
+                }
+                service.db.setTransactionSuccessful();
+            } finally {
+                service.db.endTransaction();
+            }
+        }
+
+        List<ChatMessage> messages = new ArrayList<>();
+        for (int i = 0; i < messageCount; i++) {
+            Chat chat = chats.get(random.nextInt(chats.size()));
+            boolean sent = random.nextBoolean();
+            ChatMessage message = new ChatMessage();
+            message.chatId = chat.id;
+            message.sendOrRcvd = sent ? ChatDirection.send : ChatDirection.receive;
+            message.senderId = chat.participantIds.get(sent ? 0 : 1);
+            message.receiverId = chat.participantIds.get(sent ? 1 : 0);
+            message.msg = "Seeded message number " + i;
+            messages.add(message);
+            if (messages.size() == SEED_BATCH || i == messageCount - 1) {
+                assertTrue(service.appendMessages(messages).isPresent());
+                messages.clear();
+            }
+        }
+
+        seedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println(String.format(Locale.ROOT, "Seeded %d users, %d chats, %d messages in %dms",
+                userCount, chatCount, messageCount, seedMillis));
+    }
+
+    private Result measure(String name, Operation operation) {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+
+        long[] nanos = new long[iterations];
+        long rows = 0;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            rows += operation.run(i);
+            nanos[i] = System.nanoTime() - start;
+            total += nanos[i];
+        }
+        Arrays.sort(nanos);
+
+        Result result = new Result();
+        result.operation = name;
+        result.iterations = iterations;
+        result.opsPerSecond = iterations / (total / 1e9);
+        result.meanMicros = total / 1e3 / iterations;
+        result.p50Micros = percentile(nanos, 0.50);
+        result.p95Micros = percentile(nanos, 0.95);
+        result.p99Micros = percentile(nanos, 0.99);
+        result.maxMicros = nanos[iterations - 1] / 1e3;
+        result.rowsPerCall = (double) rows / iterations;
+
+        System.out.println(String.format(Locale.ROOT, "%-22s %10.0f ops/s  p50 %9.1fus  p95 %9.1fus  p99 %9.1fus  %.1f rows/call",
+                name, result.opsPerSecond, result.p50Micros, result.p95Micros, result.p99Micros, result.rowsPerCall));
+        return result;
+    }
+
+    private void write(Report report) throws IOException {
+        File output = new File(System.getProperty("benchmark.output", "build/benchmark/repository.json"));
+        File directory = output.getAbsoluteFile().getParentFile();
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new FileWriter(output)) {
+            gson.toJson(report, writer);
+        }
+        System.out.println("Benchmark results written to " + output.getAbsolutePath());
+    }
+
+    private String randomUser() {
+        return userUris.get(random.nextInt(userUris.size()));
+    }
+
+    private Chat randomChat() {
+        return chats.get(random.nextInt(chats.size()));
+    }
+
+    // Nearest-rank percentile of sorted samples, in microseconds
+    private static double percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(sorted.length * percentile);
+        return sorted[Math.max(rank - 1, 0)] / 1e3;
+    }
+
+    private static int rows(Optional<?> result) {
+        return QueryProfiler.rowCount(result);
+    }
+}